@@ -0,0 +1,366 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.gluonj.weave.ClassConverter;
+import javassist.gluonj.weave.ReviserTree;
+import javassist.gluonj.weave.WeaveException;
+
+/**
+ * A generated program for measuring the dispatch of woven code.
+ * Every woven pattern has a hand-written counterpart in plain Java.
+ *
+ * <p>A client is a class implementing {@link Workload}.
+ * A client named <code>Call...</code> calls a method on an object it
+ * created in advance.  A client named <code>New...</code> creates an
+ * object and calls a method on it.  The clients are in the package
+ * <code>bench.rt</code>.
+ *
+ * <ul>
+ * <li>Plain: a class revised by no reviser.
+ * <li>Sub: a hand-written subclass overriding a method.
+ * <li>Revised: a reviser overriding a method.  The weaver replaces
+ * <code>new</code> and the reviser inherits the constructors.
+ * <li>Within: a reviser method with <code>@Within</code>.  The weaver
+ * renames the method into <code>get_aop_bench_rt_Within1</code> and
+ * redirects the call.
+ * <li>Marker: a reviser method with <code>@Within</code> overriding
+ * <code>hashCode()</code>, which is declared in
+ * <code>java.lang.Object</code>.  The weaver inserts
+ * <code>instanceof</code>, <code>checkcast</code>, and
+ * <code>invokeinterface</code> on a marker type.
+ * PlainHash is its counterpart.  If the program is woven with
+ * invokedynamic, the call is linked by <code>InlineCache</code> instead.
+ * <li>SwitchedOn and SwitchedOff: a reviser with <code>@Switchable</code>.
+ * The weaver inserts a guard at the beginning of the method.
+ * <li>Chain and Stacked: four hand-written subclasses and four revisers
+ * stacked on the same class.  If the program is woven with fused chains,
+ * the bodies of the stacked revisers are copied into the last one.
+ * <li>InitChain and InitStacked: the same as Chain and Stacked except
+ * that every subclass and reviser declares a field with an initializer.
+ * The weaver copies the body of a reviser's default constructor into
+ * the constructors it inherits.
+ * <li>MegaSub and MegaRevised: a call site with four receiver types.
+ * </ul>
+ */
+public class Dispatch {
+    private static final String PACKAGE = "bench.rt.";
+    private static final int STACK = 4;
+
+    private HashMap<String,byte[]> classFiles;
+    private ArrayList<String> reviserNames;
+    private ArrayList<String> otherNames;
+    private ClassPool pool;
+
+    /**
+     * Generates and weaves the program.
+     */
+    public Dispatch()
+        throws CannotCompileException, NotFoundException, WeaveException, IOException
+    {
+        this(false);
+    }
+
+    /**
+     * Generates and weaves the program.
+     *
+     * @param indy      true if the Marker pattern is woven into
+     *                  invokedynamic.
+     */
+    public Dispatch(boolean indy)
+        throws CannotCompileException, NotFoundException, WeaveException, IOException
+    {
+        this(indy, false);
+    }
+
+    /**
+     * Generates and weaves the program.
+     *
+     * @param indy      true if the Marker pattern is woven into
+     *                  invokedynamic.
+     * @param fuse      true if the revisers are fused as
+     *                  {@link javassist.gluonj.weave.Weaver#setFuseChains(boolean)}
+     *                  does.
+     */
+    public Dispatch(boolean indy, boolean fuse)
+        throws CannotCompileException, NotFoundException, WeaveException, IOException
+    {
+        classFiles = new HashMap<String,byte[]>();
+        reviserNames = new ArrayList<String>();
+        otherNames = new ArrayList<String>();
+        pool = new ClassPool(true);
+
+        base("Plain");
+        client("Plain", "Plain", "get");
+        client("PlainHash", "Plain", "hashCode");
+
+        base("Sub");
+        override("Sub1", "Sub", "get", false, null);
+        client("Sub", "Sub1", "get");
+
+        base("Revised");
+        override("Revised1", "Revised", "get", true, null);
+        client("Revised", "Revised", "get");
+
+        base("Within");
+        override("Within1", "Within", "get", true, "CallWithin");
+        client("Within", "Within", "get");
+
+        base("Marker");
+        override("Marker1", "Marker", "hashCode", true, "CallMarker");
+        client("Marker", "Marker", "hashCode");
+
+        for (String name: new String[] { "SwitchedOn", "SwitchedOff" }) {
+            base(name);
+            override(name + "1", name, "get", true, null);
+            switchable(name + "1");
+            client(name, name, "get");
+        }
+
+        base("Chain");
+        String sup = "Chain";
+        for (int i = 1; i <= STACK; i++) {
+            override("Chain" + i, sup, "get", false, null);
+            sup = "Chain" + i;
+        }
+
+        client("Chain", sup, "get");
+
+        base("Stacked");
+        for (int i = 1; i <= STACK; i++)
+            override("Stacked" + i, "Stacked", "get", true, null);
+
+        client("Stacked", "Stacked", "get");
+
+        base("InitChain");
+        sup = "InitChain";
+        for (int i = 1; i <= STACK; i++) {
+            override("InitChain" + i, sup, "get", false, null, true);
+            sup = "InitChain" + i;
+        }
+
+        client("InitChain", sup, "get");
+
+        base("InitStacked");
+        for (int i = 1; i <= STACK; i++)
+            override("InitStacked" + i, "InitStacked", "get", true, null, true);
+
+        client("InitStacked", "InitStacked", "get");
+
+        megamorphic("MegaSub", false);
+        megamorphic("MegaRevised", true);
+
+        weave(indy, fuse);
+    }
+
+    /* Makes a class with get() and hashCode().
+     */
+    private void base(String name) throws CannotCompileException {
+        CtClass c = pool.makeClass(PACKAGE + name);
+        c.addField(CtField.make("protected int x;", c));
+        c.addConstructor(CtNewConstructor.make("public " + name + "() { x = 1; }", c));
+        c.addConstructor(CtNewConstructor.make("public " + name + "(int x) { this.x = x; }", c));
+        c.addMethod(CtNewMethod.make("public int get() { return x; }", c));
+        c.addMethod(CtNewMethod.make("public int hashCode() { return x; }", c));
+        otherNames.add(c.getName());
+    }
+
+    private void override(String name, String superName, String method,
+                          boolean isReviser, String within)
+        throws CannotCompileException, NotFoundException
+    {
+        override(name, superName, method, isReviser, within, false);
+    }
+
+    /* Makes a subclass or a reviser overriding the given method.
+     * A reviser only declares the default constructor.
+     * The weaver adds the other constructors.
+     * If init is true, the class declares a field with an initializer,
+     * which is compiled into its constructors.
+     */
+    private void override(String name, String superName, String method,
+                          boolean isReviser, String within, boolean init)
+        throws CannotCompileException, NotFoundException
+    {
+        CtClass sup = pool.get(PACKAGE + superName);
+        CtClass c = pool.makeClass(PACKAGE + name, sup);
+        ConstPool cp = c.getClassFile().getConstPool();
+        String added = "1";
+        if (init) {
+            added = "y" + name;
+            c.addField(CtField.make("public int " + added + " = x + 1;", c));
+        }
+
+        c.addConstructor(CtNewConstructor.make("public " + name + "() { super(); }", c));
+        if (!isReviser)
+            c.addConstructor(CtNewConstructor.make("public " + name + "(int x) { super(x); }", c));
+
+        CtMethod m = CtNewMethod.make("public int " + method + "() { return super."
+                                      + method + "() + " + added + "; }", c);
+        if (within != null)
+            m.getMethodInfo().addAttribute(Program.within(cp, PACKAGE + within, null));
+
+        c.addMethod(m);
+        if (isReviser) {
+            c.getClassFile().addAttribute(Program.annotations(cp, new Annotation("javassist.gluonj.Reviser", cp)));
+            reviserNames.add(c.getName());
+        }
+        else
+            otherNames.add(c.getName());
+    }
+
+    /* Annotates a reviser with @Switchable.
+     */
+    private void switchable(String name) throws NotFoundException {
+        ClassFile cf = pool.get(PACKAGE + name).getClassFile();
+        AnnotationsAttribute attr
+            = (AnnotationsAttribute)cf.getAttribute(AnnotationsAttribute.invisibleTag);
+        attr.addAnnotation(new Annotation("javassist.gluonj.Switchable", cf.getConstPool()));
+    }
+
+    private void client(String name, String newType, String method)
+        throws CannotCompileException, NotFoundException
+    {
+        CtClass intf = pool.get(Workload.class.getName());
+        String type = PACKAGE + newType;
+
+        CtClass call = pool.makeClass(PACKAGE + "Call" + name);
+        call.addInterface(intf);
+        call.addField(CtField.make("private " + type + " obj;", call));
+        call.addConstructor(CtNewConstructor.make("public Call" + name + "() { obj = new "
+                                                  + type + "(1); }", call));
+        call.addMethod(CtNewMethod.make("public int run(int n) { return obj." + method
+                                        + "() + n; }", call));
+        otherNames.add(call.getName());
+
+        CtClass alloc = pool.makeClass(PACKAGE + "New" + name);
+        alloc.addInterface(intf);
+        alloc.addConstructor(CtNewConstructor.defaultConstructor(alloc));
+        alloc.addMethod(CtNewMethod.make("public int run(int n) { return new " + type
+                                         + "(n)." + method + "(); }", alloc));
+        otherNames.add(alloc.getName());
+    }
+
+    /* Makes four subclasses of a base class and a client calling
+     * get() on their instances at the same call site.
+     */
+    private void megamorphic(String name, boolean revised)
+        throws CannotCompileException, NotFoundException
+    {
+        CtClass intf = pool.get(Workload.class.getName());
+        String baseName = PACKAGE + name;
+        base(name);
+        StringBuilder init = new StringBuilder();
+        init.append("public Call").append(name).append("() { objs = new ")
+            .append(baseName).append("[4];");
+        for (int i = 0; i < 4; i++) {
+            CtClass sub = pool.makeClass(baseName + "_" + i, pool.get(baseName));
+            sub.addConstructor(CtNewConstructor.make("public " + name + "_" + i
+                                                     + "() { super(" + i + "); }", sub));
+            sub.addMethod(CtNewMethod.make("public int get() { return x * " + (i + 2) + "; }", sub));
+            otherNames.add(sub.getName());
+            sub.addConstructor(CtNewConstructor.make("public " + name + "_" + i
+                                                     + "(int x) { super(x); }", sub));
+            override(name + "_" + i + (revised ? "R" : "S"), name + "_" + i, "get", revised, null);
+
+            String type = revised ? baseName + "_" + i : baseName + "_" + i + "S";
+            init.append(" objs[").append(i).append("] = new ").append(type).append("();");
+        }
+
+        init.append(" }");
+        CtClass call = pool.makeClass(PACKAGE + "Call" + name);
+        call.addInterface(intf);
+        call.addField(CtField.make("private " + baseName + "[] objs;", call));
+        call.addConstructor(CtNewConstructor.make(init.toString(), call));
+        call.addMethod(CtNewMethod.make("public int run(int n) { return objs[n & 3].get() + n; }", call));
+        otherNames.add(call.getName());
+    }
+
+    /* Weaves the program in the same way as Weaver does.
+     */
+    private void weave(boolean indy, boolean fuse)
+        throws CannotCompileException, NotFoundException, WeaveException, IOException
+    {
+        HashMap<String,byte[]> original = new HashMap<String,byte[]>();
+        for (String name: reviserNames)
+            original.put(name, pool.get(name).toBytecode());
+
+        for (String name: otherNames)
+            original.put(name, pool.get(name).toBytecode());
+
+        ClassPool cp = new ClassPool(true);
+        cp.insertClassPath(new MemoryClassPath(original));
+        ReviserTree tree = new ReviserTree();
+        for (String name: reviserNames)
+            tree.append(name, cp.get(name), false);
+
+        tree.addRequiringOrder(reviserNames.toArray(new String[reviserNames.size()]));
+        ClassConverter conv = new ClassConverter();
+        conv.setIndyDispatch(indy);
+        conv.prepare(tree.toMap(conv), cp);
+        ArrayList<CtClass> classes = new ArrayList<CtClass>();
+        for (String name: reviserNames)
+            classes.add(cp.get(name));
+
+        for (CtClass c: classes)
+            conv.revise(c);
+
+        if (fuse)
+            conv.fuseChains(new HashSet<CtClass>(classes));
+
+        for (String name: otherNames) {
+            CtClass c = cp.get(name);
+            conv.revise(c);
+            classes.add(c);
+        }
+
+        for (CtClass c: classes)
+            classFiles.put(c.getName(), c.toBytecode());
+
+        for (CtClass c: conv.getHelpers())
+            classFiles.put(c.getName(), c.toBytecode());
+    }
+
+    /**
+     * Loads the woven program by a new class loader and returns
+     * the client with the given name.
+     *
+     * @param name      the client name without the package name,
+     *                  for example, <code>CallPlain</code>.
+     */
+    public Workload newClient(String name) throws ReflectiveOperationException {
+        ClassLoader loader = new Loader(getClass().getClassLoader());
+        return (Workload)loader.loadClass(PACKAGE + name).getDeclaredConstructor().newInstance();
+    }
+
+    class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] b = classFiles.get(name);
+            if (b == null)
+                throw new ClassNotFoundException(name);
+
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Map;
+
+import javassist.ClassPath;
+
+/**
+ * A class path for the class files generated in memory.
+ */
+class MemoryClassPath extends URLStreamHandler implements ClassPath {
+    private Map<String,byte[]> classFiles;
+
+    /**
+     * @param classFiles    a map from class names to class files.
+     */
+    MemoryClassPath(Map<String,byte[]> classFiles) {
+        this.classFiles = classFiles;
+    }
+
+    public InputStream openClassfile(String className) {
+        byte[] b = classFiles.get(className);
+        return b == null ? null : new ByteArrayInputStream(b);
+    }
+
+    public URL find(String className) {
+        if (classFiles.containsKey(className))
+            try {
+                return new URL(null, "memory:/" + className.replace('.', '/') + ".class", this);
+            }
+            catch (MalformedURLException e) {}
+
+        return null;
+    }
+
+    protected URLConnection openConnection(URL url) throws IOException {
+        String path = url.getPath();
+        final String className = path.substring(1, path.length() - ".class".length()).replace('/', '.');
+        return new URLConnection(url) {
+            public void connect() {}
+            public InputStream getInputStream() throws IOException {
+                InputStream in = openClassfile(className);
+                if (in == null)
+                    throw new IOException("not found: " + className);
+
+                return in;
+            }
+        };
+    }
+}
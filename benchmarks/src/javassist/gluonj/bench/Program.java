@@ -0,0 +1,200 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.ClassMemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+import javassist.gluonj.weave.ReviserTree;
+import javassist.gluonj.weave.WeaveException;
+
+/**
+ * A generated program used as the input of the benchmarks.
+ *
+ * <p>It consists of the following classes in the package
+ * <code>bench.gen</code>:
+ *
+ * <ul>
+ * <li><code>T&lt;h&gt;_&lt;d&gt;</code>: a class hierarchy of the given
+ * depth.  <code>T&lt;h&gt;_0</code> is the root.
+ * Every class declares <code>m0()</code>, <code>m1()</code>, ...
+ * <li><code>R&lt;h&gt;_&lt;k&gt;</code>: revisers of the leaf class
+ * of the hierarchy.  They override every method.  Some of the methods
+ * have <code>@Within</code> and <code>@Code</code>.
+ * <li><code>C&lt;n&gt;</code>: clients instantiating a leaf class
+ * and calling its methods.
+ * <li><code>U&lt;n&gt;</code>: classes that no reviser affects.
+ * </ul>
+ *
+ * <p>The class files are generated in memory and then given to
+ * a class pool through {@link #newClassPool()}.
+ */
+public class Program {
+    private static final String PACKAGE = "bench.gen.";
+
+    private HashMap<String,byte[]> classFiles;
+    private ArrayList<String> reviserNames;     // in the precedence order
+    private ArrayList<String> otherNames;
+
+    /**
+     * Generates a program.
+     *
+     * @param hierarchies   the number of class hierarchies.
+     * @param depth         the depth of every hierarchy.
+     * @param methods       the number of methods declared in every class.
+     * @param revisers      the number of revisers per hierarchy.
+     * @param clients       the number of client classes.
+     * @param unaffected    the number of classes no reviser affects.
+     */
+    public Program(int hierarchies, int depth, int methods, int revisers,
+                   int clients, int unaffected)
+        throws CannotCompileException, NotFoundException, IOException
+    {
+        classFiles = new HashMap<String,byte[]>();
+        reviserNames = new ArrayList<String>();
+        otherNames = new ArrayList<String>();
+        ClassPool pool = new ClassPool(true);
+        ArrayList<CtClass> generated = new ArrayList<CtClass>();
+        for (int h = 0; h < hierarchies; h++) {
+            CtClass sup = pool.get("java.lang.Object");
+            for (int d = 0; d < depth; d++) {
+                CtClass t = pool.makeClass(PACKAGE + "T" + h + "_" + d, sup);
+                t.addConstructor(CtNewConstructor.defaultConstructor(t));
+                for (int m = 0; m < methods; m++)
+                    t.addMethod(CtNewMethod.make("public int m" + m + "() { return "
+                                                 + (d * methods + m) + "; }", t));
+
+                generated.add(t);
+                otherNames.add(t.getName());
+                sup = t;
+            }
+        }
+
+        for (int n = 0; n < clients; n++) {
+            String leaf = leafName(n % hierarchies, depth);
+            CtClass c = pool.makeClass(PACKAGE + "C" + n);
+            c.addConstructor(CtNewConstructor.defaultConstructor(c));
+            StringBuilder body = new StringBuilder();
+            body.append("public int run() { ").append(leaf).append(" t = new ")
+                .append(leaf).append("(); return 0");
+            for (int m = 0; m < methods; m++)
+                body.append(" + t.m").append(m).append("()");
+
+            body.append("; }");
+            c.addMethod(CtNewMethod.make(body.toString(), c));
+            generated.add(c);
+            otherNames.add(c.getName());
+        }
+
+        for (int n = 0; n < unaffected; n++) {
+            CtClass u = pool.makeClass(PACKAGE + "U" + n);
+            u.addConstructor(CtNewConstructor.defaultConstructor(u));
+            u.addMethod(CtNewMethod.make("public int run(Object o) { return o.hashCode() + "
+                                         + n + "; }", u));
+            generated.add(u);
+            otherNames.add(u.getName());
+        }
+
+        for (int h = 0; h < hierarchies; h++) {
+            CtClass leaf = pool.get(leafName(h, depth));
+            String client = PACKAGE + "C" + (clients > 0 ? h % clients : 0);
+            for (int k = 0; k < revisers; k++) {
+                CtClass r = pool.makeClass(PACKAGE + "R" + h + "_" + k, leaf);
+                ConstPool cp = r.getClassFile().getConstPool();
+                r.getClassFile().addAttribute(annotations(cp, new Annotation("javassist.gluonj.Reviser", cp)));
+                r.addConstructor(CtNewConstructor.defaultConstructor(r));
+                for (int m = 0; m < methods; m++) {
+                    CtMethod cm = CtNewMethod.make("public int m" + m + "() { return super.m"
+                                                   + m + "() + 1; }", r);
+                    if (clients > 0 && (m + k) % 3 == 1)
+                        cm.getMethodInfo().addAttribute(within(cp, client, null));
+                    else if (clients > 0 && (m + k) % 3 == 2)
+                        cm.getMethodInfo().addAttribute(within(cp, client, "run()"));
+
+                    r.addMethod(cm);
+                }
+
+                generated.add(r);
+                reviserNames.add(r.getName());
+            }
+        }
+
+        for (CtClass c: generated)
+            classFiles.put(c.getName(), c.toBytecode());
+    }
+
+    private static String leafName(int h, int depth) {
+        return PACKAGE + "T" + h + "_" + (depth - 1);
+    }
+
+    static AnnotationsAttribute annotations(ConstPool cp, Annotation... anno) {
+        AnnotationsAttribute attr = new AnnotationsAttribute(cp, AnnotationsAttribute.invisibleTag);
+        attr.setAnnotations(anno);
+        return attr;
+    }
+
+    static AnnotationsAttribute within(ConstPool cp, String className, String code) {
+        Annotation w = new Annotation("javassist.gluonj.Within", cp);
+        w.addMemberValue("value", new ClassMemberValue(className, cp));
+        if (code == null)
+            return annotations(cp, w);
+
+        Annotation c = new Annotation("javassist.gluonj.Code", cp);
+        c.addMemberValue("value", new StringMemberValue(code, cp));
+        return annotations(cp, w, c);
+    }
+
+    /**
+     * Returns the names of the revisers in the precedence order.
+     */
+    public List<String> getReviserNames() { return reviserNames; }
+
+    /**
+     * Returns the names of the classes except the revisers.
+     */
+    public List<String> getOtherNames() { return otherNames; }
+
+    /**
+     * Returns the class file of the given class.
+     */
+    public byte[] getClassFile(String className) { return classFiles.get(className); }
+
+    /**
+     * Makes a class pool containing the generated classes.
+     * Every call returns a new pool so that the classes in it are
+     * not modified yet.
+     */
+    public ClassPool newClassPool() {
+        ClassPool pool = new ClassPool(true);
+        pool.insertClassPath(new MemoryClassPath(classFiles));
+        return pool;
+    }
+
+    /**
+     * Makes a reviser tree containing all the revisers.
+     */
+    public ReviserTree newReviserTree(ClassPool pool)
+        throws WeaveException, NotFoundException
+    {
+        ReviserTree tree = new ReviserTree();
+        for (String name: reviserNames)
+            tree.append(name, pool.get(name), false);
+
+        tree.addRequiringOrder(reviserNames.toArray(new String[reviserNames.size()]));
+        return tree;
+    }
+}
@@ -0,0 +1,183 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javassist.gluonj.GluonJ;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the steady-state cost of woven code.
+ * Every woven pattern in {@link Dispatch} is compared with its
+ * hand-written counterpart:
+ *
+ * <ul>
+ * <li>callPlain, callSub, callRevised, callWithin: a call to an overridden
+ * method, a call to an overriding method, and a call to a reviser method
+ * with or without <code>@Within</code>.
+ * <li>callPlainHash, callMarker, callMarkerIndy: a call to a method
+ * declared in <code>java.lang.Object</code>.  callMarker runs the
+ * marker-type sequence and callMarkerIndy runs invokedynamic.
+ * <li>callSwitchedOn, callSwitchedOff: a call to a method of
+ * a switchable reviser.  It is enabled in the former and disabled in
+ * the latter.  They are compared with callRevised and callPlain.
+ * <li>callChain, callStacked, callStackedFused: four overriding methods.
+ * In callStackedFused, the revisers are fused by
+ * {@link javassist.gluonj.weave.Weaver#setFuseChains(boolean)}.
+ * <li>callMegaSub, callMegaRevised: a megamorphic call site.
+ * <li>newPlain, newSub, newRevised, newChain, newStacked: object creation
+ * and a call.  The default constructors of the revisers are empty, so
+ * the constructors they inherit only call the super constructors.
+ * <li>newInitChain, newInitStacked: object creation and a call.  Every
+ * class in the chain has a field initializer.  The body of a reviser's
+ * default constructor is copied into the constructors it inherits.
+ * </ul>
+ *
+ * Use <code>-prof gc</code> to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeBenchmark {
+    private int n;
+
+    private Workload callPlain, callSub, callRevised, callWithin;
+    private Workload callPlainHash, callMarker, callMarkerIndy;
+    private Workload callSwitchedOn, callSwitchedOff;
+    private Workload callChain, callStacked, callStackedFused;
+    private Workload callMegaSub, callMegaRevised;
+    private Workload newPlain, newSub, newRevised, newChain, newStacked;
+    private Workload newInitChain, newInitStacked;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Dispatch d = new Dispatch();
+        callPlain = d.newClient("CallPlain");
+        callSub = d.newClient("CallSub");
+        callRevised = d.newClient("CallRevised");
+        callWithin = d.newClient("CallWithin");
+        callPlainHash = d.newClient("CallPlainHash");
+        callMarker = d.newClient("CallMarker");
+        callSwitchedOn = d.newClient("CallSwitchedOn");
+        callSwitchedOff = d.newClient("CallSwitchedOff");
+        callChain = d.newClient("CallChain");
+        callStacked = d.newClient("CallStacked");
+        callMegaSub = d.newClient("CallMegaSub");
+        callMegaRevised = d.newClient("CallMegaRevised");
+        newPlain = d.newClient("NewPlain");
+        newSub = d.newClient("NewSub");
+        newRevised = d.newClient("NewRevised");
+        newChain = d.newClient("NewChain");
+        newStacked = d.newClient("NewStacked");
+        newInitChain = d.newClient("NewInitChain");
+        newInitStacked = d.newClient("NewInitStacked");
+        callMarkerIndy = new Dispatch(true).newClient("CallMarker");
+        callStackedFused = new Dispatch(false, true).newClient("CallStacked");
+        check();
+        GluonJ.setEnabled("bench.rt.SwitchedOff1", false);
+        check("SwitchedOff", callPlain.run(0), callSwitchedOff.run(0));
+    }
+
+    /* Makes sure that the woven code computes the same value as
+     * the hand-written code.
+     */
+    private void check() {
+        for (int i = 0; i < 8; i++) {
+            check("Revised", callSub.run(i), callRevised.run(i));
+            check("Within", callSub.run(i), callWithin.run(i));
+            check("Marker", callPlainHash.run(i) + 1, callMarker.run(i));
+            check("MarkerIndy", callPlainHash.run(i) + 1, callMarkerIndy.run(i));
+            check("SwitchedOn", callSub.run(i), callSwitchedOn.run(i));
+            check("SwitchedOff", callSub.run(i), callSwitchedOff.run(i));
+            check("Stacked", callChain.run(i), callStacked.run(i));
+            check("StackedFused", callChain.run(i), callStackedFused.run(i));
+            check("MegaRevised", callMegaSub.run(i), callMegaRevised.run(i));
+            check("NewRevised", newSub.run(i), newRevised.run(i));
+            check("NewStacked", newChain.run(i), newStacked.run(i));
+            check("NewInitStacked", newInitChain.run(i), newInitStacked.run(i));
+        }
+    }
+
+    private static void check(String name, int expected, int actual) {
+        if (expected != actual)
+            throw new IllegalStateException(name + ": " + actual + " (expected: " + expected + ")");
+    }
+
+    @Benchmark
+    public int callPlain() { return callPlain.run(n++); }
+
+    @Benchmark
+    public int callSub() { return callSub.run(n++); }
+
+    @Benchmark
+    public int callRevised() { return callRevised.run(n++); }
+
+    @Benchmark
+    public int callWithin() { return callWithin.run(n++); }
+
+    @Benchmark
+    public int callPlainHash() { return callPlainHash.run(n++); }
+
+    @Benchmark
+    public int callMarker() { return callMarker.run(n++); }
+
+    @Benchmark
+    public int callMarkerIndy() { return callMarkerIndy.run(n++); }
+
+    @Benchmark
+    public int callSwitchedOn() { return callSwitchedOn.run(n++); }
+
+    @Benchmark
+    public int callSwitchedOff() { return callSwitchedOff.run(n++); }
+
+    @Benchmark
+    public int callChain() { return callChain.run(n++); }
+
+    @Benchmark
+    public int callStacked() { return callStacked.run(n++); }
+
+    @Benchmark
+    public int callStackedFused() { return callStackedFused.run(n++); }
+
+    @Benchmark
+    public int callMegaSub() { return callMegaSub.run(n++); }
+
+    @Benchmark
+    public int callMegaRevised() { return callMegaRevised.run(n++); }
+
+    @Benchmark
+    public int newPlain() { return newPlain.run(n++); }
+
+    @Benchmark
+    public int newSub() { return newSub.run(n++); }
+
+    @Benchmark
+    public int newRevised() { return newRevised.run(n++); }
+
+    @Benchmark
+    public int newChain() { return newChain.run(n++); }
+
+    @Benchmark
+    public int newStacked() { return newStacked.run(n++); }
+
+    @Benchmark
+    public int newInitChain() { return newInitChain.run(n++); }
+
+    @Benchmark
+    public int newInitStacked() { return newInitStacked.run(n++); }
+}
@@ -0,0 +1,266 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.gluonj.weave.ClassConverter;
+import javassist.gluonj.weave.MethodConverter;
+import javassist.gluonj.weave.ReviserTree;
+import javassist.gluonj.weave.Weaver;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the weaving pipeline.
+ *
+ * <p>Every benchmark processes the whole generated {@link Program}.
+ * Since the weaver modifies the classes in a class pool, the state
+ * for a benchmark is rebuilt before every invocation and that cost
+ * is not measured.  Use <code>-prof gc</code> to see the allocation
+ * rate of every step.
+ *
+ * <ul>
+ * <li>toMap: {@link ReviserTree#toMap(ClassConverter)}, which also reads
+ * the methods and the predicates of the revisers.
+ * <li>prepare: {@link ClassConverter#prepare(HashMap,ClassPool)}.
+ * <li>revise: {@link ClassConverter#revise(CtClass)} on every class.
+ * <li>instrument: the bytecode rewriting by {@link MethodConverter} only.
+ * <li>transformClass: {@link Weaver#transformClass(String,byte[])} on
+ * every class file, which is what the load-time weaver does.
+ * <li>transformLarge: transformClass on a program with 25,000 or
+ * 100,000 clients, with and without {@link Weaver#setDetach(boolean)}.
+ * It reports the live heap after GC as <code>liveHeapMB</code> while
+ * the weaver is still reachable.  <code>programMB</code> is the live
+ * heap before weaving, which is mostly the generated class files.
+ * It is measured only once since JMH reports the sum of these counters
+ * over the iterations.
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeaveBenchmark {
+    @State(Scope.Benchmark)
+    public static class Input {
+        @Param({"50"})
+        public int hierarchies;
+
+        @Param({"4"})
+        public int depth;
+
+        @Param({"8"})
+        public int methods;
+
+        @Param({"4"})
+        public int revisers;
+
+        @Param({"1000"})
+        public int clients;
+
+        @Param({"1000"})
+        public int unaffected;
+
+        Program program;
+
+        @Setup(Level.Trial)
+        public void generate() throws Exception {
+            program = new Program(hierarchies, depth, methods, revisers, clients, unaffected);
+        }
+    }
+
+    /* The states are rebuilt before every invocation.
+     * Each state builds the steps before the one a benchmark measures.
+     */
+
+    @State(Scope.Thread)
+    public static class ToMapState {
+        ClassPool pool;
+        ReviserTree tree;
+        ClassConverter converter;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws Exception {
+            pool = in.program.newClassPool();
+            tree = in.program.newReviserTree(pool);
+            converter = new ClassConverter();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PrepareState extends ToMapState {
+        HashMap<CtClass,ReviserTree.ReviserList> revisers;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws Exception {
+            super.setup(in);
+            revisers = tree.toMap(converter);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ReviseState extends PrepareState {
+        ArrayList<CtClass> reviserClasses;
+        ArrayList<CtClass> otherClasses;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws Exception {
+            super.setup(in);
+            converter.prepare(revisers, pool);
+            reviserClasses = new ArrayList<CtClass>();
+            for (String name: in.program.getReviserNames())
+                reviserClasses.add(pool.get(name));
+
+            otherClasses = new ArrayList<CtClass>();
+            for (String name: in.program.getOtherNames())
+                otherClasses.add(pool.get(name));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class WeaverState {
+        Weaver weaver;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws Exception {
+            ClassPool pool = in.program.newClassPool();
+            weaver = new Weaver(in.program.newReviserTree(pool), pool);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LargeInput {
+        @Param({"25000", "100000"})
+        public int clients;
+
+        Program program;
+
+        @Setup(Level.Trial)
+        public void generate() throws Exception {
+            program = new Program(50, 4, 8, 4, clients, 0);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DetachState {
+        @Param({"false", "true"})
+        public boolean detach;
+
+        Weaver weaver;
+
+        @Setup(Level.Invocation)
+        public void setup(LargeInput in) throws Exception {
+            weaver = null;      // the previous weaver is reclaimed first
+            ClassPool pool = in.program.newClassPool();
+            weaver = new Weaver(in.program.newReviserTree(pool), pool);
+            weaver.setDetach(detach);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Heap {
+        public long programMB;
+        public long liveHeapMB;
+    }
+
+    @Benchmark
+    public Object toMap(ToMapState s) throws Exception {
+        return s.tree.toMap(s.converter);
+    }
+
+    @Benchmark
+    public Object prepare(PrepareState s) throws Exception {
+        s.converter.prepare(s.revisers, s.pool);
+        return s.converter;
+    }
+
+    /* The revisers are revised first as Weaver.transformFiles() does.
+     */
+    @Benchmark
+    public Object revise(ReviseState s) throws Exception {
+        for (CtClass c: s.reviserClasses)
+            s.converter.revise(c);
+
+        for (CtClass c: s.otherClasses)
+            s.converter.revise(c);
+
+        return s.converter;
+    }
+
+    @Benchmark
+    public Object instrument(ReviseState s) throws Exception {
+        MethodConverter conv = new MethodConverter(s.converter);
+        for (CtClass c: s.otherClasses)
+            c.instrument(conv);
+
+        return conv;
+    }
+
+    @Benchmark
+    public long transformClass(Input in, WeaverState s) throws Exception {
+        long size = 0;
+        for (String name: in.program.getReviserNames())
+            size += woven(in, s.weaver, name);
+
+        for (String name: in.program.getOtherNames())
+            size += woven(in, s.weaver, name);
+
+        return size;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 1)
+    @Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+    public long transformLarge(LargeInput in, DetachState s, Heap heap) throws Exception {
+        heap.programMB = liveHeap();
+        long size = 0;
+        for (String name: in.program.getReviserNames())
+            size += woven(in.program, s.weaver, name);
+
+        for (String name: in.program.getOtherNames())
+            size += woven(in.program, s.weaver, name);
+
+        heap.liveHeapMB = liveHeap();
+        return size;
+    }
+
+    private static int woven(Input in, Weaver weaver, String name) throws Exception {
+        return woven(in.program, weaver, name);
+    }
+
+    private static int woven(Program program, Weaver weaver, String name) throws Exception {
+        byte[] b = weaver.transformClass(name.replace('.', '/'), program.getClassFile(name));
+        return b == null ? 0 : b.length;
+    }
+
+    /* Returns the used heap in megabytes after GC.
+     */
+    private static long liveHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+    }
+}
@@ -0,0 +1,10 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.bench;
+
+/**
+ * The interface implemented by the generated clients of {@link Dispatch}.
+ */
+public interface Workload {
+    int run(int n);
+}
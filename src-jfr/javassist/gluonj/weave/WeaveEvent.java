@@ -0,0 +1,53 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event recorded for every call to {@link Weaver#transformClass}.
+ * It is used only if the JVM supports JFR (Java 11 or later).
+ * Since it is compiled only by JDK 11 or later (see the <code>jfr</code>
+ * profile in <code>pom.xml</code>), {@link WeaveStats} refers to this
+ * class through reflection.
+ */
+@Name("javassist.gluonj.Transform")
+@Label("GluonJ Transform")
+@Category({ "GluonJ" })
+@Description("Weaving of a class file by the load-time weaver")
+class WeaveEvent extends Event {
+    @Label("Class Name")
+    String className;
+
+    @Label("Outcome")
+    @Description("woven, cached, skipped, or error")
+    String outcome;
+
+    @Label("Bytes In")
+    int bytesIn;
+
+    @Label("Bytes Out")
+    int bytesOut;
+
+    static Object start() {
+        WeaveEvent e = new WeaveEvent();
+        e.begin();
+        return e;
+    }
+
+    static void end(Object event, String className, String outcome, int bytesIn, int bytesOut) {
+        WeaveEvent e = (WeaveEvent)event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.className = className;
+            e.outcome = outcome;
+            e.bytesIn = bytesIn;
+            e.bytesOut = bytesOut;
+            e.commit();
+        }
+    }
+}
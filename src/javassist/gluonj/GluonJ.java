@@ -13,4 +13,24 @@ public class GluonJ {
      * It returns the given argument as it is.
      */
     public static Object revise(Object obj) { return obj; }
+
+    /**
+     * Enables or disables a reviser annotated with {@link Switchable}.
+     * A disabled reviser's methods call the overridden methods.
+     * Its fields and constructors are still effective.
+     *
+     * @param reviserName   the fully-qualified name of the reviser.
+     */
+    public static void setEnabled(String reviserName, boolean on) {
+        javassist.gluonj.weave.ReviserSwitch.setEnabled(reviserName, on);
+    }
+
+    /**
+     * Returns true if the reviser is enabled.
+     *
+     * @param reviserName   the fully-qualified name of the reviser.
+     */
+    public static boolean isEnabled(String reviserName) {
+        return javassist.gluonj.weave.ReviserSwitch.isEnabled(reviserName);
+    }
 }
@@ -0,0 +1,16 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj;
+
+/**
+ * Indicates that a reviser can be disabled and enabled at runtime.
+ * It must be used with {@link Reviser}.
+ *
+ * @see GluonJ#setEnabled(String, boolean)
+ */
+public @interface Switchable {
+    /**
+     * True if the reviser is enabled when the program starts.
+     */
+    boolean value() default true;
+}
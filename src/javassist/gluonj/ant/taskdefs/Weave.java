@@ -16,6 +16,7 @@ import java.util.ArrayList;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.NotFoundException;
+import javassist.gluonj.weave.IndexedClassPath;
 import javassist.gluonj.weave.Weaver;
 import javassist.gluonj.weave.Logger;
 import javassist.gluonj.weave.ReviserTree;
@@ -23,16 +24,26 @@ import javassist.gluonj.weave.WeaveException;
 
 /**
  * Ant task for compile-time weaving.
+ * A jar file in the file sets is woven into a jar file with the same
+ * name in the destination directory.
  */
 public class Weave extends Task {
     private Path classpath;
     private ArrayList<FileSet> filesets;
     private String destdir;
+    private int threads;
+    private String cachedir;
+    private boolean detach;
+    private boolean indy;
 
     public Weave() {
         classpath = null;
         filesets = new ArrayList<FileSet>();
         destdir = ".";
+        threads = 1;
+        cachedir = null;
+        detach = false;
+        indy = false;
     }
 
     public void setClasspath(Path path) {
@@ -74,6 +85,53 @@ public class Weave extends Task {
         return destdir;
     }
 
+    /**
+     * Sets the number of threads used for weaving.
+     */
+    public void setThreads(int n) {
+        threads = n;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the directory where woven class files are cached.
+     * A class file is not woven again unless it or a reviser is modified.
+     */
+    public void setCachedir(String dir) {
+        cachedir = dir;
+    }
+
+    public String getCachedir() {
+        return cachedir;
+    }
+
+    /**
+     * If true, woven classes are detached from the class pool
+     * to bound the memory footprint.
+     */
+    public void setDetach(boolean value) {
+        detach = value;
+    }
+
+    public boolean getDetach() {
+        return detach;
+    }
+
+    /**
+     * If true, calls to revised methods declared in java.lang.Object
+     * are woven into invokedynamic.
+     */
+    public void setIndy(boolean value) {
+        indy = value;
+    }
+
+    public boolean getIndy() {
+        return indy;
+    }
+
     public void addFileset(FileSet fileset) {
         filesets.add(fileset);
     }
@@ -106,52 +164,70 @@ public class Weave extends Task {
     protected void execute0() throws BuildException, WeaveException, NotFoundException {
         ClassPool pool = makeClassPool();
         ReviserTree tree = new ReviserTree();
+        ArrayList<File> jars = new ArrayList<File>();
         for (FileSet fs: filesets) {
             DirectoryScanner ds
                 = fs.getDirectoryScanner(getProject());
             String[] files = ds.getIncludedFiles();
             File base = ds.getBasedir();
-            for (String fname: files) {
-                CtClass c = Weaver.readClass(pool, base, fname);
-                if (!tree.append(c.getName(), c, false))
-                    c.detach();     // not @Rivser
-            }
+            for (String fname: files)
+                if (fname.endsWith(".jar")) {
+                    File jar = new File(base, fname);
+                    if (new File(getDestdir(), jar.getName()).getAbsoluteFile()
+                            .equals(jar.getAbsoluteFile()))
+                        throw new WeaveException("the woven jar file would overwrite " + jar);
+
+                    pool.insertClassPath(new IndexedClassPath(jar.getPath()));
+                    jars.add(jar);
+                }
+                else {
+                    CtClass c = Weaver.readClass(pool, base, fname);
+                    if (!tree.append(c.getName(), c, false))
+                        c.detach();     // not @Rivser
+                }
         }
-        
+
+        for (File jar: jars)
+            for (CtClass c: Weaver.readRevisers(pool, jar))
+                tree.append(c.getName(), c, false);
+
         String dest = getDestdir();
         Weaver weaver = new Weaver(tree, pool);
         weaver.setOutputDir(dest);
+        weaver.setThreads(getThreads());
+        weaver.setIndyDispatch(getIndy());
+        weaver.setCacheDir(getCachedir());
+        weaver.setDetach(getDetach());
         tree = null;
         for (FileSet fs: filesets) {
             DirectoryScanner ds
                 = fs.getDirectoryScanner(getProject());
-            String[] files = ds.getIncludedFiles();
-            File base = ds.getBasedir();
-            for (String fname: files)
-                weaver.transformFile(base, fname);
+            ArrayList<String> files = new ArrayList<String>();
+            for (String fname: ds.getIncludedFiles())
+                if (!fname.endsWith(".jar"))
+                    files.add(fname);
+
+            if (files.size() > 0)
+                weaver.transformFiles(ds.getBasedir(), files.toArray(new String[files.size()]));
         }
 
+        for (File jar: jars)
+            weaver.transformJar(jar, new File(dest, jar.getName()));
+
         weaver.writeHelpers();
     }
 
     private ClassPool makeClassPool() throws NotFoundException {
-        ClassPool cp = new ClassPool(true);
+        ClassPool cp = Weaver.newClassPool(true);
         String[] path = getClasspath();
-        if (path != null)
-            for (int i = 0; i < path.length; i++) {
-                String dir = dirName(path[i]);
-                cp.appendClassPath(dir);
-            }
+        if (path != null && path.length > 0) {
+            StringBuilder list = new StringBuilder(path[0]);
+            for (int i = 1; i < path.length; i++)
+                list.append(File.pathSeparatorChar).append(path[i]);
 
-        return cp;
-    }
-
-    private static String dirName(String dir) {
-        String path = dir.replace(java.io.File.separatorChar, '/');
-        int len = path.length();
-        if (path.charAt(len - 1) == '/')
-            path = path.substring(0, len - 1);
+            cp.appendClassPath(new IndexedClassPath(list.toString()));
+        }
 
-        return path;
+        return cp;
     }
 }
@@ -0,0 +1,449 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMember;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.analysis.Analyzer;
+import javassist.bytecode.analysis.Frame;
+
+/**
+ * Fuses the revisers targeting the same class.
+ *
+ * <p>ClassConverter.reorderRevisers() makes such revisers a chain of
+ * subclasses.  A proceed call, <code>super.m()</code>, is an invokespecial
+ * instruction calling the method overridden in the super class.
+ * So a call to a method overridden by n revisers goes through n + 1 frames
+ * and uses up the inlining budget of the JIT compiler.
+ * ChainFuser replaces a proceed call in the most specific reviser
+ * overriding the method with a copy of the body of the called method
+ * if the body is safe to copy.  The body of the target class is never
+ * copied since the target class may be woven when it is loaded.
+ *
+ * <p>A body is safe to copy if it does not synchronize, does not catch
+ * an exception, does not use invokedynamic, and does not access a member
+ * or a class that would not be accessible from the reviser it is copied
+ * into.  A protected member declared in another package is regarded as
+ * inaccessible.
+ *
+ * <p>A copied body may include a proceed call to a method that is not
+ * safe to copy.  Since the proceed call is not executed in its original
+ * class any more, it is redirected to a final bridge method added to the
+ * reviser that the body was copied from.
+ */
+class ChainFuser {
+    /* HotSpot does not compile a method longer than this.
+     */
+    static final int MAX_CODE_LENGTH = 8000;
+
+    private ClassConverter converter;
+    private ClassPool pool;
+
+    ChainFuser(ClassConverter conv, ClassPool cp) {
+        converter = conv;
+        pool = cp;
+    }
+
+    /**
+     * Fuses the methods of the revisers.
+     *
+     * @param chain     the revisers in the order of the super classes.
+     *                  The last one is the most specific reviser.
+     */
+    void fuse(List<Reviser> chain) {
+        HashSet<String> done = new HashSet<String>();
+        for (int i = chain.size() - 1; i > 0; i--) {
+            CtClass cc = chain.get(i).body;
+            for (CtMethod m: cc.getDeclaredMethods())
+                if (done.add(m.getName() + m.getSignature()))
+                    fuse(cc, m.getMethodInfo2());
+        }
+    }
+
+    private void fuse(CtClass caller, MethodInfo minfo) {
+        CodeAttribute original = minfo.getCodeAttribute();
+        if (original == null || !minfo.isMethod()
+            || (minfo.getAccessFlags() & (AccessFlag.STATIC | AccessFlag.BRIDGE)) != 0)
+            return;
+
+        String name = minfo.getName();
+        String desc = minfo.getDescriptor();
+        ConstPool cp = minfo.getConstPool();
+        CodeAttribute code = (CodeAttribute)original.copy(cp, null);
+        int copies = 0;
+        try {
+            CodeIterator it = code.iterator();
+            while (it.hasNext()) {
+                int pos = it.next();
+                if (it.byteAt(pos) != Opcode.INVOKESPECIAL)
+                    continue;
+
+                int index = it.u16bitAt(pos + 1);
+                if (cp.getTag(index) != ConstPool.CONST_Methodref
+                    || !name.equals(cp.getMethodrefName(index))
+                    || !desc.equals(cp.getMethodrefType(index)))
+                    continue;
+
+                CtClass named = pool.get(cp.getMethodrefClassName(index));
+                if (named == caller || !caller.subclassOf(named))
+                    continue;
+
+                // the method that invokespecial in a subclass of named calls.
+                CtMethod callee = named.getMethod(name, desc);
+                if (canCopy(caller, callee, code.getCodeLength())) {
+                    copy(code, it, pos, callee.getMethodInfo2(), callee.getParameterTypes());
+                    it.move(pos);   // the copied body may include proceed calls.
+                    copies++;
+                }
+                else if (named != caller.getSuperclass())
+                    redirect(cp, it, pos, caller, named, name, desc);
+            }
+
+            if (copies == 0)
+                return;
+
+            if (code.getCodeLength() > MAX_CODE_LENGTH)
+                throw new BadBytecode("too long");
+
+            code.setMaxStack(code.computeMaxStack());
+            minfo.setCodeAttribute(code);
+            minfo.rebuildStackMapIf6(pool, caller.getClassFile());
+            Logger.print("Fusing.. " + caller.getName() + "." + name
+                         + " (" + copies + " bodies copied)");
+        }
+        catch (BadBytecode e) {
+            cannotFuse(caller, minfo, original, e);
+        }
+        catch (NotFoundException e) {
+            cannotFuse(caller, minfo, original, e);
+        }
+        catch (CannotCompileException e) {
+            cannotFuse(caller, minfo, original, e);
+        }
+    }
+
+    /* A bridge method added to another reviser is left since it
+     * is harmless.
+     */
+    private static void cannotFuse(CtClass caller, MethodInfo minfo,
+                                   CodeAttribute original, Exception e)
+    {
+        minfo.setCodeAttribute(original);
+        Logger.print(Logger.WARN, "cannot fuse " + caller.getName() + "."
+                     + minfo.getName() + ": " + e.getMessage());
+    }
+
+    /* Returns true if the body of the callee can be copied into
+     * the caller.
+     */
+    private boolean canCopy(CtClass caller, CtMethod callee, int length) {
+        CtClass declaring = callee.getDeclaringClass();
+        if (declaring == caller || !converter.isReviser(declaring.getName()))
+            return false;
+
+        MethodInfo minfo = callee.getMethodInfo2();
+        if ((minfo.getAccessFlags() & (AccessFlag.STATIC | AccessFlag.SYNCHRONIZED
+                                       | AccessFlag.ABSTRACT | AccessFlag.NATIVE)) != 0)
+            return false;
+
+        CodeAttribute ca = minfo.getCodeAttribute();
+        if (ca == null || ca.getExceptionTable().size() > 0
+            || length + ca.getCodeLength() + 64 > MAX_CODE_LENGTH)
+            return false;
+
+        try {
+            return isAccessible(caller, callee, ca) && leavesOnlyResult(callee);
+        }
+        catch (BadBytecode e) {
+            return false;
+        }
+        catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    private boolean isAccessible(CtClass caller, CtMethod callee, CodeAttribute ca)
+        throws BadBytecode, NotFoundException
+    {
+        ConstPool cp = ca.getConstPool();
+        CodeIterator it = ca.iterator();
+        while (it.hasNext()) {
+            int pos = it.next();
+            int op = it.byteAt(pos);
+            switch (op) {
+            case Opcode.JSR :
+            case Opcode.JSR_W :
+            case Opcode.RET :
+            case Opcode.INVOKEDYNAMIC :
+                return false;
+            case Opcode.WIDE :
+                if (it.byteAt(pos + 1) == Opcode.RET)
+                    return false;
+
+                break;
+            case Opcode.LDC :
+            case Opcode.LDC_W : {
+                int index = op == Opcode.LDC ? it.byteAt(pos + 1) : it.u16bitAt(pos + 1);
+                int tag = cp.getTag(index);
+                if (tag == ConstPool.CONST_Class) {
+                    if (!isAccessible(caller, cp.getClassInfo(index)))
+                        return false;
+                }
+                else if (tag != ConstPool.CONST_Integer && tag != ConstPool.CONST_Float
+                         && tag != ConstPool.CONST_String)
+                    return false;
+
+                break; }
+            case Opcode.NEW :
+            case Opcode.CHECKCAST :
+            case Opcode.INSTANCEOF :
+            case Opcode.ANEWARRAY :
+            case Opcode.MULTIANEWARRAY :
+                if (!isAccessible(caller, cp.getClassInfo(it.u16bitAt(pos + 1))))
+                    return false;
+
+                break;
+            case Opcode.GETFIELD :
+            case Opcode.PUTFIELD :
+            case Opcode.GETSTATIC :
+            case Opcode.PUTSTATIC : {
+                int index = it.u16bitAt(pos + 1);
+                String cname = cp.getFieldrefClassName(index);
+                if (!isAccessible(caller, cname)
+                    || !isAccessible(caller, pool.get(cname).getField(cp.getFieldrefName(index),
+                                                                     cp.getFieldrefType(index))))
+                    return false;
+
+                break; }
+            case Opcode.INVOKEVIRTUAL :
+            case Opcode.INVOKESTATIC :
+            case Opcode.INVOKEINTERFACE : {
+                int index = it.u16bitAt(pos + 1);
+                String cname, mname, mdesc;
+                if (cp.getTag(index) == ConstPool.CONST_InterfaceMethodref) {
+                    cname = cp.getInterfaceMethodrefClassName(index);
+                    mname = cp.getInterfaceMethodrefName(index);
+                    mdesc = cp.getInterfaceMethodrefType(index);
+                }
+                else {
+                    cname = cp.getMethodrefClassName(index);
+                    mname = cp.getMethodrefName(index);
+                    mdesc = cp.getMethodrefType(index);
+                }
+
+                if (!isAccessible(caller, cname)
+                    || !isAccessible(caller, pool.get(cname).getMethod(mname, mdesc)))
+                    return false;
+
+                break; }
+            case Opcode.INVOKESPECIAL : {
+                int index = it.u16bitAt(pos + 1);
+                if (cp.getTag(index) != ConstPool.CONST_Methodref)
+                    return false;
+
+                String cname = cp.getMethodrefClassName(index);
+                String mname = cp.getMethodrefName(index);
+                String mdesc = cp.getMethodrefType(index);
+                if (MethodInfo.nameInit.equals(mname)) {
+                    if (!isAccessible(caller, cname)
+                        || !isAccessible(caller, pool.get(cname).getConstructor(mdesc)))
+                        return false;
+                }
+                else if (!mname.equals(callee.getName()) || !mdesc.equals(callee.getSignature())
+                         || !callee.getDeclaringClass().subclassOf(pool.get(cname)))
+                    return false;   // only a proceed call is allowed.
+
+                break; }
+            default :
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isAccessible(CtClass caller, String className)
+        throws NotFoundException
+    {
+        if (className.charAt(0) == '[') {
+            int i = className.lastIndexOf('[') + 1;
+            if (className.charAt(i) != 'L')
+                return true;    // an array of a primitive type
+
+            className = className.substring(i + 1, className.length() - 1).replace('/', '.');
+        }
+
+        CtClass cc = pool.get(className);
+        return Modifier.isPublic(cc.getModifiers())
+               || cc.getPackageName() == null && caller.getPackageName() == null
+               || cc.getPackageName() != null && cc.getPackageName().equals(caller.getPackageName());
+    }
+
+    private boolean isAccessible(CtClass caller, CtMember m) throws NotFoundException {
+        int mod = m.getModifiers();
+        if (Modifier.isPublic(mod))
+            return true;
+        else if (Modifier.isPrivate(mod))
+            return false;
+        else {
+            String pkg = m.getDeclaringClass().getPackageName();
+            return pkg == null ? caller.getPackageName() == null
+                               : pkg.equals(caller.getPackageName());
+        }
+    }
+
+    /* Returns true if the operand stack holds only the result value
+     * at every return instruction.  Then a return instruction can be
+     * replaced with a jump.
+     */
+    private boolean leavesOnlyResult(CtMethod callee) throws BadBytecode, NotFoundException {
+        MethodInfo minfo = callee.getMethodInfo2();
+        CtClass type = callee.getReturnType();
+        int top = type == CtClass.voidType ? -1
+                  : type == CtClass.longType || type == CtClass.doubleType ? 1 : 0;
+        Frame[] frames = new Analyzer().analyze(callee.getDeclaringClass(), minfo);
+        CodeIterator it = minfo.getCodeAttribute().iterator();
+        while (it.hasNext()) {
+            int pos = it.next();
+            int op = it.byteAt(pos);
+            if (Opcode.IRETURN <= op && op <= Opcode.RETURN
+                && frames[pos] != null && frames[pos].getTopIndex() != top)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces the call instruction at pos with a copy of the body of
+     * the callee.  The receiver and the arguments are stored in new
+     * local variables and a return instruction is replaced with a jump
+     * to the end of the copied body.  The following padding is nop.
+     * The exception handlers of the body are also copied.  If there are
+     * such handlers, the operand stack must hold only the receiver and
+     * the arguments at pos.  The caller must compute the maximum stack
+     * size and the stack map.
+     *
+     * @param params    the parameter types of the callee.
+     */
+    static void copy(CodeAttribute code, CodeIterator it, int pos, MethodInfo callee,
+                     CtClass[] params)
+        throws BadBytecode
+    {
+        ConstPool cp = code.getConstPool();
+        CodeAttribute body = (CodeAttribute)callee.getCodeAttribute().copy(cp, null);
+        body.getAttributes().clear();
+        int base = code.getMaxLocals();
+        body.insertLocalVar(0, base);
+        ArrayList<Integer> returns = new ArrayList<Integer>();
+        CodeIterator bi = body.iterator();
+        while (bi.hasNext()) {
+            int p = bi.next();
+            int op = bi.byteAt(p);
+            if (Opcode.IRETURN <= op && op <= Opcode.RETURN) {
+                // a goto takes the last 2 bytes of the gap and the return.
+                CodeIterator.Gap gap = bi.insertGapAt(p, 2, false);
+                returns.add(gap.position + gap.length - 2);
+            }
+        }
+
+        int[] slots = new int[params.length];
+        int slot = base + 1;
+        for (int i = 0; i < params.length; i++) {
+            slots[i] = slot;
+            slot += params[i] == CtClass.longType || params[i] == CtClass.doubleType ? 2 : 1;
+        }
+
+        Bytecode prefix = new Bytecode(cp);
+        for (int i = params.length - 1; i >= 0; i--)
+            prefix.addStore(slots[i], params[i]);
+
+        prefix.addAstore(base);
+        byte[] pre = prefix.get();
+        byte[] copied = body.getCode();
+
+        /* The region is the gap and the call instruction.  A switch
+         * instruction in the copied body must be at the same position
+         * modulo 4 as in the original body.
+         */
+        CodeIterator.Gap gap = it.insertGapAt(pos, pre.length + copied.length, false);
+        int start = gap.position;
+        int end = start + gap.length + 3;
+        for (int i = start; i < end; i++)
+            it.writeByte(Opcode.NOP, i);
+
+        it.write(pre, start);
+        int bodyPos = (start + pre.length + 3) & ~3;
+        it.write(copied, bodyPos);
+        int bodyEnd = bodyPos + copied.length;
+        for (int r: returns) {
+            int p = bodyPos + r;
+            it.writeByte(Opcode.GOTO, p);
+            it.write16bit(bodyEnd - p, p + 1);
+        }
+
+        ExceptionTable handlers = body.getExceptionTable();
+        ExceptionTable table = code.getExceptionTable();
+        for (int i = handlers.size() - 1; i >= 0; i--)      // inner handlers first.
+            table.add(0, bodyPos + handlers.startPc(i), bodyPos + handlers.endPc(i),
+                      bodyPos + handlers.handlerPc(i), handlers.catchType(i));
+
+        code.setMaxLocals(base + callee.getCodeAttribute().getMaxLocals());
+    }
+
+    /* Replaces invokespecial at pos with invokevirtual calling a bridge
+     * method.  The bridge is added to the reviser whose super class is
+     * the class named by the invokespecial.
+     */
+    private void redirect(ConstPool cp, CodeIterator it, int pos, CtClass caller,
+                          CtClass named, String name, String desc)
+        throws NotFoundException, CannotCompileException
+    {
+        CtClass owner = caller;
+        while (owner.getSuperclass() != named)
+            owner = owner.getSuperclass();
+
+        String bridge = addBridge(owner, named, name, desc);
+        it.writeByte(Opcode.INVOKEVIRTUAL, pos);
+        it.write16bit(cp.addMethodrefInfo(cp.addClassInfo(owner), bridge, desc), pos + 1);
+    }
+
+    private String addBridge(CtClass owner, CtClass superClass, String name, String desc)
+        throws NotFoundException, CannotCompileException
+    {
+        String bridge = name + "_aop_super";
+        for (CtMethod m: owner.getDeclaredMethods())
+            if (m.getName().equals(bridge) && m.getSignature().equals(desc))
+                return bridge;
+
+        MethodInfo minfo = new MethodInfo(owner.getClassFile().getConstPool(), bridge, desc);
+        minfo.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.FINAL | AccessFlag.SYNTHETIC);
+        Bytecode code = new Bytecode(minfo.getConstPool(), 0, 0);
+        code.addAload(0);
+        int size = code.addLoadParameters(Descriptor.getParameterTypes(desc, pool), 1);
+        code.addInvokespecial(superClass, name, desc);
+        code.addReturn(Descriptor.getReturnType(desc, pool));
+        code.setMaxLocals(size + 1);
+        minfo.setCodeAttribute(code.toCodeAttribute());
+        owner.addMethod(CtMethod.make(minfo, owner));
+        return bridge;
+    }
+}
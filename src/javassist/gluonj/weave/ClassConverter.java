@@ -2,16 +2,38 @@
 
 package javassist.gluonj.weave;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javassist.*;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
 import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.BooleanMemberValue;
 
 /**
  * ClassConverter is responsible for transforming all classes.
  * It works with a MethodConverter.
+ *
+ * <p>After prepare() is called, revise() may be called on different
+ * classes by multiple threads at the same time.
  */
 public class ClassConverter {
     public static boolean inheritanceCheck = true;
@@ -26,12 +48,12 @@ public class ClassConverter {
         private List<Predicate> predicates;
 
         Method() {
-            predicates = new ArrayList<Predicate>();
+            predicates = new CopyOnWriteArrayList<Predicate>();
         }
 
         Method(Method m) {
             if (m == null)
-                predicates = new ArrayList<Predicate>();
+                predicates = new CopyOnWriteArrayList<Predicate>();
             else
                 predicates = m.predicates;
         }
@@ -65,7 +87,7 @@ public class ClassConverter {
          *
          * @param clazz     a reviser class.
          */
-        public void append(CtClass clazz, Predicate pred) throws NotFoundException {
+        public synchronized void append(CtClass clazz, Predicate pred) throws NotFoundException {
             for (Predicate p: predicates)
                 if (pred.equiv(p)) {
                     pred.setDuplicated(p);
@@ -75,6 +97,21 @@ public class ClassConverter {
             pred.appendTo(predicates);
         }
 
+        /* Writes the predicates into a snapshot.
+         */
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(predicates.size());
+            for (Predicate p: predicates)
+                p.write(out);
+        }
+
+        void readPredicates(DataInputStream in, ClassPool cp)
+            throws IOException, NotFoundException
+        {
+            for (int n = in.readInt(); n > 0; n--)
+                predicates.add(Predicate.read(in, cp));
+        }
+
         /**
          * Returns false if the method is declared in an unmodifiable class such
          * as java.lang.Class.  Such method needs special implementation.
@@ -106,7 +143,7 @@ public class ClassConverter {
      */
     public static class StdMethod extends Method {
         private String methodName, descriptor;
-        private ClassPool cpool;
+        private Cache base;
         private boolean directlyCallable;
 
         /* map from a class name into:
@@ -118,7 +155,17 @@ public class ClassConverter {
          *          null     if unknown, or
          *          NO       otherwise.
          */
-        private HashMap<String,String> declarer;
+        static class Cache {
+            final ClassPool cpool;
+            final ClassHierarchy hierarchy;
+            final HashMap<String,String> declarer;
+
+            Cache(ClassPool cp, ClassHierarchy h, HashMap<String,String> d) {
+                cpool = cp;
+                hierarchy = h;
+                declarer = d;
+            }
+        }
 
         private static final String INHERIT = "*inherit*";
         private static final String IMPL = "*impl*";
@@ -129,20 +176,92 @@ public class ClassConverter {
          * @param clazz     a reviser class.
          */
         public StdMethod(CtClass clazz, String name, String desc) throws NotFoundException {
+            this(clazz, name, desc, new ClassHierarchy());
+        }
+
+        /**
+         * @param clazz     a reviser class.
+         * @param index     the class hierarchy shared among generic functions.
+         */
+        StdMethod(CtClass clazz, String name, String desc, ClassHierarchy index)
+            throws NotFoundException
+        {
             methodName = name;
             descriptor = desc;
-            declarer = new HashMap<String,String>();
-            cpool = clazz.getClassPool();
+            base = new Cache(clazz.getClassPool(), index, new HashMap<String,String>());
             directlyCallable = true;
             recordSuperTypes(clazz);
         }
 
+        /**
+         * Reads a generic function written by write().
+         */
+        StdMethod(DataInputStream in, ClassPool cp, ClassHierarchy index)
+            throws IOException
+        {
+            methodName = in.readUTF();
+            descriptor = in.readUTF();
+            directlyCallable = in.readBoolean();
+            HashMap<String,String> declarer = new HashMap<String,String>();
+            for (int n = in.readInt(); n > 0; n--) {
+                String className = in.readUTF();
+                String declName = in.readUTF();
+                if (declName.equals(INHERIT))
+                    declName = INHERIT;
+                else if (declName.equals(IMPL))
+                    declName = IMPL;
+                else if (declName.equals(IMPL_L))
+                    declName = IMPL_L;
+                else if (declName.equals(NO))
+                    declName = NO;
+
+                declarer.put(className, declName);
+            }
+
+            base = new Cache(cp, index, declarer);
+        }
+
+        /* The cache of a scope is not written.
+         */
+        synchronized void write(DataOutputStream out) throws IOException {
+            out.writeUTF(methodName);
+            out.writeUTF(descriptor);
+            out.writeBoolean(directlyCallable);
+            out.writeInt(base.declarer.size());
+            for (Map.Entry<String,String> e: base.declarer.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+
+            super.write(out);
+        }
+
         public boolean callDirectly() { return directlyCallable; }
 
+        /* Returns the cache for the current scope of mt.
+         * The cache for a scope starts with a copy of what has been
+         * recorded for the revisers.
+         */
+        private Cache cache(ClassConverter mt) {
+            Scope s = mt.scope.get();
+            if (s == null)
+                return base;
+
+            synchronized (s.caches) {
+                Cache c = s.caches.get(this);
+                if (c == null) {
+                    c = new Cache(s.pool, s.hierarchy, new HashMap<String,String>(base.declarer));
+                    s.caches.put(this, c);
+                }
+
+                return c;
+            }
+        }
+
         /**
          * Appends another class if it also declares the method.
          */
-        public void append(CtClass clazz, Predicate p) throws NotFoundException {
+        public synchronized void append(CtClass clazz, Predicate p) throws NotFoundException {
             super.append(clazz, p);
             recordSuperTypes(clazz);
         }
@@ -152,9 +271,8 @@ public class ClassConverter {
          *
          * @param className     the static type of the receiver object.
          */
-        public boolean invokedOn(String className, ClassConverter mt) throws NotFoundException {
-            CtClass cc = cpool.get(className);
-            String declName = invokedOn2(cc, mt);
+        public synchronized boolean invokedOn(String className, ClassConverter mt) throws NotFoundException {
+            String declName = invokedOn2(className, mt, cache(mt));
             return declName != null && declName != IMPL_L;
         }
 
@@ -164,41 +282,37 @@ public class ClassConverter {
          *
          * @param className     the static type of the receiver object.
          */
-        public boolean maybeInvokedOn(String className, ClassConverter mt) throws NotFoundException {
-            CtClass cc = cpool.get(className);
-            return invokedOn2(cc, mt) != null;
+        public synchronized boolean maybeInvokedOn(String className, ClassConverter mt) throws NotFoundException {
+            return invokedOn2(className, mt, cache(mt)) != null;
         }
 
-        private String invokedOn2(CtClass cc, ClassConverter mt) throws NotFoundException {
-            String className = cc.getName();
-            String declName = declarer.get(className);
+        private String invokedOn2(String className, ClassConverter mt, Cache c) throws NotFoundException {
+            String declName = c.declarer.get(className);
             if (declName == null) {
-                CtClass superClass = cc.getSuperclass();
-                if (superClass != null) {    // if superClass is not java.lang.Object
-                    String newSuperName = mt.getNewClassName(superClass.getName());
-                    if (newSuperName != null) {
-                        CtClass superClass2 = cc.getClassPool().get(newSuperName);
-                        if (!superClass2.subclassOf(cc))
-                            superClass = superClass2;
-                    }
-
-                    declName = invokedOn2(superClass, mt);
+                String superName = c.hierarchy.get(c.cpool, className).superName;
+                if (superName != null) {    // if className is not java.lang.Object
+                    String newSuperName = mt.getNewClassName(superName);
+                    if (newSuperName != null
+                        && !c.hierarchy.subclassOf(c.cpool, newSuperName, className))
+                        superName = newSuperName;
+
+                    declName = invokedOn2(superName, mt, c);
                 }
 
                 if (declName == null) {
-                    declarer.put(className, NO);
+                    c.declarer.put(className, NO);
                     return null;
                 }
-                else if (declName == IMPL || declName == INHERIT || declaredIn(cc)) {
+                else if (declName == IMPL || declName == INHERIT || declaredIn(className, c)) {
                     /* A sibling is a reviser class.
                      * A subclass is not a reviser class.
                      * If it is so, declarer.get(className) should return non null. 
                      */
-                    declarer.put(className, IMPL_L);
+                    c.declarer.put(className, IMPL_L);
                     return IMPL_L;
                 }
                 else {
-                    declarer.put(className, declName);
+                    c.declarer.put(className, declName);
                     return declName;
                 }
             }
@@ -206,27 +320,19 @@ public class ClassConverter {
                 if (declName == NO)
                     return null;
                 else if (declName == INHERIT) {
-                    declName = checkSuperClasses(cc.getSuperclass());
+                    declName = checkSuperClasses(c.hierarchy.get(c.cpool, className).superName, c);
                     if (declName == null)
                         return INHERIT;
                     else
-                        declarer.put(className, declName);
+                        c.declarer.put(className, declName);
                 }
 
                 return declName;
             }
         }
 
-        private boolean declaredIn(CtClass cc) {
-            CtMethod[] methods = cc.getDeclaredMethods();
-            String name = methodName;
-            String desc = descriptor;
-            for (CtMethod m: methods)
-                if (m.getName().equals(name) && m.getSignature().equals(desc)) {
-                    return true;
-                }
-
-            return false;
+        private boolean declaredIn(String className, Cache c) throws NotFoundException {
+            return c.hierarchy.get(c.cpool, className).declares(methodName, descriptor);
         }
 
         /**
@@ -238,19 +344,19 @@ public class ClassConverter {
          *
          * checkSuperClasses() fixes this problem.
          */
-        private String checkSuperClasses(CtClass cc) throws NotFoundException {
-            if (cc == null)
+        private String checkSuperClasses(String className, Cache c) throws NotFoundException {
+            if (className == null)
                 return null;
             else {
-                String declName = declarer.get(cc.getName());
+                String declName = c.declarer.get(className);
                 // declName = null, NO, INHERIT, IMPL, or IMPL_L
                 if (declName == NO)
                     return null;
                 else if (declName == INHERIT) {
-                    declName = checkSuperClasses(cc.getSuperclass());
+                    declName = checkSuperClasses(c.hierarchy.get(c.cpool, className).superName, c);
                     if (declName != null && declName != INHERIT
                         && declName != IMPL && declName != IMPL_L)  // if declName is a class name
-                        declarer.put(cc.getName(), declName);
+                        c.declarer.put(className, declName);
                 }
 
                 return declName;
@@ -265,35 +371,31 @@ public class ClassConverter {
              * Note that a super class of that class might be another
              * reviser class.
              */
-            recordSuperTypes2(cc.getSuperclass(), true);
+            recordSuperTypes2(base.hierarchy.get(cc).superName, true);
             String cname = cc.getName();
-            declarer.put(cname, cname);
+            base.declarer.put(cname, cname);
         }
 
-        private String recordSuperTypes2(CtClass cc, boolean isClass) throws NotFoundException {
-            String found = declarer.get(cc.getName());
+        private String recordSuperTypes2(String className, boolean isClass) throws NotFoundException {
+            String found = base.declarer.get(className);
             // When recordSuperTypes() is called, declarer never contains NO.
             if (found == IMPL_L)
                 return IMPL;
             else if (found != null)
                 return found;
 
+            ClassHierarchy.Entry entry = base.hierarchy.get(base.cpool, className);
             String declName = null;
-            CtMethod[] methods = cc.getDeclaredMethods();
-            for (CtMethod m: methods)
-                if (m.getName().equals(methodName) && m.getSignature().equals(descriptor)) {
-                    declName = IMPL;    // implemented here.
-                    break;
-                }
+            if (entry.declares(methodName, descriptor))
+                declName = IMPL;    // implemented here.
 
             if (isClass) {
-                CtClass superClass = cc.getSuperclass();
-                if (superClass == null) {   // if superClass is java.lang.Object
+                if (entry.superName == null) {   // if className is java.lang.Object
                     if (declName != null)   // if declName == IMPL
                         directlyCallable = false;
                 }
                 else {
-                    String declName2 = recordSuperTypes2(superClass, true);
+                    String declName2 = recordSuperTypes2(entry.superName, true);
                     if (declName == null)
                         if (declName2 == IMPL)
                             declName = INHERIT;
@@ -302,8 +404,7 @@ public class ClassConverter {
                 }
             }
 
-            CtClass[] interfaces = cc.getInterfaces();
-            for (CtClass intf: interfaces) {
+            for (String intf: entry.interfaceNames) {
                 String declName2 = recordSuperTypes2(intf, false);
                 if (declName == null)
                     if (declName2 == IMPL)
@@ -313,26 +414,98 @@ public class ClassConverter {
             }
 
             if (declName != null)
-                declarer.put(cc.getName(), declName);
+                base.declarer.put(className, declName);
 
             return declName;
         }
     }
 
+    /**
+     * The class pool and the caches used for revising the classes
+     * loaded by a class loader other than the loader of the revisers.
+     * While a thread revises those classes, their scope must be set
+     * by {@link ClassConverter#setScope(Scope)}.
+     *
+     * <p>The revisers and the method tables made by prepare() are shared
+     * among all the scopes.  The class hierarchy and what is learned
+     * about the classes from it are recorded per scope since the same
+     * class name may denote different classes in different scopes.
+     */
+    public static class Scope {
+        final ClassPool pool;
+        final ClassHierarchy hierarchy;
+        final IdentityHashMap<StdMethod,StdMethod.Cache> caches;
+
+        /**
+         * @param cp        the class pool reading classes from the class loader.
+         */
+        public Scope(ClassPool cp) {
+            pool = cp;
+            hierarchy = new ClassHierarchy();
+            caches = new IdentityHashMap<StdMethod,StdMethod.Cache>();
+        }
+
+        public ClassPool getClassPool() { return pool; }
+    }
+
     private MethodConverter methodConv;
-    private HashMap<String,Method> methods;     // method names to Method objects
-    private HashMap<String,String> classNames;  // original names to new names
-    private HashMap<String,String> reviserNames;
-    private HashMap<String,String> interfaceNames; // original names to new names
+    private ThreadLocal<WeakReference<MethodConverter>> localConv;  // see localConverter()
+    private ConcurrentHashMap<String,Method> methods;     // method names to Method objects
+    private ConcurrentHashMap<String,String> methodNames; // the names of the keys of methods
+    private volatile int version;               // incremented when methods is modified
+    private ConcurrentHashMap<String,String> classNames;  // original names to new names
+    private ConcurrentHashMap<String,String> reviserNames;
+    private ConcurrentHashMap<String,String> interfaceNames; // original names to new names
     private ArrayList<CtClass> helpers;         // implicitly generated helpers
+    private ConstPoolFilter filter;             // null if every class may be revised
+    private ClassHierarchy hierarchy;           // shared among StdMethods
+    private boolean indyDispatch;               // see setIndyDispatch()
+    private ClassPool sharedPool;               // the class pool of the revisers
+    private ThreadLocal<Scope> scope;           // the current scope or null
+    private ConcurrentHashMap<String,String> helperNames;
+    private ArrayList<List<Reviser>> chains;    // revisers targeting the same class
+    private boolean mergeRevisers;              // see setMergeRevisers()
+    private ConcurrentHashMap<String,List<ReviserMerger.Source>> merged; // target names to revisers
+    private ConcurrentHashMap<String,String> mergedNames; // merged revisers to their targets
+    private ClassMap mergeMap;                  // null if no reviser is merged
 
     public ClassConverter() {
-        methods = new HashMap<String,Method>();
-        classNames = new HashMap<String,String>();
-        interfaceNames = new HashMap<String,String>();
-        reviserNames = new HashMap<String,String>();
+        methods = new ConcurrentHashMap<String,Method>();
+        methodNames = new ConcurrentHashMap<String,String>();
+        version = 0;
+        classNames = new ConcurrentHashMap<String,String>();
+        interfaceNames = new ConcurrentHashMap<String,String>();
+        reviserNames = new ConcurrentHashMap<String,String>();
         helpers = new ArrayList<CtClass>();
         methodConv = null;
+        filter = null;
+        hierarchy = new ClassHierarchy();
+        indyDispatch = false;
+        sharedPool = null;
+        scope = new ThreadLocal<Scope>();
+        helperNames = new ConcurrentHashMap<String,String>();
+        chains = new ArrayList<List<Reviser>>();
+        mergeRevisers = false;
+        merged = new ConcurrentHashMap<String,List<ReviserMerger.Source>>();
+        mergedNames = new ConcurrentHashMap<String,String>();
+        mergeMap = null;
+        localConv = new ThreadLocal<WeakReference<MethodConverter>>();
+    }
+
+    /* Returns a copy of methodConv for the current thread.
+     * The thread refers to the copy only weakly.  Otherwise, since the copy
+     * refers to this converter, a thread outliving this converter, such as
+     * the thread running the Ant task, would keep it and its class pool.
+     */
+    private MethodConverter localConverter() {
+        WeakReference<MethodConverter> ref = localConv.get();
+        MethodConverter conv = ref == null ? null : ref.get();
+        if (conv == null) {
+            conv = new MethodConverter(this, methodConv);
+            localConv.set(new WeakReference<MethodConverter>(conv));
+        }
+
+        return conv;
     }
 
     public void recordNewClassName(String oldName, String newClassName) {
@@ -355,6 +528,40 @@ public class ClassConverter {
         return interfaceNames.get(oldName);
     }
 
+    /**
+     * If true, a call to a revised method declared in an unmodifiable
+     * class such as java.lang.Object is replaced with invokedynamic
+     * linked by {@link InlineCache}.  Otherwise, the call is preceded by
+     * <code>instanceof</code> on a marker type.  The former is used only
+     * in class files of Java 7 or later.  It must be called before
+     * revise().
+     */
+    public void setIndyDispatch(boolean b) {
+        indyDispatch = b;
+    }
+
+    public boolean isIndyDispatch() { return indyDispatch; }
+
+    /**
+     * If true, the revisers targeting a class are merged into that class
+     * instead of being chained if they can be.  It must be called before
+     * prepare().
+     *
+     * @see ReviserMerger
+     */
+    public void setMergeRevisers(boolean b) {
+        mergeRevisers = b;
+    }
+
+    public boolean isMergeRevisers() { return mergeRevisers; }
+
+    /**
+     * Returns true if the class is a reviser merged into its target.
+     */
+    public boolean isMerged(String name) {
+        return mergedNames.containsKey(name);
+    }
+
     public void addReviser(String name) {
         reviserNames.put(name, name);
     }
@@ -363,32 +570,83 @@ public class ClassConverter {
         return reviserNames.get(name) != null;
     }
 
-    public void addHelper(CtClass cc) {
+    public synchronized void addHelper(CtClass cc) {
         helpers.add(cc);
+        helperNames.put(cc.getName(), cc.getName());
+    }
+
+    /**
+     * Returns true if the class is a reviser or a helper.
+     * Such a class must be obtained from the class pool given to prepare()
+     * whatever the current scope is.
+     */
+    public boolean isShared(String name) {
+        return isReviser(name) || helperNames.containsKey(name);
+    }
+
+    /**
+     * Returns the class pool given to prepare().
+     */
+    public ClassPool getSharedPool() { return sharedPool; }
+
+    /**
+     * Sets the scope used by the current thread.
+     *
+     * @param s     the scope, or null if the classes are in the class
+     *              pool given to prepare().
+     * @return      the previous scope.
+     */
+    public Scope setScope(Scope s) {
+        Scope old = scope.get();
+        if (s == null)
+            scope.remove();
+        else
+            scope.set(s);
+
+        return old;
+    }
+
+    /* Discards what is recorded on the class since it is modified.
+     */
+    private void forget(String className) {
+        hierarchy.remove(className);
+        Scope s = scope.get();
+        if (s != null)
+            s.hierarchy.remove(className);
     }
 
-    public ArrayList<CtClass> getHelpers() {
+    public synchronized ArrayList<CtClass> getHelpers() {
         return helpers;
     }
 
     public Method lookupMethod(String methodName, String descriptor)
         throws NotFoundException
     {
+        if (methodNames.get(methodName) == null)
+            return null;    // no string concatenation for most methods
+
         String key = methodName + ":" + descriptor;
         return methods.get(key);
     }
 
+    /**
+     * Returns a number that changes when a method is recorded.
+     * A caller can cache the results of lookupMethod() while the number
+     * does not change.
+     */
+    public int getVersion() { return version; }
+
     public void recordMethod(CtClass reviser, CtClass target, CtMethod m, Predicate p) throws NotFoundException {
         String key = m.getName() + ":" + m.getSignature();
         Method found = methods.get(key);
         if (target.isInterface()) {
             found = new IntfMethod(found);
-            methods.put(key, found);
+            putMethod(key, m.getName(), found);
         }
         else {
             if (found == null) {
-                found = new StdMethod(reviser, m.getName(), m.getSignature());
-                methods.put(key, found);
+                found = new StdMethod(reviser, m.getName(), m.getSignature(), hierarchy);
+                putMethod(key, m.getName(), found);
             }
         }
 
@@ -396,6 +654,12 @@ public class ClassConverter {
             found.append(reviser, p);
     }
 
+    private void putMethod(String key, String name, Method m) {
+        methodNames.put(name, name);
+        methods.put(key, m);
+        version++;
+    }
+
     // transformation
     // the entry points are prepare() and revise().
 
@@ -407,6 +671,7 @@ public class ClassConverter {
      public void prepare(HashMap<CtClass,ReviserTree.ReviserList> allRevisers, ClassPool cp)
          throws WeaveException
      {
+         sharedPool = cp;
          MethodConverter conv = new MethodConverter(this);
          for (Map.Entry<CtClass,ReviserTree.ReviserList> e: allRevisers.entrySet()) {
              CtClass target = e.getKey();
@@ -428,11 +693,279 @@ public class ClassConverter {
                  if (cls.size() > 0)
                      conv.replaceNewIClass(target, cls);
              }
+             else if (mergeRevisers && canMerge(target, list.getList(), allRevisers)) {
+                 ArrayList<CtClass> revs = new ArrayList<CtClass>();
+                 for (Reviser r: list.getList())
+                     revs.add(r.body);
+
+                 try {
+                     recordMerged(target.getName(), revs);
+                 }
+                 catch (NotFoundException nfe) {
+                     throw new WeaveException(nfe);
+                 }
+             }
              else
                  reorderRevisers(target, list.getList());
          }
 
          methodConv = conv;
+         filter = makeFilter(conv);
+     }
+
+     private static boolean canMerge(CtClass target, List<Reviser> list,
+                                     HashMap<CtClass,ReviserTree.ReviserList> all)
+         throws WeaveException
+     {
+         try {
+             String reason = ReviserMerger.cannotMerge(target, list, all);
+             if (reason == null)
+                 return true;
+
+             Logger.print("Not merging.. " + target.getName() + ": " + reason);
+             return false;
+         }
+         catch (NotFoundException e) {
+             throw new WeaveException(e);
+         }
+     }
+
+     /* Records the revisers merged into the target.  They are still
+      * revisers but revise() does not modify them.
+      */
+     private void recordMerged(String target, List<CtClass> revisers)
+         throws NotFoundException
+     {
+         ArrayList<ReviserMerger.Source> sources = new ArrayList<ReviserMerger.Source>();
+         for (CtClass cc: revisers) {
+             addReviser(cc.getName());
+             mergedNames.put(cc.getName(), target);
+             sources.add(new ReviserMerger.Source(cc));
+         }
+
+         merged.put(target, sources);
+         if (mergeMap == null)
+             mergeMap = new ClassMap();
+
+         for (CtClass cc: revisers)
+             mergeMap.put(cc.getName(), target);
+     }
+
+     /**
+      * Copies the bodies of the methods overridden by the revisers
+      * targeting the same class into the overriding methods.
+      * It must be called after the revisers are revised.
+      * A chain of revisers including one not in the given set is not fused.
+      * What is recorded for a restore() is not changed.
+      *
+      * @see ChainFuser
+      */
+     public synchronized void fuseChains(Set<CtClass> revised) {
+         ChainFuser fuser = new ChainFuser(this, sharedPool);
+         for (List<Reviser> chain: chains) {
+             boolean all = true;
+             for (Reviser r: chain)
+                 all &= revised.contains(r.body);
+
+             if (all) {
+                 fuser.fuse(chain);
+                 for (Reviser r: chain)
+                     forget(r.body.getName());
+             }
+         }
+     }
+
+     /**
+      * Writes what prepare() has recorded into a snapshot.  The class files
+      * of the revisers and the helpers are not written.
+      *
+      * @see #restore(DataInputStream, ClassPool)
+      */
+     public synchronized void writeState(DataOutputStream out) throws IOException {
+         writeNames(out, reviserNames);
+         writeNames(out, classNames);
+         writeNames(out, interfaceNames);
+         out.writeInt(merged.size());
+         for (Map.Entry<String,List<ReviserMerger.Source>> e: merged.entrySet()) {
+             out.writeUTF(e.getKey());
+             out.writeInt(e.getValue().size());
+             for (ReviserMerger.Source src: e.getValue())
+                 out.writeUTF(src.name);
+         }
+
+         out.writeInt(methods.size());
+         for (Map.Entry<String,Method> e: methods.entrySet()) {
+             out.writeUTF(e.getKey());
+             out.writeBoolean(e.getValue() instanceof StdMethod);
+             e.getValue().write(out);
+         }
+
+         out.writeInt(helpers.size());
+         for (CtClass cc: helpers)
+             out.writeUTF(cc.getName());
+
+         methodConv.writeRecords(out);
+     }
+
+     /**
+      * Restores what prepare() recorded from a snapshot written by
+      * writeState().  It is called instead of prepare().
+      * The revisers and the helpers must be in the class pool.
+      */
+     public void restore(DataInputStream in, ClassPool cp)
+         throws IOException, NotFoundException
+     {
+         sharedPool = cp;
+         readNames(in, reviserNames);
+         readNames(in, classNames);
+         readNames(in, interfaceNames);
+         for (int n = in.readInt(); n > 0; n--) {
+             String target = in.readUTF();
+             ArrayList<CtClass> revs = new ArrayList<CtClass>();
+             for (int k = in.readInt(); k > 0; k--)
+                 revs.add(cp.get(in.readUTF()));
+
+             recordMerged(target, revs);
+         }
+
+         for (int n = in.readInt(); n > 0; n--) {
+             String key = in.readUTF();
+             Method m;
+             if (in.readBoolean())
+                 m = new StdMethod(in, cp, hierarchy);
+             else
+                 m = new IntfMethod(null);
+
+             m.readPredicates(in, cp);
+             putMethod(key, key.substring(0, key.indexOf(':')), m);
+         }
+
+         for (int n = in.readInt(); n > 0; n--)
+             addHelper(cp.get(in.readUTF()));
+
+         MethodConverter conv = new MethodConverter(this);
+         conv.readRecords(in, cp);
+         methodConv = conv;
+         filter = makeFilter(conv);
+     }
+
+     private static void writeNames(DataOutputStream out, Map<String,String> names)
+         throws IOException
+     {
+         out.writeInt(names.size());
+         for (Map.Entry<String,String> e: names.entrySet()) {
+             out.writeUTF(e.getKey());
+             out.writeUTF(e.getValue());
+         }
+     }
+
+     private static void readNames(DataInputStream in, Map<String,String> names)
+         throws IOException
+     {
+         for (int n = in.readInt(); n > 0; n--)
+             names.put(in.readUTF(), in.readUTF());
+     }
+
+     /* If a class reviser targets an interface, any class may be
+      * revised when it creates an object.  No filter is made then.
+      */
+     private ConstPoolFilter makeFilter(MethodConverter conv) {
+         if (conv.replacesNewIClass())
+             return null;
+
+         ArrayList<String> names = new ArrayList<String>();
+         for (String key: methods.keySet())
+             names.add(key.substring(0, key.indexOf(':')));
+
+         for (String name: classNames.keySet())
+             names.add(name.replace('.', '/'));
+
+         for (String name: interfaceNames.keySet())
+             names.add(name.replace('.', '/'));
+
+         ArrayList<String> types = new ArrayList<String>();
+         for (String name: mergedNames.keySet())
+             types.add(name.replace('.', '/'));
+
+         return new ConstPoolFilter(names, types);
+     }
+
+     /**
+      * Returns false if revise() never modifies the given class file.
+      * It only scans the constant pool of the class file.
+      * prepare() has to be called in advance.
+      *
+      * @param className     the class name.
+      * @param classFile     the original class file.
+      */
+     public boolean mayRevise(String className, byte[] classFile) {
+         return filter == null || isReviser(className) || merged.containsKey(className)
+                || filter.mayRefer(classFile);
+     }
+
+     /**
+      * Returns what revise() modifies in the given class.
+      * The returned string consists of the following letters:
+      * R (the class is a reviser), H (the super class or an interface is
+      * replaced), M (revisers are merged into the class), N (a revised
+      * class is referred to, for example, instantiated), and C (a revised
+      * method is called or overridden).
+      * It may be empty even if mayRevise() returns true.
+      * prepare() has to be called in advance.
+      */
+     public String getRevisionKinds(ClassFile cf) throws NotFoundException {
+         StringBuilder kinds = new StringBuilder();
+         if (isReviser(cf.getName()))
+             kinds.append('R');
+         else {
+             boolean replaced = getNewClassName(cf.getSuperclass()) != null;
+             for (String intf: cf.getInterfaces())
+                 if (getNewInterfaceName(intf) != null)
+                     replaced = true;
+
+             if (replaced)
+                 kinds.append('H');
+
+             if (merged.containsKey(cf.getName()))
+                 kinds.append('M');
+         }
+
+         ConstPool cp = cf.getConstPool();
+         boolean refers = false, calls = false;
+         for (int i = 1; i < cp.getSize(); i++) {
+             int tag = cp.getTag(i);
+             if (tag == ConstPool.CONST_Class) {
+                 String name = cp.getClassInfo(i);
+                 if (!name.equals(cf.getName()) && getNewClassName(name) != null)
+                     refers = true;
+             }
+             else if (tag == ConstPool.CONST_Methodref) {
+                 if (lookupMethod(cp.getMethodrefName(i), cp.getMethodrefType(i)) != null)
+                     calls = true;
+             }
+             else if (tag == ConstPool.CONST_InterfaceMethodref)
+                 if (lookupMethod(cp.getInterfaceMethodrefName(i),
+                                  cp.getInterfaceMethodrefType(i)) != null)
+                     calls = true;
+         }
+
+         for (Object m: cf.getMethods()) {
+             MethodInfo minfo = (MethodInfo)m;
+             if (lookupMethod(minfo.getName(), minfo.getDescriptor()) != null)
+                 calls = true;
+         }
+
+         if (mergeMap != null && !isReviser(cf.getName())
+             && ReviserMerger.refersTo(cf, mergeMap.keySet()))
+             refers = true;
+
+         if (refers)
+             kinds.append('N');
+
+         if (calls)
+             kinds.append('C');
+
+         return kinds.toString();
      }
 
      /**
@@ -444,6 +977,16 @@ public class ClassConverter {
      public void revise(CtClass clazz)
          throws WeaveException, NotFoundException, CannotCompileException
      {
+         if (isMerged(clazz.getName()))
+             return;     // it is loaded only through reflection.
+
+         List<ReviserMerger.Source> revisers = merged.get(clazz.getName());
+         if (revisers != null)
+             ReviserMerger.merge(clazz, revisers);
+
+         if (mergeMap != null && ReviserMerger.refersTo(clazz.getClassFile2(), mergeMap.keySet()))
+             clazz.replaceClassName(mergeMap);
+
          String newSuperName = getNewClassName(clazz.getSuperclass().getName());
          if (newSuperName != null && !isReviser(clazz.getName())) {
              CtClass cc = clazz.getClassPool().get(newSuperName);
@@ -454,11 +997,19 @@ public class ClassConverter {
          if (!isReviser(clazz.getName()))
              reviseImplements(clazz);
 
+         forget(clazz.getName());
          if (inheritanceCheck)
              checkInheritance(new HashMap<String,CtMethod>(), clazz);
 
-         clazz.instrument(methodConv);
-         methodConv.revise(clazz);
+         MethodConverter conv = localConverter();
+         clazz.instrument(conv);
+         conv.revise(clazz);
+         if (isReviser(clazz.getName()) && !clazz.isInterface()) {
+             Annotation switchable = ReviserTree.getSwitchable(clazz);
+             if (switchable != null)
+                 insertSwitches(clazz, switchable);
+         }
+
          for (CtMethod cm: clazz.getDeclaredMethods()) {
              ClassConverter.Method m = lookupMethod(cm.getName(), cm.getSignature());
              if (m != null) {
@@ -471,6 +1022,103 @@ public class ClassConverter {
                  }
              }
          }
+
+         forget(clazz.getName());
+     }
+
+     private static final String SWITCH_BOOTSTRAP
+         = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+           + "Ljava/lang/invoke/MethodType;Ljava/lang/String;I)Ljava/lang/invoke/CallSite;";
+
+     /**
+      * Inserts the following guard at the beginning of every method
+      * overriding a method of the super class.  See ReviserSwitch.
+      *
+      *     invokedynamic enabled()Z    (or invokestatic ReviserSwitch.isEnabled)
+      *     ifne L
+      *     aload_0
+      *     (load the parameters)
+      *     invokespecial super.method
+      *     return
+      * L:  (the original body)
+      */
+     private void insertSwitches(CtClass clazz, Annotation switchable)
+         throws NotFoundException, CannotCompileException
+     {
+         BooleanMemberValue value = (BooleanMemberValue)switchable.getMemberValue("value");
+         int initial = value == null || value.getValue() ? 1 : 0;
+         ClassFile cf = clazz.getClassFile();
+         ConstPool cp = cf.getConstPool();
+         CtClass superclass = clazz.getSuperclass();
+         boolean indy = cf.getMajorVersion() >= ClassFile.JAVA_7;
+         int bootstrap = -1;
+         for (CtMethod cm: clazz.getDeclaredMethods()) {
+             int mod = cm.getModifiers();
+             if (Modifier.isStatic(mod) || Modifier.isPrivate(mod) || Modifier.isAbstract(mod)
+                 || Modifier.isNative(mod) || (mod & AccessFlag.BRIDGE) != 0)
+                 continue;
+
+             CtMethod overridden;
+             try {
+                 overridden = superclass.getMethod(cm.getName(), cm.getSignature());
+             }
+             catch (NotFoundException e) {
+                 continue;      // a new method
+             }
+
+             int mod2 = overridden.getModifiers();
+             if (Modifier.isStatic(mod2) || Modifier.isPrivate(mod2) || Modifier.isAbstract(mod2))
+                 continue;
+
+             Bytecode code = new Bytecode(cp);
+             if (indy) {
+                 if (bootstrap < 0)
+                     bootstrap = MethodConverter.addBootstrapMethod(cf, cp,
+                                     ReviserSwitch.class.getName(), SWITCH_BOOTSTRAP,
+                                     new int[] { cp.addStringInfo(clazz.getName()),
+                                                 cp.addIntegerInfo(initial) });
+
+                 code.addInvokedynamic(bootstrap, "enabled", "()Z");
+             }
+             else {
+                 code.addLdc(clazz.getName());
+                 code.addIconst(initial);
+                 code.addInvokestatic(ReviserSwitch.class.getName(), "isEnabled",
+                                      "(Ljava/lang/String;I)Z");
+             }
+
+             int jumpPos = code.currentPc();
+             code.addOpcode(Opcode.IFNE);
+             code.addIndex(0);
+             code.addAload(0);
+             code.addLoadParameters(cm.getParameterTypes(), 1);
+             code.addInvokespecial(superclass, cm.getName(), cm.getSignature());
+             code.addReturn(cm.getReturnType());
+             code.write16bit(jumpPos + 1, code.currentPc() - jumpPos);
+
+             MethodInfo minfo = cm.getMethodInfo();
+             CodeAttribute ca = minfo.getCodeAttribute();
+             try {
+                 ca.iterator().insertExAt(0, code.get());
+                 ca.setMaxStack(Math.max(ca.getMaxStack(), code.getMaxStack()));
+                 minfo.rebuildStackMapIf6(clazz.getClassPool(), cf);
+             }
+             catch (BadBytecode e) {
+                 throw new CannotCompileException(e);
+             }
+         }
+     }
+
+     /**
+      * Makes the copies of the revisers targeting an interface that
+      * the given class implements.  revise() makes them on demand
+      * but this method lets a caller make them in a fixed order
+      * before revise() is called on multiple threads.
+      */
+     public void reviseInterfaces(CtClass clazz)
+         throws WeaveException, NotFoundException
+     {
+         localConverter().revise(clazz);
      }
 
      void reviseImplements(CtClass clazz)
@@ -613,10 +1261,9 @@ public class ClassConverter {
          cm.setName(p.getRealName());
          if (!mm.callDirectly()) {
              String descriptor = cm.getSignature();
-             ClassPool cpool = clazz.getClassPool();
              for (Predicate pred: mm.getPredicates()) {
                  if (pred.isFor(cm))
-                     clazz.addInterface(pred.makeMarkerType(this, cpool, descriptor));
+                     clazz.addInterface(pred.makeMarkerType(this, sharedPool, descriptor));
              }
          }
      }
@@ -626,6 +1273,9 @@ public class ClassConverter {
      {
          CtClass superReviser = target;
          CtClass last = list.get(list.size() - 1).body;
+         if (list.size() > 1)
+             chains.add(list);
+
          for (Reviser a: list)
              try {
                  if (superReviser != last)
@@ -634,8 +1284,10 @@ public class ClassConverter {
                  CtClass cc = a.body;
                  addReviser(cc.getName());
                  CtClass origSuper = cc.getSuperclass();
-                 if (origSuper != superReviser)
+                 if (origSuper != superReviser) {
                      cc.setSuperclass(superReviser);
+                     forget(cc.getName());
+                 }
 
                  adjustInvokeSpecial(cc, origSuper, target, cc == last);
                  inheritConstructors(cc);
@@ -664,8 +1316,10 @@ public class ClassConverter {
 
                  CtClass cc = a.body;
                  addReviser(cc.getName());
-                 if (!cc.subtypeOf(superReviser))
+                 if (!cc.subtypeOf(superReviser)) {
                      cc.addInterface(superReviser);
+                     forget(cc.getName());
+                 }
 
                  superReviser = cc;
              }
@@ -674,13 +1328,13 @@ public class ClassConverter {
              }
      }
 
-     public void copyAndReorderRevisers(CtClass target, List<Reviser> list)
+     public synchronized void copyAndReorderRevisers(CtClass target, List<Reviser> list)
          throws WeaveException
      {
          try {
              CtClass parent = target;
              Reviser last = list.get(list.size() - 1);
-             CtClass lastCopy = makeCopy(last.body);
+             CtClass lastCopy = makeCopy(last.body, target);
              for (Reviser a: list) {
                  /* The replacement appended below becomes effective soon.
                   * Since this method is called from TransformNewIClass.transform(),
@@ -689,10 +1343,11 @@ public class ClassConverter {
                   * by TrnasformNewClass.transform().
                   */
                  recordNewClassName(parent.getName(), lastCopy.getName());
-                 CtClass cc = a == last ? lastCopy : makeCopy(a.body);
+                 CtClass cc = a == last ? lastCopy : makeCopy(a.body, target);
                  addReviser(cc.getName());
                  CtClass origSuper = cc.getSuperclass();
                  cc.setSuperclass(parent);
+                 forget(cc.getName());
                  adjustInvokeSpecial(cc, origSuper, target, cc == lastCopy);
                  inheritConstructors(cc);
                  int mod = cc.getModifiers();
@@ -731,20 +1386,55 @@ public class ClassConverter {
          }
      }
 
-     private static int uniqueNo = 1;
-
-     public static String uniqueName(String name) {
-         return name + "_aop" + uniqueNo++;
+     /**
+      * Returns the name that a reviser method is renamed into.
+      * It does not depend on the order of weaving, so that another
+      * weaver in the same JVM gives the same name.  A reviser with
+      * <code>@Within</code> is never merged, so the name never collides
+      * with the names given by {@link ReviserMerger}.
+      */
+     public static String uniqueName(CtMethod m) {
+         return m.getName() + "_aop_" + mangle(m.getDeclaringClass().getName());
      }
 
-     private CtClass makeCopy(CtClass cc) throws NotFoundException {
-         String newName = uniqueName(cc.getName());
+     /* The name of a copy does not depend on the order of copying
+      * so that parallel weaving produces the same class files.
+      */
+     private CtClass makeCopy(CtClass cc, CtClass target) throws NotFoundException {
+         String newName = cc.getName() + "_aop_" + mangle(target.getName());
          CtClass newClass = cc.getClassPool().getAndRename(cc.getName(), newName);
          newClass.setInterfaces(null);
          addHelper(newClass);
          return newClass;
      }
 
+     /**
+      * Encodes a class name into a part of an identifier.  As in JNI,
+      * <code>_</code> becomes <code>_1</code> and <code>.</code> becomes
+      * <code>_</code>, or <code>_0</code> if <code>0</code> or <code>1</code>
+      * follows it.  So different class names are never encoded into
+      * the same string.
+      */
+     static String mangle(String className) {
+         StringBuilder sb = new StringBuilder();
+         int len = className.length();
+         for (int i = 0; i < len; i++) {
+             char c = className.charAt(i);
+             if (c == '_')
+                 sb.append("_1");
+             else if (c == '.') {
+                 sb.append('_');
+                 if (i + 1 < len && (className.charAt(i + 1) == '0'
+                                     || className.charAt(i + 1) == '1'))
+                     sb.append('0');
+             }
+             else
+                 sb.append(c);
+         }
+
+         return sb.toString();
+     }
+
      /**
       * Makes constructors each of that calls the constructor of the super class
       * with the same signature.
@@ -760,6 +1450,11 @@ public class ClassConverter {
       * constructor should call super(..) instead of this(..) because
       * the constructor never initializes the fields if this(..) is called
       * in the constructor.
+      *
+      * The body is copied into the made constructors right after the call
+      * to super(..) so that they do not call another method.  An object of
+      * the most specific reviser is initialized by a chain of constructors
+      * as an object of a hand-written subclass is.
       */
      private static void inheritConstructors(CtClass clazz)
          throws CannotCompileException, NotFoundException, WeaveException
@@ -767,6 +1462,8 @@ public class ClassConverter {
          String initName = clazz.makeUniqueName("_init");
          HashMap<String,CtConstructor> thisCons = getConstructors(clazz, initName);
          boolean noInitMethod = thisCons.get("()V") == null;
+         CtMethod init = noInitMethod ? null : clazz.getDeclaredMethod(initName);
+         boolean emptyInit = noInitMethod || isEmpty(init.getMethodInfo2());
          String initCall = "{" + initName + "();}";
          CtClass superclazz = clazz.getSuperclass();
          CtConstructor[] superCons = superclazz.getDeclaredConstructors();
@@ -788,11 +1485,18 @@ public class ClassConverter {
                  if (noInitMethod)
                      throw new WeaveException("no default constructor: " + clazz.getName());
 
-                 cons.insertAfter(initCall);
+                 if (!emptyInit) {
+                     cons.insertBeforeBody(initCall);
+                     copyInit(cons, init);
+                 }
+
                  clazz.addConstructor(cons);
              }
          }
 
+         if (init != null)
+             clazz.removeMethod(init);
+
          if (hasDefaultCons || noInitMethod)
              return;
 
@@ -800,6 +1504,59 @@ public class ClassConverter {
          clazz.removeConstructor(dcons);
      }
 
+     /* Returns true if the method does nothing.  The initialization
+      * method made from a default constructor only calling super()
+      * pops this.
+      */
+     static boolean isEmpty(MethodInfo m) {
+         CodeAttribute ca = m.getCodeAttribute();
+         CodeIterator it = ca.iterator();
+         try {
+             while (it.hasNext()) {
+                 int op = it.byteAt(it.next());
+                 if (op != Opcode.NOP && op != Opcode.ALOAD_0 && op != Opcode.POP
+                     && op != Opcode.RETURN)
+                     return false;
+             }
+         }
+         catch (BadBytecode e) {
+             return false;
+         }
+
+         return ca.getExceptionTable().size() == 0;
+     }
+
+     /* Replaces the call to the initialization method with a copy of
+      * its body.
+      */
+     private static void copyInit(CtConstructor cons, CtMethod init)
+         throws CannotCompileException
+     {
+         MethodInfo minfo = cons.getMethodInfo();
+         CodeAttribute ca = minfo.getCodeAttribute();
+         ConstPool cp = minfo.getConstPool();
+         try {
+             CodeIterator it = ca.iterator();
+             while (it.hasNext()) {
+                 int pos = it.next();
+                 int op = it.byteAt(pos);
+                 if ((op == Opcode.INVOKESPECIAL || op == Opcode.INVOKEVIRTUAL)
+                     && init.getName().equals(cp.getMethodrefName(it.u16bitAt(pos + 1)))) {
+                     ChainFuser.copy(ca, it, pos, init.getMethodInfo2(), new CtClass[0]);
+                     ca.setMaxStack(ca.computeMaxStack());
+                     CtClass clazz = cons.getDeclaringClass();
+                     minfo.rebuildStackMapIf6(clazz.getClassPool(), clazz.getClassFile2());
+                     return;
+                 }
+             }
+         }
+         catch (BadBytecode e) {
+             throw new CannotCompileException(e);
+         }
+
+         throw new CannotCompileException("no call to " + init.getName());
+     }
+
      /**
       * Returns a hash map from signatures to constructors.
       * This method also copies the default constructor to make an
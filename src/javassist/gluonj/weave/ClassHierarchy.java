@@ -0,0 +1,99 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+
+/**
+ * An index of the class hierarchy shared among all the generic functions
+ * ({@link ClassConverter.StdMethod}).
+ *
+ * <p>For every class, it records the super class, the interfaces,
+ * and the signatures of the declared methods.  An entry is made when
+ * it is first requested and it must be removed by {@link #remove(String)}
+ * when the super class, the interfaces, or the methods of the class
+ * are modified.
+ */
+class ClassHierarchy {
+    static class Entry {
+        final String superName;         // null if java.lang.Object
+        final String[] interfaceNames;
+        private final HashSet<String> methods;  // name + descriptor
+
+        Entry(ClassFile cf) {
+            superName = cf.getSuperclass();
+            interfaceNames = cf.getInterfaces();
+            @SuppressWarnings("unchecked")
+            List<MethodInfo> list = cf.getMethods();
+            methods = new HashSet<String>();
+            for (MethodInfo minfo: list)
+                if (minfo.isMethod())
+                    methods.add(minfo.getName() + minfo.getDescriptor());
+        }
+
+        /**
+         * Returns true if the class declares the method.
+         */
+        boolean declares(String name, String descriptor) {
+            return methods.contains(name + descriptor);
+        }
+    }
+
+    private ConcurrentHashMap<String,Entry> entries;
+
+    ClassHierarchy() {
+        entries = new ConcurrentHashMap<String,Entry>();
+    }
+
+    Entry get(CtClass cc) {
+        String name = cc.getName();
+        Entry e = entries.get(name);
+        if (e == null) {
+            e = new Entry(cc.getClassFile2());
+            entries.put(name, e);
+        }
+
+        return e;
+    }
+
+    Entry get(ClassPool cp, String className) throws NotFoundException {
+        Entry e = entries.get(className);
+        if (e == null)
+            e = get(cp.get(className));
+
+        return e;
+    }
+
+    /**
+     * Returns true if the class named subName is the class named
+     * superName or its subclass.
+     */
+    boolean subclassOf(ClassPool cp, String subName, String superName)
+        throws NotFoundException
+    {
+        String name = subName;
+        while (name != null) {
+            if (name.equals(superName))
+                return true;
+
+            name = get(cp, name).superName;
+        }
+
+        return false;
+    }
+
+    /**
+     * Discards the entry for the given class.
+     */
+    void remove(String className) {
+        entries.remove(className);
+    }
+}
@@ -0,0 +1,399 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.LineNumberAttribute;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.LocalVariableTypeAttribute;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.StackMapTable;
+
+/**
+ * A code rewriter that collects the instructions to be inserted into
+ * a method body and then emits the new code array at once.
+ *
+ * <p>CodeIterator.insertGap() copies the whole code array and updates
+ * the branch offsets, the exception table, and the attributes whenever
+ * it is called.  This rewriter does them only once per method.
+ * If an instruction is inserted before the instruction at pos, a branch
+ * to pos jumps to the inserted instruction as insertGap() does.
+ *
+ * <p>The stack map table is removed.  The caller must rebuild it.
+ */
+class CodeRewriter {
+    static class Edit {
+        int pos;            // the position of the original instruction
+        byte[] prefix;      // inserted before the instruction
+        byte[] replacement; // null if the instruction is not replaced
+
+        Edit(int pos, byte[] prefix, byte[] replacement) {
+            this.pos = pos;
+            this.prefix = prefix;
+            this.replacement = replacement;
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private ArrayList<Edit> edits;
+
+    CodeRewriter() {
+        edits = new ArrayList<Edit>();
+    }
+
+    /**
+     * Discards the edits.
+     */
+    void reset() {
+        edits.clear();
+    }
+
+    /**
+     * Returns the number of the edits.
+     */
+    int size() { return edits.size(); }
+
+    /**
+     * Inserts instructions before the instruction at pos.
+     * The edits must be recorded in ascending order of pos.
+     */
+    void insert(int pos, byte[] code) {
+        edits.add(new Edit(pos, code, null));
+    }
+
+    /**
+     * Replaces the instruction at pos.
+     * The edits must be recorded in ascending order of pos.
+     */
+    void replace(int pos, byte[] code) {
+        edits.add(new Edit(pos, EMPTY, code));
+    }
+
+    /**
+     * Applies the edits to the method body.  The code attribute of
+     * the method may be replaced with a new one.
+     */
+    void apply(MethodInfo minfo) throws BadBytecode {
+        if (edits.isEmpty())
+            return;
+
+        CodeAttribute ca = minfo.getCodeAttribute();
+        if (!applyAtOnce(minfo, ca))
+            applyOneByOne(ca);
+    }
+
+    /* Returns false if the code attribute contains an attribute this
+     * method cannot update, a 16bit branch offset overflows, or
+     * a position is not at an instruction.  The code attribute is not
+     * modified then.
+     */
+    private boolean applyAtOnce(MethodInfo minfo, CodeAttribute ca) throws BadBytecode {
+        for (AttributeInfo a: ca.getAttributes()) {
+            String name = a.getName();
+            if (!(name.equals(LineNumberAttribute.tag)
+                  || name.equals(LocalVariableAttribute.tag)
+                  || name.equals(LocalVariableTypeAttribute.tag)
+                  || name.equals(StackMapTable.tag)))
+                return false;
+        }
+
+        byte[] code = ca.getCode();
+        int len = code.length;
+        int[] newPos = new int[len + 1];    // -1 if not an instruction
+        int[] insts = new int[len];         // the positions of instructions
+        int numInsts = 0;
+        Arrays.fill(newPos, -1);
+
+        // compute the new positions.
+        CodeIterator it = ca.iterator();
+        int np = 0;
+        int e = 0;
+        while (it.hasNext()) {
+            int pos = it.next();
+            int size = it.lookAhead() - pos;
+            insts[numInsts++] = pos;
+            newPos[pos] = np;
+            if (e < edits.size() && edits.get(e).pos == pos) {
+                Edit edit = edits.get(e++);
+                np += edit.prefix.length;
+                if (edit.replacement != null)
+                    size = edit.replacement.length;
+            }
+
+            int op = code[pos] & 0xff;
+            if (op == Opcode.TABLESWITCH || op == Opcode.LOOKUPSWITCH)
+                size += padding(np) - padding(pos);
+
+            np += size;
+        }
+
+        newPos[len] = np;
+        if (e != edits.size())
+            throw new BadBytecode("an edit is not at an instruction");
+
+        if (np > 0xffff)
+            return false;
+
+        // emit the new code.
+        byte[] newCode = new byte[np];
+        e = 0;
+        for (int i = 0; i < numInsts; i++) {
+            int pos = insts[i];
+            int next = i + 1 < numInsts ? insts[i + 1] : len;
+            int dest = newPos[pos];
+            byte[] replacement = null;
+            if (e < edits.size() && edits.get(e).pos == pos) {
+                Edit edit = edits.get(e++);
+                System.arraycopy(edit.prefix, 0, newCode, dest, edit.prefix.length);
+                dest += edit.prefix.length;
+                replacement = edit.replacement;
+            }
+
+            if (replacement != null)
+                System.arraycopy(replacement, 0, newCode, dest, replacement.length);
+            else if (!copy(code, pos, next, newCode, dest, newPos))
+                return false;
+        }
+
+        ExceptionTable et = ca.getExceptionTable();
+        int[] handlers = new int[et.size() * 3];
+        for (int i = 0; i < et.size(); i++) {
+            handlers[i * 3] = map(newPos, et.startPc(i));
+            handlers[i * 3 + 1] = map(newPos, et.endPc(i));
+            handlers[i * 3 + 2] = map(newPos, et.handlerPc(i));
+        }
+
+        AttributeInfo lines = ca.getAttribute(LineNumberAttribute.tag);
+        byte[] lineInfo = mapLineNumbers(lines, newPos);
+        AttributeInfo vars = ca.getAttribute(LocalVariableAttribute.tag);
+        byte[] varInfo = mapLocalVariables(vars, newPos);
+        AttributeInfo types = ca.getAttribute(LocalVariableTypeAttribute.tag);
+        byte[] typeInfo = mapLocalVariables(types, newPos);
+        if (min(handlers) < 0 || (lines != null && lineInfo == null)
+            || (vars != null && varInfo == null) || (types != null && typeInfo == null))
+            return false;
+
+        for (int i = 0; i < et.size(); i++) {
+            et.setStartPc(i, handlers[i * 3]);
+            et.setEndPc(i, handlers[i * 3 + 1]);
+            et.setHandlerPc(i, handlers[i * 3 + 2]);
+        }
+
+        if (lines != null)
+            lines.set(lineInfo);
+
+        if (vars != null)
+            vars.set(varInfo);
+
+        if (types != null)
+            types.set(typeInfo);
+
+        CodeAttribute newCa = new CodeAttribute(ca.getConstPool(), ca.getMaxStack(),
+                                                ca.getMaxLocals(), newCode, et);
+        for (AttributeInfo a: ca.getAttributes())
+            if (!a.getName().equals(StackMapTable.tag))
+                newCa.getAttributes().add(a);
+
+        minfo.setCodeAttribute(newCa);
+        return true;
+    }
+
+    private static int min(int[] values) {
+        int m = 0;
+        for (int v: values)
+            if (v < m)
+                m = v;
+
+        return m;
+    }
+
+    /* Copies the instruction from code[pos] to code[next - 1] and
+     * updates the branch offset if it is a branch instruction.
+     */
+    private static boolean copy(byte[] code, int pos, int next, byte[] newCode, int dest,
+                                int[] newPos)
+    {
+        int op = code[pos] & 0xff;
+        if ((Opcode.IFEQ <= op && op <= Opcode.JSR)
+            || op == Opcode.IFNULL || op == Opcode.IFNONNULL) {
+            int target = map(newPos, pos + s2(code, pos + 1));
+            int offset = target - dest;
+            if (target < 0 || offset < Short.MIN_VALUE || Short.MAX_VALUE < offset)
+                return false;
+
+            newCode[dest] = code[pos];
+            put2(newCode, dest + 1, offset);
+        }
+        else if (op == Opcode.GOTO_W || op == Opcode.JSR_W) {
+            int target = map(newPos, pos + s4(code, pos + 1));
+            if (target < 0)
+                return false;
+
+            newCode[dest] = code[pos];
+            put4(newCode, dest + 1, target - dest);
+        }
+        else if (op == Opcode.TABLESWITCH || op == Opcode.LOOKUPSWITCH) {
+            newCode[dest] = code[pos];
+            int src = pos + 1 + padding(pos);
+            int dst = dest + 1 + padding(dest);
+            if (!putTarget(newCode, dst, map(newPos, pos + s4(code, src)), dest))  // default
+                return false;
+
+            if (op == Opcode.TABLESWITCH) {
+                int low = s4(code, src + 4);
+                int high = s4(code, src + 8);
+                put4(newCode, dst + 4, low);
+                put4(newCode, dst + 8, high);
+                for (int i = 0; i <= high - low; i++)
+                    if (!putTarget(newCode, dst + 12 + i * 4,
+                                   map(newPos, pos + s4(code, src + 12 + i * 4)), dest))
+                        return false;
+            }
+            else {
+                int npairs = s4(code, src + 4);
+                put4(newCode, dst + 4, npairs);
+                for (int i = 0; i < npairs; i++) {
+                    put4(newCode, dst + 8 + i * 8, s4(code, src + 8 + i * 8));
+                    if (!putTarget(newCode, dst + 12 + i * 8,
+                                   map(newPos, pos + s4(code, src + 12 + i * 8)), dest))
+                        return false;
+                }
+            }
+        }
+        else
+            System.arraycopy(code, pos, newCode, dest, next - pos);
+
+        return true;
+    }
+
+    /* Returns the updated contents of LineNumberTable or null.
+     */
+    private static byte[] mapLineNumbers(AttributeInfo attr, int[] newPos) {
+        if (attr == null)
+            return null;
+
+        byte[] info = attr.get().clone();
+        int n = u2(info, 0);
+        for (int i = 0; i < n; i++) {
+            int p = 2 + i * 4;
+            int pc = map(newPos, u2(info, p));
+            if (pc < 0)
+                return null;
+
+            put2(info, p, pc);
+        }
+
+        return info;
+    }
+
+    /* Returns the updated contents of LocalVariableTable
+     * (or LocalVariableTypeTable) or null.
+     */
+    private static byte[] mapLocalVariables(AttributeInfo attr, int[] newPos) {
+        if (attr == null)
+            return null;
+
+        byte[] info = attr.get().clone();
+        int n = u2(info, 0);
+        for (int i = 0; i < n; i++) {
+            int p = 2 + i * 10;
+            int start = u2(info, p);
+            int newStart = map(newPos, start);
+            int newEnd = map(newPos, start + u2(info, p + 2));
+            if (newStart < 0 || newEnd < 0)
+                return null;
+
+            put2(info, p, newStart);
+            put2(info, p + 2, newEnd - newStart);
+        }
+
+        return info;
+    }
+
+    /* Returns the new position or -1 if pos is not at an instruction.
+     */
+    private static int map(int[] newPos, int pos) {
+        if (pos < 0 || newPos.length <= pos)
+            return -1;
+        else
+            return newPos[pos];
+    }
+
+    private static boolean putTarget(byte[] code, int pos, int target, int base) {
+        if (target < 0)
+            return false;
+
+        put4(code, pos, target - base);
+        return true;
+    }
+
+    /* The number of the padding bytes after a switch instruction at pos.
+     */
+    private static int padding(int pos) {
+        return 3 - (pos & 3);
+    }
+
+    /* The code attribute is updated by CodeIterator.insertGap() for each
+     * edit.  The edits are applied from the last one so that the
+     * positions of the others do not change.
+     *
+     * If the instruction is not replaced, it is left where insertGap()
+     * moves it, since insertGap() updates its branch offset.  The gap
+     * may be longer than the prefix; the rest is filled with nop.
+     */
+    private void applyOneByOne(CodeAttribute ca) throws BadBytecode {
+        CodeIterator it = ca.iterator();
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            Edit edit = edits.get(i);
+            if (edit.replacement == null) {
+                CodeIterator.Gap gap = it.insertGapAt(edit.pos, edit.prefix.length, false);
+                it.write(edit.prefix, gap.position);
+                for (int k = edit.prefix.length; k < gap.length; k++)
+                    it.writeByte(Opcode.NOP, gap.position + k);
+
+                continue;
+            }
+
+            it.move(edit.pos);
+            it.next();
+            int oldSize = it.lookAhead() - edit.pos;
+            int newSize = edit.prefix.length + edit.replacement.length;
+            int gap = it.insertGap(edit.pos, newSize - oldSize);
+            it.write(edit.prefix, edit.pos);
+            it.write(edit.replacement, edit.pos + edit.prefix.length);
+            for (int k = newSize; k < gap + oldSize; k++)
+                it.writeByte(Opcode.NOP, edit.pos + k);
+        }
+    }
+
+    private static int u2(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static int s2(byte[] b, int pos) {
+        return (short)u2(b, pos);
+    }
+
+    private static int s4(byte[] b, int pos) {
+        return (u2(b, pos) << 16) | u2(b, pos + 2);
+    }
+
+    private static void put2(byte[] b, int pos, int v) {
+        b[pos] = (byte)(v >>> 8);
+        b[pos + 1] = (byte)v;
+    }
+
+    private static void put4(byte[] b, int pos, int v) {
+        put2(b, pos, v >>> 16);
+        put2(b, pos + 2, v);
+    }
+}
@@ -0,0 +1,277 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * A filter finding a class file that revisers never affect.
+ * It only scans the constant pool of a raw class file.
+ *
+ * <p>The filter is given the names of the revised methods and the
+ * revised classes.  A class file might be affected if one of its
+ * UTF8 entries is equal to one of those names since the name of
+ * a declared method, a called method, and a referred class is
+ * a UTF8 entry.  False positives are allowed.
+ *
+ * <p>The filter may be also given type names, which are looked for
+ * within the descriptors as well.  A class file is affected by
+ * a merged reviser if its name appears in a descriptor.
+ */
+class ConstPoolFilter {
+    private HashSet<String> names;
+    private BitSet lengths;     // the lengths of the names
+    private String[] types;     // such as Ljava/lang/String;
+
+    /**
+     * @param names     method names and JVM-internal class names
+     *                  such as java/lang/String.
+     */
+    ConstPoolFilter(Collection<String> names) {
+        this(names, new HashSet<String>());
+    }
+
+    /**
+     * @param names     method names and JVM-internal class names
+     *                  such as java/lang/String.
+     * @param typeNames JVM-internal class names that are also
+     *                  looked for within descriptors.
+     */
+    ConstPoolFilter(Collection<String> names, Collection<String> typeNames) {
+        this.names = new HashSet<String>(names);
+        this.names.addAll(typeNames);
+        lengths = new BitSet();
+        for (String n: this.names)
+            lengths.set(n.length());
+
+        types = new String[typeNames.size()];
+        int i = 0;
+        for (String n: typeNames)
+            types[i++] = 'L' + n + ';';
+    }
+
+    /**
+     * Returns false if the given class file never refers to any
+     * of the names.  Returns true if it might refer to them or the class
+     * file is broken.
+     */
+    boolean mayRefer(byte[] classFile) {
+        try {
+            return mayRefer0(classFile);
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    private boolean mayRefer0(byte[] b) {
+        if (u4(b, 0) != 0xCAFEBABE)
+            return true;
+
+        int count = u2(b, 8);
+        int pos = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = b[pos] & 0xff;
+            switch (tag) {
+            case 1 :    // CONSTANT_Utf8
+                int len = u2(b, pos + 1);
+                if (lengths.get(len) && names.contains(decode(b, pos + 3, len)))
+                    return true;
+
+                if (types.length > 0 && len > 2 && isDescriptor(b[pos + 3])
+                    && containsType(decode(b, pos + 3, len)))
+                    return true;
+
+                pos += 3 + len;
+                break;
+            case 7 :    // CONSTANT_Class
+            case 8 :    // CONSTANT_String
+            case 16 :   // CONSTANT_MethodType
+            case 19 :   // CONSTANT_Module
+            case 20 :   // CONSTANT_Package
+                pos += 3;
+                break;
+            case 15 :   // CONSTANT_MethodHandle
+                pos += 4;
+                break;
+            case 3 :    // CONSTANT_Integer
+            case 4 :    // CONSTANT_Float
+            case 9 :    // CONSTANT_Fieldref
+            case 10 :   // CONSTANT_Methodref
+            case 11 :   // CONSTANT_InterfaceMethodref
+            case 12 :   // CONSTANT_NameAndType
+            case 17 :   // CONSTANT_Dynamic
+            case 18 :   // CONSTANT_InvokeDynamic
+                pos += 5;
+                break;
+            case 5 :    // CONSTANT_Long
+            case 6 :    // CONSTANT_Double
+                pos += 9;
+                i++;
+                break;
+            default :
+                return true;    // unknown
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the JVM-internal names of the super class and the interfaces
+     * of the given class file, or null if the class file is broken.
+     * The super class of java.lang.Object is not included.
+     */
+    static String[] supertypes(byte[] b) {
+        try {
+            return supertypes0(b);
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static String[] supertypes0(byte[] b) {
+        int[] entries = entries(b);
+        if (entries == null)
+            return null;
+
+        int pos = entries[0];
+        int superClass = u2(b, pos + 4);
+        int n = u2(b, pos + 6);
+        String[] names = new String[superClass == 0 ? n : n + 1];
+        for (int i = 0; i < n; i++)
+            names[i] = className(b, entries, u2(b, pos + 8 + i * 2));
+
+        if (superClass != 0)
+            names[n] = className(b, entries, superClass);
+
+        return names;
+    }
+
+    /**
+     * Returns the JVM-internal names of the classes that the given class
+     * file refers to by <code>CONSTANT_Class</code> entries, or null if
+     * the class file is broken.  For an array type, the name of the
+     * element type is returned.  The class itself is not included.
+     */
+    static String[] classNames(byte[] b) {
+        try {
+            return classNames0(b);
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static String[] classNames0(byte[] b) {
+        int[] entries = entries(b);
+        if (entries == null)
+            return null;
+
+        int thisClass = u2(b, entries[0] + 2);
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 1; i < entries.length; i++)
+            if (i != thisClass && entries[i] != 0 && (b[entries[i]] & 0xff) == 7) {
+                String name = className(b, entries, i);
+                if (name.charAt(0) == '[') {
+                    int k = name.lastIndexOf('[') + 1;
+                    if (name.charAt(k) != 'L')
+                        continue;   // an array of a primitive type
+
+                    name = name.substring(k + 1, name.length() - 1);
+                }
+
+                names.add(name);
+            }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+    /* Returns the position of every constant pool entry.  The 0th element
+     * is the position right after the constant pool.  It returns null
+     * if the class file is broken.
+     */
+    private static int[] entries(byte[] b) {
+        if (u4(b, 0) != 0xCAFEBABE)
+            return null;
+
+        int count = u2(b, 8);
+        int[] entries = new int[count];
+        int pos = 10;
+        for (int i = 1; i < count; i++) {
+            entries[i] = pos;
+            int tag = b[pos] & 0xff;
+            if (tag == 1)
+                pos += 3 + u2(b, pos + 1);
+            else if (tag == 5 || tag == 6) {
+                pos += 9;
+                i++;
+            }
+            else if (tag == 3 || tag == 4 || (9 <= tag && tag <= 12) || tag == 17 || tag == 18)
+                pos += 5;
+            else if (tag == 15)
+                pos += 4;
+            else if (tag == 7 || tag == 8 || tag == 16 || tag == 19 || tag == 20)
+                pos += 3;
+            else
+                return null;
+        }
+
+        entries[0] = pos;
+        return entries;
+    }
+
+    private static String className(byte[] b, int[] entries, int index) {
+        int utf8 = entries[u2(b, entries[index] + 1)];
+        return decode(b, utf8 + 3, u2(b, utf8 + 1));
+    }
+
+    /* Returns true if the character may start a descriptor or
+     * a generic signature.
+     */
+    private static boolean isDescriptor(byte c) {
+        return c == '(' || c == 'L' || c == '[' || c == '<';
+    }
+
+    private boolean containsType(String s) {
+        for (String t: types)
+            if (s.indexOf(t) >= 0)
+                return true;
+
+        return false;
+    }
+
+    /* Decodes a modified UTF-8 string.
+     */
+    private static String decode(byte[] b, int pos, int len) {
+        char[] chars = new char[len];
+        int n = 0;
+        int end = pos + len;
+        while (pos < end) {
+            int c = b[pos++] & 0xff;
+            if (c < 0x80)
+                chars[n++] = (char)c;
+            else if ((c & 0xe0) == 0xc0)
+                chars[n++] = (char)(((c & 0x1f) << 6) | (b[pos++] & 0x3f));
+            else {
+                chars[n++] = (char)(((c & 0x0f) << 12) | ((b[pos] & 0x3f) << 6)
+                                    | (b[pos + 1] & 0x3f));
+                pos += 2;
+            }
+        }
+
+        return new String(chars, 0, n);
+    }
+
+    private static int u2(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static int u4(byte[] b, int pos) {
+        return (u2(b, pos) << 16) | u2(b, pos + 2);
+    }
+}
@@ -2,10 +2,19 @@
 
 package javassist.gluonj.weave;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.jar.JarFile;
 
 import javassist.gluonj.weave.WeaveException;
 
@@ -23,6 +32,38 @@ public class HotSwapper {
      * the value of that property for obtaining a class file.  The value
      * of the property must be a CLASSPATH string separated by ':' (Linux etc.)
      * or ';' (Windows).
+     *
+     * <p>If the javassist.gluonj.cache property is given, this weaver
+     * caches woven class files in the directory specified by the value of
+     * that property.  When the same class file is loaded with the same
+     * revisers again, the cached class file is used without weaving.
+     *
+     * <p>If the javassist.gluonj.archive property is given, this weaver
+     * reads the woven class files from the archive specified by the value
+     * of that property.  The weaver is not made until a class file not
+     * recorded in the archive is loaded.  See {@link WeaveArchive}.
+     *
+     * <p>If the javassist.gluonj.manifest property is given, this weaver
+     * passes the classes not listed in the manifest specified by the value
+     * of that property through without reading them.  See
+     * {@link WeaveManifest}.
+     *
+     * <p>If the javassist.gluonj.snapshot property is given, this weaver
+     * restores the prepared revisers from the snapshot specified by
+     * the value of that property.  If the snapshot does not exist or it is
+     * out of date, the weaver writes it.  See {@link WeaveSnapshot}.
+     *
+     * <p>If the javassist.gluonj.fuse property is true, the revisers
+     * targeting the same class are fused.  See
+     * {@link Weaver#setFuseChains(boolean)}.
+     *
+     * <p>If the javassist.gluonj.merge property is true, the revisers
+     * are merged into the classes they revise if possible.  See
+     * {@link ReviserMerger}.
+     *
+     * <p>The statistics of the weaver are available through JMX.
+     * See {@link WeaveStats}.  The class files obtained from the archive
+     * or skipped by the manifest are not counted.
      */
     public static void premain(String args, Instrumentation inst)
         throws WeaveException
@@ -33,7 +74,189 @@ public class HotSwapper {
             // throws a WeaveException.
         }
 
-        inst.addTransformer(new Transformer(revisers));
+        Transformer t = new Transformer(revisers);
+        String archive = System.getProperty(Weaver.ARCHIVE_PROPERTY);
+        if (archive != null)
+            t.setArchive(openArchive(archive, revisers, inst));
+
+        String manifest = System.getProperty(Weaver.MANIFEST_PROPERTY);
+        if (manifest != null)
+            t.setManifest(openManifest(manifest, revisers));
+
+        inst.addTransformer(t);
+    }
+
+    /* Returns null if the manifest is not available.
+     */
+    private static WeaveManifest openManifest(String fileName, String[] revisers) {
+        try {
+            WeaveManifest manifest = new WeaveManifest(new File(fileName));
+            String reason = manifest.check(revisers, Boolean.getBoolean(Weaver.INDY_PROPERTY),
+                                           Boolean.getBoolean(Weaver.MERGE_PROPERTY),
+                                           ClassLoader.getSystemClassLoader());
+            if (reason == null) {
+                Logger.print(Logger.INFO, "Reading " + manifest.size() + " classes from " + fileName);
+                return manifest;
+            }
+
+            System.err.println("Warning: the manifest " + fileName + " is not used: " + reason);
+        }
+        catch (IOException e) {
+            System.err.println("Warning: cannot read the manifest " + fileName + ": " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /* Returns null if the archive is not available.  The archive is
+     * appended to the class path of the system class loader if it
+     * contains helper classes.
+     */
+    private static WeaveArchive openArchive(String fileName, String[] revisers,
+                                            Instrumentation inst)
+    {
+        try {
+            WeaveArchive archive = new WeaveArchive(new File(fileName));
+            String reason = archive.check(revisers, Boolean.getBoolean(Weaver.INDY_PROPERTY),
+                                          Boolean.getBoolean(Weaver.FUSE_PROPERTY),
+                                          Boolean.getBoolean(Weaver.MERGE_PROPERTY),
+                                          ClassLoader.getSystemClassLoader());
+            if (reason == null) {
+                if (archive.hasHelpers())
+                    inst.appendToSystemClassLoaderSearch(new JarFile(fileName));
+
+                Logger.print(Logger.INFO, "Reading " + archive.size() + " classes from " + fileName);
+                return archive;
+            }
+
+            System.err.println("Warning: the archive " + fileName + " is not used: " + reason);
+        }
+        catch (IOException e) {
+            System.err.println("Warning: cannot read the archive " + fileName + ": " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Main method when the weaver is attached to a running JVM.
+     * The argument is the same as premain()'s.
+     *
+     * <p>The classes loaded before the weaver is attached are
+     * retransformed if they refer to a revised class or method.
+     * Since retransformation cannot change the super class or add a method,
+     * a class that needs such changes is not woven.  It is also
+     * true for a class revised by a reviser.  The objects created
+     * before attachment are not affected.  A method running when
+     * the weaver is attached keeps running the original code until
+     * it returns.
+     *
+     * <p>The revisers are loaded by the class loader that has loaded
+     * the first reviser in the argument, or the system class loader.
+     */
+    public static void agentmain(String args, Instrumentation inst)
+        throws WeaveException
+    {
+        String[] revisers = parseArgs(args);
+        if (revisers == null || revisers[0].length() < 1)
+            throw new WeaveException("no reviser specified");
+
+        Class<?>[] loaded = inst.getAllLoadedClasses();
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        for (Class<?> c: loaded)
+            if (c.getName().equals(revisers[0])) {
+                loader = c.getClassLoader();
+                break;
+            }
+
+        Weaver weaver = new Weaver(revisers, loader, true);
+        weaver.getStats().register();
+        boolean retransform = inst.isRetransformClassesSupported();
+        Transformer t = new Transformer(revisers, weaver);
+        t.setPreloaded(loaded);
+        inst.addTransformer(t, retransform);
+        if (retransform)
+            retransform(inst, weaver, loaded);
+        else
+            System.err.println("Error: Can-Retransform-Classes is not true."
+                               + "  Loaded classes are not woven.");
+    }
+
+    /* Retransforms the loaded classes that transformClass() may modify.
+     * The class files are read from the class loaders since
+     * Instrumentation does not give them.
+     */
+    private static void retransform(Instrumentation inst, Weaver weaver, Class<?>[] loaded) {
+        for (Class<?> c: loaded) {
+            String name = c.getName();
+            if (!inst.isModifiableClass(c) || Weaver.isNonTransformable(name))
+                continue;
+
+            byte[] classFile = readClassFile(c);
+            if (classFile == null || !weaver.mayRevise(name, classFile))
+                continue;
+
+            try {
+                if (!isRetransformable(weaver.getRevisionKinds(classFile))) {
+                    Logger.print(Logger.INFO, "Not retransformed.. " + name
+                                 + ": the super class or the members would be changed");
+                    continue;
+                }
+
+                inst.retransformClasses(c);
+                Logger.print(Logger.INFO, "Retransformed.. " + name);
+            }
+            catch (UnmodifiableClassException e) {
+                System.err.println("Error: cannot retransform " + name + " by " + e);
+            }
+            catch (UnsupportedOperationException e) {
+                // the super class or the methods are changed.
+                System.err.println("Error: cannot retransform " + name + " by " + e);
+            }
+            catch (LinkageError e) {
+                System.err.println("Error: cannot retransform " + name + " by " + e);
+            }
+            catch (WeaveException e) {
+                System.err.println("Error: cannot retransform " + name + " by " + e);
+            }
+        }
+    }
+
+    /* Returns false if weaving would change the super class, the interfaces,
+     * or the members, which retransformation does not allow.  Such a class
+     * is not passed to transformClass() either since the woven class would
+     * stay in the class pool although the JVM keeps the original one.
+     */
+    private static boolean isRetransformable(String kinds) {
+        return kinds.indexOf('H') < 0 && kinds.indexOf('M') < 0 && kinds.indexOf('R') < 0;
+    }
+
+    private static byte[] readClassFile(Class<?> c) {
+        ClassLoader loader = c.getClassLoader();
+        if (loader == null)
+            return null;
+
+        InputStream in = loader.getResourceAsStream(c.getName().replace('.', '/') + ".class");
+        if (in == null)
+            return null;
+
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int len;
+                while ((len = in.read(buf)) > 0)
+                    out.write(buf, 0, len);
+
+                return out.toByteArray();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
     }
 
     private static String[] parseArgs(String args) {
@@ -50,18 +273,82 @@ public class HotSwapper {
 
     /**
      * An event handler invoked when a new class file is being loaded.
+     * The weaver is made with the class loader loading the first class.
+     * The classes loaded by other class loaders are woven with the same
+     * revisers but in a class pool for each class loader.
      */
     public static class Transformer implements ClassFileTransformer {
         private String[] reviserNames;
-        private Weaver weaver;
-        private boolean stop;
+        private WeaveArchive archive;
+        private WeaveManifest manifest;
+        private Set<Class<?>> preloaded;
+        private volatile Weaver weaver;
+        private volatile boolean stop;
+        private volatile Thread initializer;    // the thread making the weaver
+        private final Object lock = new Object();
 
         public Transformer(String[] revisers) {
+            this(revisers, null);
+        }
+
+        /**
+         * @param w     the weaver, or null if it is made when the first
+         *              class is loaded.
+         */
+        public Transformer(String[] revisers, Weaver w) {
             reviserNames = revisers;
-            weaver = null;
+            weaver = w;
             stop = false;
+            initializer = null;
+            archive = null;
+            manifest = null;
+            preloaded = null;
         }
 
+        /**
+         * Sets the classes loaded before this transformer is registered.
+         * They are not woven when they are retransformed or redefined
+         * later if weaving would change the super class or the members.
+         * The JVM keeps such a class unwoven and would reject the change.
+         * It must be called before this transformer is registered.
+         *
+         * @param classes   the loaded classes, or null.
+         */
+        public void setPreloaded(Class<?>[] classes) {
+            if (classes == null)
+                preloaded = null;
+            else {
+                Set<Class<?>> set = Collections.newSetFromMap(new WeakHashMap<Class<?>,Boolean>());
+                Collections.addAll(set, classes);
+                preloaded = Collections.synchronizedSet(set);
+            }
+        }
+
+        /**
+         * Sets the archive of the class files woven in advance.
+         * It must be called before this transformer is registered.
+         *
+         * @param a     the archive, or null.
+         */
+        public void setArchive(WeaveArchive a) {
+            archive = a;
+        }
+
+        /**
+         * Sets the manifest of the classes that may be woven.
+         * It must be called before this transformer is registered.
+         *
+         * @param m     the manifest, or null.
+         */
+        public void setManifest(WeaveManifest m) {
+            manifest = m;
+        }
+
+        /**
+         * This method may be called by multiple threads at the same time.
+         * Only the weaver is made under a lock.  The other threads
+         * loading classes wait until it is made.
+         */
         public byte[] transform(ClassLoader loader, String className, Class classBeingRedefined,
                                 ProtectionDomain domain, byte[] classfile)
             throws IllegalClassFormatException
@@ -69,7 +356,20 @@ public class HotSwapper {
             if (stop)
                 return null;
 
-            if (weaver == null) {
+            if (archive != null && className != null && classBeingRedefined == null) {
+                byte[] woven = archive.find(className, classfile);
+                if (woven != null) {
+                    Logger.print("Archived.. " + className);
+                    return woven == WeaveArchive.UNCHANGED ? null : woven;
+                }
+            }
+
+            if (manifest != null && className != null && classBeingRedefined == null
+                && manifest.skips(className, domain))
+                return null;
+
+            Weaver w = weaver;
+            if (w == null) {
                 /* The system class loader for java.* and javax.*
                  * may not be able to find a glue class.  Hence,
                  * if loader is the system class loader, then
@@ -78,23 +378,27 @@ public class HotSwapper {
                 if (Weaver.isNonTransformable(className.replace('/', '.')))
                     return null;
 
-                try {
-                    weaver = new Weaver(reviserNames, loader, true);
-                }
-                catch (WeaveException e) {
-                    stop = true;
-                    showError(e);
+                /* A class loaded while the weaver is being made,
+                 * for example, a class used by the Logger, is not woven.
+                 */
+                if (initializer == Thread.currentThread())
                     return null;
-                }
-                catch (Throwable t) {
-                    stop = true;
-                    showError("while reading a reviser", t);
+
+                w = makeWeaver(loader);
+                if (w == null)
                     return null;
-                }
             }
 
             try {
-                return weaver.transformClass(className, classfile);
+                if (classBeingRedefined != null && preloaded != null
+                    && preloaded.contains(classBeingRedefined)
+                    && !isRetransformable(w.getRevisionKinds(classfile))) {
+                    Logger.print(Logger.INFO, "Not retransformed.. " + className.replace('/', '.')
+                                 + ": the super class or the members would be changed");
+                    return null;
+                }
+
+                return w.transformClass(loader, className, classfile);
             }
             catch (WeaveException e) {
                 stop = true;
@@ -108,6 +412,34 @@ public class HotSwapper {
             }
         }
 
+        private Weaver makeWeaver(ClassLoader loader) {
+            synchronized (lock) {
+                if (weaver != null || stop)
+                    return weaver;
+
+                try {
+                    initializer = Thread.currentThread();
+                    Weaver w = new Weaver(reviserNames, loader, true);
+                    w.getStats().register();
+                    weaver = w;
+                    return w;
+                }
+                catch (WeaveException e) {
+                    stop = true;
+                    showError(e);
+                    return null;
+                }
+                catch (Throwable t) {
+                    stop = true;
+                    showError("while reading a reviser", t);
+                    return null;
+                }
+                finally {
+                    initializer = null;
+                }
+            }
+        }
+
         private void showError(WeaveException e) {
             System.err.println("Error: " + e.getMessage());
             if (Logger.active)
@@ -0,0 +1,412 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import javassist.ClassPath;
+import javassist.NotFoundException;
+
+/**
+ * A class path made from a list of directories and jar files.
+ * Unlike <code>ClassPool.appendPathList()</code>, it does not search
+ * the elements one by one.  It builds an index from a package name
+ * to the elements containing the package when it is constructed.
+ * The jar files are memory-mapped and class files are read from
+ * the mapped data.
+ *
+ * <p>A jar file larger than 2GB or in the ZIP64 format is read
+ * through <code>java.util.zip.ZipFile</code>.  The directories are
+ * scanned only once.  A class file added to a directory later is
+ * found only if its package has been found.
+ */
+public class IndexedClassPath implements ClassPath {
+    private static final Element[] NONE = new Element[0];
+
+    private String pathList;
+    private HashMap<String,Element[]> index;    // package name (a/b) -> elements
+
+    /**
+     * Constructs a class path.
+     *
+     * @param pathList  directory names and jar file names separated by
+     *                  <code>File.pathSeparator</code>.  If a name ends
+     *                  with <code>*</code>, all the jar files in the
+     *                  directory are included.
+     * @throws NotFoundException    if a jar file is not found.
+     *                              A directory not found is ignored.
+     */
+    public IndexedClassPath(String pathList) throws NotFoundException {
+        this.pathList = pathList;
+        HashMap<String,ArrayList<Element>> packages = new HashMap<String,ArrayList<Element>>();
+        for (File f: split(pathList))
+            if (f.isDirectory())
+                add(packages, new Directory(f));
+            else if (f.exists() || isJarName(f.getName()))
+                add(packages, openJar(f));
+
+        index = new HashMap<String,Element[]>(packages.size() * 2);
+        for (Map.Entry<String,ArrayList<Element>> e: packages.entrySet())
+            index.put(e.getKey(), e.getValue().toArray(NONE));
+    }
+
+    /**
+     * Returns the elements of the given path list.  A name ending with
+     * <code>*</code> is expanded into the jar files in the directory.
+     * The returned files may not exist.
+     */
+    static List<File> split(String pathList) {
+        ArrayList<File> files = new ArrayList<File>();
+        for (String path: pathList.split(File.pathSeparator))
+            if (path.endsWith("*")) {
+                File dir = new File(path.substring(0, path.length() - 1));
+                String[] names = dir.list();
+                if (names != null) {
+                    Arrays.sort(names);
+                    for (String name: names)
+                        if (isJarName(name))
+                            files.add(new File(dir, name));
+                }
+            }
+            else if (path.length() > 0)
+                files.add(new File(path));
+
+        return files;
+    }
+
+    private static void add(HashMap<String,ArrayList<Element>> packages, Element e) {
+        for (String p: e.packages) {
+            ArrayList<Element> list = packages.get(p);
+            if (list == null) {
+                list = new ArrayList<Element>(1);
+                packages.put(p, list);
+            }
+
+            list.add(e);
+        }
+
+        e.packages = null;
+    }
+
+    private static boolean isJarName(String name) {
+        String s = name.toLowerCase();
+        return s.endsWith(".jar") || s.endsWith(".zip");
+    }
+
+    private static Element openJar(File f) throws NotFoundException {
+        try {
+            try {
+                return new MappedJar(f);
+            }
+            catch (ZipException e) {
+                return new ZipJar(f);
+            }
+        }
+        catch (IOException e) {
+            throw new NotFoundException(f.getPath(), e);
+        }
+    }
+
+    private Element lookup(String entryName) {
+        int i = entryName.lastIndexOf('/');
+        Element[] elements = index.get(i < 0 ? "" : entryName.substring(0, i));
+        if (elements != null)
+            for (Element e: elements)
+                if (e.contains(entryName))
+                    return e;
+
+        return null;
+    }
+
+    private static String toEntryName(String className) {
+        return className.replace('.', '/') + ".class";
+    }
+
+    public InputStream openClassfile(String className) throws NotFoundException {
+        String entry = toEntryName(className);
+        Element e = lookup(entry);
+        if (e == null)
+            return null;
+
+        try {
+            return e.open(entry);
+        }
+        catch (IOException ex) {
+            throw new NotFoundException("broken class file: " + className, ex);
+        }
+    }
+
+    public URL find(String className) {
+        String entry = toEntryName(className);
+        Element e = lookup(entry);
+        if (e != null)
+            try {
+                return e.url(entry);
+            }
+            catch (MalformedURLException ex) {}
+
+        return null;
+    }
+
+    public String toString() {
+        return pathList;
+    }
+
+    /**
+     * A directory or a jar file.
+     */
+    static abstract class Element {
+        HashSet<String> packages = new HashSet<String>();   // null after indexing
+
+        void addPackageOf(String entryName) {
+            int i = entryName.lastIndexOf('/');
+            packages.add(i < 0 ? "" : entryName.substring(0, i));
+        }
+
+        abstract boolean contains(String entryName);
+        abstract InputStream open(String entryName) throws IOException;
+        abstract URL url(String entryName) throws MalformedURLException;
+    }
+
+    static class Directory extends Element {
+        private File root;
+
+        Directory(File dir) {
+            root = dir;
+            scan(dir, "");
+        }
+
+        private void scan(File dir, String pkg) {
+            File[] files = dir.listFiles();
+            if (files == null)
+                return;
+
+            boolean hasClass = false;
+            for (File f: files) {
+                String name = f.getName();
+                if (f.isDirectory())
+                    scan(f, pkg.length() == 0 ? name : pkg + '/' + name);
+                else if (!hasClass && name.endsWith(".class")) {
+                    packages.add(pkg);
+                    hasClass = true;
+                }
+            }
+        }
+
+        boolean contains(String entryName) {
+            return new File(root, entryName).isFile();
+        }
+
+        InputStream open(String entryName) throws IOException {
+            return new FileInputStream(new File(root, entryName));
+        }
+
+        URL url(String entryName) throws MalformedURLException {
+            return new File(root, entryName).toURI().toURL();
+        }
+    }
+
+    /**
+     * A jar file read through java.util.zip.
+     */
+    static class ZipJar extends Element {
+        private File file;
+        private ZipFile zip;
+
+        ZipJar(File f) throws IOException {
+            file = f;
+            zip = new ZipFile(f);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class"))
+                    addPackageOf(name);
+            }
+        }
+
+        boolean contains(String entryName) {
+            return zip.getEntry(entryName) != null;
+        }
+
+        InputStream open(String entryName) throws IOException {
+            ZipEntry e = zip.getEntry(entryName);
+            return e == null ? null : zip.getInputStream(e);
+        }
+
+        URL url(String entryName) throws MalformedURLException {
+            return new URL("jar:" + file.toURI() + "!/" + entryName);
+        }
+    }
+
+    /**
+     * A memory-mapped jar file.
+     */
+    static class MappedJar extends Element {
+        private static final int LOCAL_HEADER = 0x04034b50;
+        private static final int CENTRAL_HEADER = 0x02014b50;
+        private static final int END_HEADER = 0x06054b50;
+        private static final int ZIP64_LOCATOR = 0x07064b50;
+
+        private File file;
+        private ByteBuffer data;
+        private HashMap<String,int[]> entries;  // {offset, compressed size, size, method}
+                                                // for every file entry
+
+        MappedJar(File f) throws IOException {
+            file = f;
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                long len = raf.length();
+                if (len > Integer.MAX_VALUE)
+                    throw new ZipException("too large");
+
+                data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, len)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            finally {
+                raf.close();    // the mapping remains valid
+            }
+
+            readCentralDirectory();
+        }
+
+        private void readCentralDirectory() throws IOException {
+            int len = data.limit();
+            int end = -1;
+            for (int i = len - 22; i >= 0 && i >= len - 22 - 0xffff; i--)
+                if (data.getInt(i) == END_HEADER) {
+                    end = i;
+                    break;
+                }
+
+            if (end < 0)
+                throw new ZipException("not a zip file");
+
+            int n = data.getShort(end + 10) & 0xffff;
+            long offset = data.getInt(end + 16) & 0xffffffffL;
+            if (n == 0xffff || offset >= len
+                || (end >= 20 && data.getInt(end - 20) == ZIP64_LOCATOR))
+                throw new ZipException("ZIP64 is not supported");
+
+            entries = new HashMap<String,int[]>(n * 2);
+            int pos = (int)offset;
+            byte[] name = new byte[256];
+            for (int i = 0; i < n; i++) {
+                if (data.getInt(pos) != CENTRAL_HEADER)
+                    throw new ZipException("broken central directory");
+
+                int method = data.getShort(pos + 10) & 0xffff;
+                int csize = data.getInt(pos + 20);
+                int size = data.getInt(pos + 24);
+                int nameLen = data.getShort(pos + 28) & 0xffff;
+                int extraLen = data.getShort(pos + 30) & 0xffff;
+                int commentLen = data.getShort(pos + 32) & 0xffff;
+                int local = data.getInt(pos + 42);
+                if (nameLen > name.length)
+                    name = new byte[nameLen];
+
+                ByteBuffer b = data.duplicate();
+                ((Buffer)b).position(pos + 46);     // see read()
+                b.get(name, 0, nameLen);
+                String s = new String(name, 0, nameLen, "UTF-8");
+                if (!s.endsWith("/")) {
+                    entries.put(s, new int[] { local, csize, size, method });
+                    if (s.endsWith(".class"))
+                        addPackageOf(s);
+                }
+
+                pos += 46 + nameLen + extraLen + commentLen;
+            }
+        }
+
+        boolean contains(String entryName) {
+            return entries.containsKey(entryName);
+        }
+
+        InputStream open(String entryName) throws IOException {
+            byte[] data = read(entryName);
+            return data == null ? null : new ByteArrayInputStream(data);
+        }
+
+        /**
+         * Returns the contents of the entry, or null if not found.
+         * A stored entry is copied from the mapped data without any
+         * other processing.
+         */
+        byte[] read(String entryName) throws IOException {
+            int[] e = entries.get(entryName);
+            if (e == null)
+                return null;
+
+            int pos = e[0];
+            if (data.getInt(pos) != LOCAL_HEADER)
+                throw new ZipException("broken local header: " + entryName);
+
+            pos += 30 + (data.getShort(pos + 26) & 0xffff) + (data.getShort(pos + 28) & 0xffff);
+            byte[] compressed = new byte[e[1]];
+            /* ByteBuffer.position() returns ByteBuffer in Java 9 or later.
+             * It is called through Buffer so that the class file compiled
+             * by a newer JDK runs on Java 7 and 8.
+             */
+            ByteBuffer b = data.duplicate();
+            ((Buffer)b).position(pos);
+            b.get(compressed);
+            if (e[3] == ZipEntry.STORED)
+                return compressed;
+            else if (e[3] != ZipEntry.DEFLATED)
+                throw new ZipException("unsupported compression method: " + entryName);
+
+            byte[] classFile = new byte[e[2]];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed);
+                int n = 0;
+                while (n < classFile.length && !inflater.finished()) {
+                    int k = inflater.inflate(classFile, n, classFile.length - n);
+                    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+
+                    n += k;
+                }
+
+                if (n < classFile.length)
+                    throw new ZipException("broken entry: " + entryName);
+            }
+            catch (DataFormatException ex) {
+                throw new ZipException("broken entry: " + entryName);
+            }
+            finally {
+                inflater.end();
+            }
+
+            return classFile;
+        }
+
+        URL url(String entryName) throws MalformedURLException {
+            return new URL("jar:" + file.toURI() + "!/" + entryName);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * A call site of a revised method declared in an unmodifiable class
+ * such as <code>java.lang.Object</code>.  It is used instead of the
+ * <code>instanceof</code> sequence on a marker type when
+ * {@link ClassConverter#setIndyDispatch(boolean)} is on.
+ * Woven classes refer to {@link #bootstrap} and hence this class must be
+ * available at runtime.
+ *
+ * <p>The call site is an inline cache.  It is linked to a chain of tests
+ * on the class of the receiver, each of which calls either the revised
+ * method through the marker type or the original method.  After
+ * {@link #MAX_DEPTH} receiver classes, it tests whether the receiver is
+ * an instance of the marker type.
+ */
+public class InlineCache extends MutableCallSite {
+    /**
+     * The maximum number of receiver classes cached per call site.
+     */
+    public static final int MAX_DEPTH = 4;
+
+    private static final MethodHandle FALLBACK, CHECK_CLASS, IS_INSTANCE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            FALLBACK = lookup.findVirtual(InlineCache.class, "fallback",
+                            MethodType.methodType(Object.class, Object[].class));
+            CHECK_CLASS = lookup.findStatic(InlineCache.class, "checkClass",
+                            MethodType.methodType(boolean.class, Class.class, Object.class));
+            IS_INSTANCE = lookup.findVirtual(Class.class, "isInstance",
+                            MethodType.methodType(boolean.class, Object.class));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private MethodHandle original;      // the method declared in the unmodifiable class
+    private MethodHandle revised;       // the method declared in the marker type
+    private Class<?> markerType;
+    private int depth;                  // the number of cached receiver classes
+
+    /**
+     * The bootstrap method.
+     *
+     * @param name          the name of the original method.
+     * @param type          the type of the call site.  The first parameter
+     *                      is the receiver.
+     * @param original      the original method.
+     * @param revised       the method of the marker type.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type,
+                                     MethodHandle original, MethodHandle revised)
+    {
+        return new InlineCache(type, original, revised);
+    }
+
+    InlineCache(MethodType type, MethodHandle original, MethodHandle revised) {
+        super(type);
+        this.original = original.asType(type);
+        this.revised = revised.asType(type);
+        markerType = revised.type().parameterType(0);
+        depth = 0;
+        setTarget(FALLBACK.bindTo(this).asCollector(Object[].class, type.parameterCount())
+                          .asType(type));
+    }
+
+    private static boolean checkClass(Class<?> clazz, Object receiver) {
+        return receiver != null && receiver.getClass() == clazz;
+    }
+
+    /* Called when the receiver's class is not cached.
+     */
+    private Object fallback(Object[] args) throws Throwable {
+        Object receiver = args[0];
+        if (receiver == null)
+            return original.invokeWithArguments(args);     // throws NullPointerException
+
+        MethodHandle target = markerType.isInstance(receiver) ? revised : original;
+        relink(receiver.getClass(), target);
+        return target.invokeWithArguments(args);
+    }
+
+    private synchronized void relink(Class<?> clazz, MethodHandle target) {
+        MethodType receiverTest = MethodType.methodType(boolean.class, type().parameterType(0));
+        if (depth < MAX_DEPTH) {
+            depth++;
+            MethodHandle test = CHECK_CLASS.bindTo(clazz).asType(receiverTest);
+            setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+        }
+        else if (depth == MAX_DEPTH) {
+            depth++;
+            MethodHandle test = IS_INSTANCE.bindTo(markerType).asType(receiverTest);
+            setTarget(MethodHandles.guardWithTest(test, revised, original));
+        }
+    }
+}
@@ -2,36 +2,278 @@
 
 package javassist.gluonj.weave;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javassist.CtClass;
 
+/**
+ * The logger used in the debug mode.
+ *
+ * <p>Messages and class files are put into a bounded queue and written
+ * by a background thread so that the debug mode does not change
+ * the timing of the program much.  If the queue is full, a new message
+ * or class file is dropped and the number of dropped ones is reported
+ * later.  The queue is flushed when the JVM exits.
+ *
+ * <p>The following system properties are read when this class is
+ * initialized:
+ *
+ * <ul>
+ * <li><code>javassist.gluonj.debug.level</code>: error, warn, info,
+ * debug, or trace.  The default is trace.
+ * <li><code>javassist.gluonj.debug.packages</code>: the package names
+ * separated by commas.  Only the classes in these packages (and their
+ * sub packages) are dumped.  If not given, all the woven classes are
+ * dumped.
+ * </ul>
+ */
 public class Logger {
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    public static final int TRACE = 4;
+
+    private static final String[] LEVELS = { "error", "warn", "info", "debug", "trace" };
+
     public static boolean active = false;
     public static String dumpDir = "gluonj.debug";
 
-    public static void print(String s) {
-        if (active) {
-            System.err.println(s);
+    /**
+     * The messages with a level higher than this are not printed.
+     */
+    public static int level = parseLevel(System.getProperty("javassist.gluonj.debug.level"));
+
+    /**
+     * The packages of the classes dumped by dump(), or null if all.
+     */
+    public static String[] dumpPackages
+        = parsePackages(System.getProperty("javassist.gluonj.debug.packages"));
+
+    /**
+     * The maximum number of the messages and the class files in the queue.
+     */
+    public static final int QUEUE_SIZE = 8192;
+
+    /**
+     * The maximum number of the class files in the queue.
+     */
+    public static final int MAX_DUMPS = 256;
+
+    private static final ArrayBlockingQueue<Object> queue
+        = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+    private static final AtomicInteger pendingDumps = new AtomicInteger();
+    private static final AtomicInteger dropped = new AtomicInteger();
+    private static final Object lock = new Object();    // held while writing
+    private static volatile PrintStream out = null;     // null until the writer starts
+
+    static class Dump {
+        String className;
+        byte[] classFile;
+
+        Dump(String name, byte[] cf) {
+            className = name;
+            classFile = cf;
         }
     }
 
+    private static int parseLevel(String name) {
+        if (name != null)
+            for (int i = 0; i < LEVELS.length; i++)
+                if (LEVELS[i].equalsIgnoreCase(name))
+                    return i;
+
+        return TRACE;
+    }
+
+    private static String[] parsePackages(String value) {
+        if (value == null || value.length() == 0)
+            return null;
+        else
+            return value.split(",");
+    }
+
+    /**
+     * Returns true if a message of the given level is printed.
+     */
+    public static boolean isLoggable(int lv) {
+        return active && lv <= level;
+    }
+
+    /**
+     * Prints a debug message.
+     */
+    public static void print(String s) {
+        print(DEBUG, s);
+    }
+
+    public static void print(int lv, String s) {
+        if (isLoggable(lv))
+            enqueue(s);
+    }
+
     public static void print(String header, Object[] objects) {
-        if (!active)
+        if (!isLoggable(DEBUG))
             return;
 
+        StringBuilder sb = new StringBuilder();
         if (header != null)
-            System.err.print(header);
+            sb.append(header);
 
-        System.err.print("{");
-        for (int i = 0; i < objects.length; i++) {
-            System.err.print(objects[i]);
-            System.err.print(", ");
-        }
+        sb.append("{");
+        for (int i = 0; i < objects.length; i++)
+            sb.append(objects[i]).append(", ");
 
-        System.err.println("}");
+        sb.append("}");
+        enqueue(sb.toString());
     }
 
+    /**
+     * Writes the class file into dumpDir if the class is in
+     * dumpPackages.  The class is not frozen.
+     */
     public static void dump(CtClass clazz) {
-        if (active)
-            clazz.debugWriteFile(dumpDir);
+        if (!active || !isDumped(clazz.getName()))
+            return;
+
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+            clazz.getClassFile2().write(dout);
+            dout.flush();
+            dump(clazz.getName(), bout.toByteArray());
+        }
+        catch (IOException e) {
+            print(WARN, "cannot dump " + clazz.getName() + ": " + e);
+        }
+    }
+
+    /**
+     * Writes the class file into dumpDir if the class is in
+     * dumpPackages.
+     */
+    public static void dump(String className, byte[] classFile) {
+        if (!active || !isDumped(className))
+            return;
+
+        if (pendingDumps.incrementAndGet() > MAX_DUMPS) {
+            pendingDumps.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+        else if (!enqueue(new Dump(className, classFile)))
+            pendingDumps.decrementAndGet();
+    }
+
+    private static boolean isDumped(String className) {
+        String[] packages = dumpPackages;
+        if (packages == null)
+            return true;
+
+        for (String p: packages)
+            if (className.startsWith(p)
+                && (className.length() == p.length() || className.charAt(p.length()) == '.'))
+                return true;
+
+        return false;
+    }
+
+    private static boolean enqueue(Object entry) {
+        if (out == null)
+            start();
+
+        if (queue.offer(entry))
+            return true;
+        else {
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    private static synchronized void start() {
+        if (out != null)
+            return;
+
+        /* The writer thread must not load a class that the load-time
+         * weaver might transform.
+         */
+        new Dump(null, null);
+        out = new PrintStream(new BufferedOutputStream(System.err, 8192), false);
+        Thread writer = new Thread("gluonj-logger") {
+            public void run() {
+                try {
+                    while (true) {
+                        Object e = queue.take();
+                        synchronized (lock) {
+                            write(e);
+                            drain();
+                        }
+                    }
+                }
+                catch (InterruptedException e) {}
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("gluonj-logger-flush") {
+            public void run() { flush(); }
+        });
+    }
+
+    /**
+     * Writes all the entries in the queue.
+     */
+    public static void flush() {
+        if (out != null)
+            synchronized (lock) {
+                drain();
+            }
+    }
+
+    /* lock must be held.
+     */
+    private static void drain() {
+        Object e;
+        while ((e = queue.poll()) != null)
+            write(e);
+
+        int n = dropped.getAndSet(0);
+        if (n > 0)
+            out.println("(" + n + " log entries dropped)");
+
+        out.flush();
+    }
+
+    private static void write(Object e) {
+        if (e instanceof Dump) {
+            Dump d = (Dump)e;
+            pendingDumps.decrementAndGet();
+            File file = new File(dumpDir, d.className.replace('.', File.separatorChar) + ".class");
+            try {
+                File dir = file.getParentFile();
+                if (dir != null)
+                    dir.mkdirs();
+
+                FileOutputStream fout = new FileOutputStream(file);
+                try {
+                    fout.write(d.classFile);
+                }
+                finally {
+                    fout.close();
+                }
+            }
+            catch (IOException ex) {
+                out.println("cannot dump " + d.className + ": " + ex);
+            }
+        }
+        else
+            out.println(e);
     }
 }
@@ -3,6 +3,7 @@
 package javassist.gluonj.weave;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import javassist.ClassPool;
 import javassist.CtClass;
@@ -19,21 +20,54 @@ public class Main {
         ArrayList<String> files = new ArrayList<String>();
         String classPath = null;
         String outDir = ".";
+        int threads = 1;
+        String cacheDir = null;
+        boolean detach = false;
+        boolean indy = false;
+        boolean fuse = false;
+        boolean merge = false;
+        String archive = null;
+        String manifest = null;
         for (int i = 0; i < args.length; i++)
             if (args[i].equals("-debug"))
                 Logger.active = true;
             else if (args[i].equals("-d") && i + 1 < args.length)
                 outDir = args[++i];
+            else if (args[i].equals("-j") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-cache") && i + 1 < args.length)
+                cacheDir = args[++i];
+            else if (args[i].equals("-detach"))
+                detach = true;
+            else if (args[i].equals("-indy"))
+                indy = true;
+            else if (args[i].equals("-fuse"))
+                fuse = true;
+            else if (args[i].equals("-merge"))
+                merge = true;
             else if (args[i].equals("-cp") && i + 1 < args.length)
                 classPath = args[++i];
+            else if (args[i].equals("-archive") && i + 1 < args.length)
+                archive = args[++i];
+            else if (args[i].equals("-manifest") && i + 1 < args.length)
+                manifest = args[++i];
+            else if (args[i].equals("-attach") && i + 2 < args.length) {
+                attach(args[i + 1], (Logger.active ? "debug:" : "") + args[i + 2]);
+                return;
+            }
             else
                 files.add(args[i]);
 
-        if (files.size() == 0)
+        boolean scan = archive != null || manifest != null;
+        if (files.size() == 0 || (scan && files.size() > 1))
             help();
         else if (files.size() > 0)
             try {
-                compile(outDir, classPath, files.toArray(new String[files.size()]));
+                if (scan)
+                    scan(archive, manifest, classPath, detach, indy, fuse, merge, files.get(0));
+                else
+                    compile(outDir, classPath, threads, cacheDir, detach, indy, fuse, merge,
+                            files.toArray(new String[files.size()]));
             }
             catch (WeaveException e) {
                 System.err.println("Error: " + e.getMessage());
@@ -48,29 +82,114 @@ public class Main {
     }
 
     private static void help() {
-        System.out.println("GluonJ runtime version 2.4");
+        System.out.println("GluonJ runtime version " + Weaver.VERSION);
         System.out.println("Copyright (C) 2009- Shigeru Chbia.  All rights reserved");
         System.out.println();
-        System.out.println("Usage: java -jar gluonj.jar [-debug] [-d <dest dir>] [-cp <class path>] <class file> ...");
+        System.out.println("Usage: java -jar gluonj.jar [-debug] [-d <dest dir>] [-cp <class path>] [-j <threads>] [-cache <cache dir>] [-detach] [-indy] [-fuse] [-merge] <class file or jar file> ...");
         System.out.println("Usage: java -javaagent:gluonj.jar=[debug:]<reviser>,<reviser>,... <main class>");
+        System.out.println("Usage: java -jar gluonj.jar [-debug] -attach <pid> <reviser>,<reviser>,...");
+        System.out.println("Usage: java -jar gluonj.jar [-debug] [-cp <class path>] [-detach] [-indy] [-fuse] [-merge] [-archive <archive file>] [-manifest <manifest file>] <reviser>,<reviser>,...");
     }
 
-    private static void compile(String outDir, String classPath, String[] fileNames)
+    /* Loads this jar file as an agent into the running JVM.
+     * The attach API is called through reflection since it is not
+     * available in every JRE.
+     */
+    private static void attach(String pid, String agentArgs) throws Exception {
+        String jar = new File(Main.class.getProtectionDomain().getCodeSource()
+                                        .getLocation().toURI()).getPath();
+        Class<?> vmClass;
+        try {
+            vmClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+        }
+        catch (ClassNotFoundException e) {
+            System.err.println("Error: the attach API is not available");
+            return;
+        }
+
+        try {
+            Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+            try {
+                vmClass.getMethod("loadAgent", String.class, String.class).invoke(vm, jar, agentArgs);
+            }
+            finally {
+                vmClass.getMethod("detach").invoke(vm);
+            }
+        }
+        catch (InvocationTargetException e) {
+            System.err.println("Error: cannot attach to " + pid + ": " + e.getCause());
+            if (Logger.active)
+                e.getCause().printStackTrace(System.err);
+        }
+    }
+
+    /* Scans the classes in the class path as the load-time weaver
+     * does and writes an archive and/or a manifest used by the load-time
+     * weaver.  The weaver is configured by the system properties as
+     * the load-time weaver is.
+     */
+    private static void scan(String archive, String manifest, String classPath,
+                             boolean detach, boolean indy, boolean fuse, boolean merge,
+                             String agentArgs)
+        throws WeaveException
+    {
+        if (classPath == null)
+            classPath = ".";
+
+        System.setProperty(Weaver.CLASSPATH_PROPERTY, classPath);
+        System.setProperty(Weaver.DETACH_PROPERTY, Boolean.toString(detach));
+        System.setProperty(Weaver.INDY_PROPERTY, Boolean.toString(indy));
+        System.setProperty(Weaver.FUSE_PROPERTY, Boolean.toString(fuse));
+        System.setProperty(Weaver.MERGE_PROPERTY, Boolean.toString(merge));
+        String[] revisers = agentArgs.replace('/', '.').split(",");
+        Weaver weaver = new Weaver(revisers, Main.class.getClassLoader(), true);
+        if (manifest != null)
+            weaver.writeManifest(classPath, revisers, new File(manifest));
+
+        if (archive != null)
+            weaver.writeArchive(classPath, revisers, new File(archive));
+    }
+
+    private static void compile(String outDir, String classPath, int threads,
+                                String cacheDir, boolean detach, boolean indy,
+                                boolean fuse, boolean merge, String[] fileNames)
         throws WeaveException, NotFoundException
     {
-        ClassPool pool = new ClassPool();
+        ClassPool pool = Weaver.newClassPool(false);
         if (classPath == null)
             pool.appendClassPath(".");
         else
-            pool.appendPathList(classPath);
+            pool.appendClassPath(new IndexedClassPath(classPath));
+
+        ArrayList<String> classFiles = new ArrayList<String>();
+        ArrayList<String> jarFiles = new ArrayList<String>();
+        for (String fname: fileNames)
+            if (fname.endsWith(".jar")) {
+                File src = new File(fname).getAbsoluteFile();
+                if (new File(outDir, src.getName()).getAbsoluteFile().equals(src))
+                    throw new WeaveException("the woven jar file would overwrite " + fname);
+
+                pool.insertClassPath(new IndexedClassPath(fname));
+                jarFiles.add(fname);
+            }
+            else
+                classFiles.add(fname);
 
         pool.appendSystemPath();
         ReviserTree tree = new ReviserTree();
         File base = new File(".");
-        CtClass[] classes = new CtClass[fileNames.length];
-        int i = 0;
-        for (String fname: fileNames)
-            classes[i++] = Weaver.readClass(pool, base, fname);
+        ArrayList<CtClass> classes = new ArrayList<CtClass>();
+        for (String fname: classFiles) {
+            CtClass c = Weaver.readClass(pool, base, fname);
+            /* If detach is true, only the revisers are kept in the pool.
+             * Otherwise, all the classes are kept until every reviser is
+             * appended to the tree since a reviser may refer to them.
+             */
+            if (detach && !ReviserTree.isReviser(c))
+                c.detach();
+            else
+                classes.add(c);
+        }
 
         ArrayList<String> reviserNames = new ArrayList<String>();
         for (CtClass c: classes)
@@ -79,12 +198,30 @@ public class Main {
             else
                 c.detach();     // not @Rivser
 
+        classes = null;
+        /* The order of the revisers in a jar file is not
+         * the precedence order.  It is given by @Require.
+         */
+        for (String fname: jarFiles)
+            for (CtClass c: Weaver.readRevisers(pool, new File(fname)))
+                tree.append(c.getName(), c, false);
+
         tree.addRequiringOrder(reviserNames.toArray(new String[reviserNames.size()]));
-        Weaver weaver = new Weaver(tree, pool);
+        Weaver weaver = new Weaver(tree, pool, merge);
         weaver.setOutputDir(outDir);
+        weaver.setThreads(threads);
+        weaver.setIndyDispatch(indy);
+        weaver.setFuseChains(fuse);
+        weaver.setCacheDir(cacheDir);
+        weaver.setDetach(detach);
         tree = null;
-        for (String fname: fileNames)
-            weaver.transformFile(base, fname);
+        if (classFiles.size() > 0)
+            weaver.transformFiles(base, classFiles.toArray(new String[classFiles.size()]));
+
+        for (String fname: jarFiles) {
+            File src = new File(fname);
+            weaver.transformJar(src, new File(outDir, src.getName()));
+        }
 
         weaver.writeHelpers();
     }
@@ -2,14 +2,24 @@
 
 package javassist.gluonj.weave;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javassist.CannotCompileException;
+import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CodeConverter;
 import javassist.NotFoundException;
 import javassist.bytecode.BadBytecode;
+import javassist.bytecode.BootstrapMethodsAttribute;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
 import javassist.bytecode.CodeAttribute;
 import javassist.bytecode.CodeIterator;
 import javassist.bytecode.ConstPool;
@@ -24,12 +34,28 @@ import javassist.convert.Transformer;
 public class MethodConverter extends CodeConverter {
     private TransformNewClass newTransformer;
     private TransformNewIClass newIfaceTransformer;
+    private CodeRewriter rewriter;
 
     public MethodConverter(ClassConverter mt) {
-        TransformCall tc = new TransformCall(transformers, mt);
-        newTransformer = new TransformNewClass(tc, mt);
+        this(mt, new HashMap<String, List<Reviser>>());
+    }
+
+    /**
+     * Makes a copy of the given converter.  Since a converter
+     * keeps the state of the method being transformed, each thread
+     * needs its own copy.  The copy shares the records made by
+     * replaceNewIClass() with the original converter.
+     */
+    public MethodConverter(ClassConverter mt, MethodConverter conv) {
+        this(mt, conv.newIfaceTransformer.interfaceNames);
+    }
+
+    private MethodConverter(ClassConverter mt, HashMap<String, List<Reviser>> interfaceNames) {
+        rewriter = new CodeRewriter();
+        TransformCall tc = new TransformCall(transformers, mt, rewriter);
+        newTransformer = new TransformNewClass(tc, mt, rewriter);
         transformers = newIfaceTransformer
-                     = new TransformNewIClass(newTransformer, mt);
+                     = new TransformNewIClass(newTransformer, mt, interfaceNames);
     }
 
     /**
@@ -41,6 +67,39 @@ public class MethodConverter extends CodeConverter {
         newIfaceTransformer.record(target, revisers);
     }
 
+    /* Writes the records made by replaceNewIClass() into a snapshot.
+     */
+    void writeRecords(DataOutputStream out) throws IOException {
+        HashMap<String, List<Reviser>> records = newIfaceTransformer.interfaceNames;
+        out.writeInt(records.size());
+        for (Map.Entry<String, List<Reviser>> e: records.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue().size());
+            for (Reviser r: e.getValue())
+                out.writeUTF(r.getName());
+        }
+    }
+
+    void readRecords(DataInputStream in, ClassPool cp)
+        throws IOException, NotFoundException
+    {
+        for (int n = in.readInt(); n > 0; n--) {
+            CtClass target = cp.get(in.readUTF());
+            ArrayList<Reviser> revisers = new ArrayList<Reviser>();
+            for (int m = in.readInt(); m > 0; m--)
+                revisers.add(new Reviser(target, cp.get(in.readUTF())));
+
+            replaceNewIClass(target, revisers);
+        }
+    }
+
+    /**
+     * Returns true if replaceNewIClass() has been called.
+     */
+    public boolean replacesNewIClass() {
+        return !newIfaceTransformer.interfaceNames.isEmpty();
+    }
+
     /**
      * This revise() calls revise() on all registered TransformNewIClass
      * objects. If the target is an interface, this revise() does not call
@@ -54,17 +113,137 @@ public class MethodConverter extends CodeConverter {
         }
     }
 
+    /**
+     * Transforms a method body.  Unlike CodeConverter, the transformers
+     * do not insert instructions while they scan the method body.
+     * They record the instructions and then the code array is
+     * rewritten at once.
+     */
+    protected void doit(CtClass clazz, MethodInfo minfo, ConstPool cp)
+        throws CannotCompileException
+    {
+        CodeAttribute codeAttr = minfo.getCodeAttribute();
+        if (codeAttr == null)
+            return;
+
+        boolean trace = Logger.isLoggable(Logger.TRACE);
+        long start = trace ? System.nanoTime() : 0;
+        rewriter.reset();
+        for (Transformer t = transformers; t != null; t = t.getNext())
+            t.initialize(cp, clazz, minfo);
+
+        try {
+            CodeIterator iterator = codeAttr.iterator();
+            while (iterator.hasNext()) {
+                int pos = iterator.next();
+                for (Transformer t = transformers; t != null; t = t.getNext())
+                    pos = t.transform(clazz, pos, iterator, cp);
+            }
+
+            rewriter.apply(minfo);
+            codeAttr = minfo.getCodeAttribute();
+        }
+        catch (BadBytecode e) {
+            throw new CannotCompileException(e);
+        }
+
+        int locals = 0;
+        int stack = 0;
+        for (Transformer t = transformers; t != null; t = t.getNext()) {
+            locals = Math.max(locals, t.extraLocals());
+            stack = Math.max(stack, t.extraStack());
+            t.clean();
+        }
+
+        if (locals > 0)
+            codeAttr.setMaxLocals(codeAttr.getMaxLocals() + locals);
+
+        if (stack > 0)
+            codeAttr.setMaxStack(codeAttr.getMaxStack() + stack);
+
+        try {
+            minfo.rebuildStackMapIf6(clazz.getClassPool(), clazz.getClassFile2());
+        }
+        catch (BadBytecode e) {
+            throw new CannotCompileException(e.getMessage(), e);
+        }
+
+        if (trace)
+            Logger.print(Logger.TRACE, "Woven.. " + clazz.getName() + "." + minfo.getName()
+                         + minfo.getDescriptor() + ": " + rewriter.size() + " edits, "
+                         + (System.nanoTime() - start) / 1000 + " us");
+    }
+
+    /**
+     * Appends an entry to the BootstrapMethods attribute of the class file
+     * and returns its index.
+     *
+     * @param className     the class declaring the bootstrap method.
+     *                      The method name is <code>bootstrap</code>.
+     * @param desc          the descriptor of the bootstrap method.
+     * @param args          the constant pool indexes of the static arguments.
+     */
+    static int addBootstrapMethod(ClassFile cf, ConstPool cp, String className,
+                                  String desc, int[] args)
+    {
+        BootstrapMethodsAttribute attr
+            = (BootstrapMethodsAttribute)cf.getAttribute(BootstrapMethodsAttribute.tag);
+        BootstrapMethodsAttribute.BootstrapMethod[] methods;
+        if (attr == null)
+            methods = new BootstrapMethodsAttribute.BootstrapMethod[1];
+        else {
+            BootstrapMethodsAttribute.BootstrapMethod[] old = attr.getMethods();
+            methods = Arrays.copyOf(old, old.length + 1);
+        }
+
+        int bootstrap = cp.addMethodHandleInfo(ConstPool.REF_invokeStatic,
+                            cp.addMethodrefInfo(cp.addClassInfo(className), "bootstrap", desc));
+        int last = methods.length - 1;
+        methods[last] = new BootstrapMethodsAttribute.BootstrapMethod(bootstrap, args);
+        cf.addAttribute(new BootstrapMethodsAttribute(cp, methods));
+        return last;
+    }
+
     /**
      * Transforming call expressions.
      */
     static public class TransformCall extends Transformer {
         private ClassConverter conv;
+        private CodeRewriter rewriter;
 
         private MethodInfo current;
 
-        public TransformCall(Transformer next, ClassConverter mt) {
+        /* The results of lookupMethod() for the methodref entries of
+         * the constant pool of the class being transformed.
+         * An element is NONE if the method is not revised.
+         * They are discarded when the constant pool or the methods
+         * in the ClassConverter change.
+         */
+        private ConstPool cachedPool;
+        private int cachedVersion;
+        private Object[] resolved;
+
+        private static final Object NONE = new Object();
+
+        /* The invokedynamic entries added to the constant pool by
+         * transformIndy().  The keys are the indexes of the two
+         * method handles given to the bootstrap method.
+         */
+        private ConstPool indyPool;
+        private HashMap<String,Integer> indyIndexes;
+
+        /**
+         * @param rewriter      the code inserted by this transformer
+         *                      is recorded in this.
+         */
+        TransformCall(Transformer next, ClassConverter mt, CodeRewriter rewriter) {
             super(next);
             conv = mt;
+            this.rewriter = rewriter;
+            cachedPool = null;
+            resolved = new Object[0];
+            indyPool = null;
+            indyIndexes = new HashMap<String,Integer>();
         }
 
         public void initialize(ConstPool cp, CtClass clazz, MethodInfo minfo)
@@ -80,6 +259,10 @@ public class MethodConverter extends CodeConverter {
             if (c == INVOKEINTERFACE || c == INVOKESPECIAL || c == INVOKESTATIC
                     || c == INVOKEVIRTUAL) {
                 int index = iterator.u16bitAt(pos + 1);
+                ClassConverter.Method m = lookup(cp, index);
+                if (m == null)
+                    return pos;
+
                 int nt;
                 String className;
                 if (c == INVOKEINTERFACE) {
@@ -95,9 +278,8 @@ public class MethodConverter extends CodeConverter {
                 String method = cp.getUtf8Info(cp.getNameAndTypeName(nt));
                 String desc = cp.getUtf8Info(ntd);
                 try {
-                    ClassConverter.Method m = conv.lookupMethod(method, desc);
                     // check here whether the className is a NewIClass
-                    if (m != null && m.invokedOn(className, conv)) {
+                    if (m.invokedOn(className, conv)) {
                         String enclosingClass = clazz.getName();
                         String curName = current.getName();
                         String curDesc = current.getDescriptor();
@@ -125,8 +307,13 @@ public class MethodConverter extends CodeConverter {
                                     }
                                 }
                                 else {
-                                    CtClass markerType = p.makeMarkerType(conv, clazz.getClassPool(), desc);
-                                    transformIf(markerType.getName(), nt, ntd, desc, iterator, pos, c, cp, p);
+                                    CtClass markerType = p.makeMarkerType(conv, conv.getSharedPool(), desc);
+                                    if (conv.isIndyDispatch() && c != INVOKESPECIAL && c != INVOKESTATIC
+                                        && clazz.getClassFile2().getMajorVersion() >= ClassFile.JAVA_7)
+                                        transformIndy(clazz.getClassFile2(), markerType.getName(),
+                                                      index, ci, nt, ntd, desc, pos, c, cp, p);
+                                    else
+                                        transformIf(markerType.getName(), nt, ntd, desc, pos, c, cp, p);
                                 }
 
                                 break;
@@ -136,56 +323,145 @@ public class MethodConverter extends CodeConverter {
                 catch (NotFoundException e) {
                     throw new CannotCompileException(e);
                 }
-                catch (BadBytecode bb) {
-                    throw new CannotCompileException(bb);
-                }
             }
 
             return pos;
         }
 
+        /* Returns the revised method referred to by the constant pool
+         * entry at the index, or null.  The class name is not decoded
+         * here since most call sites do not call a revised method.
+         */
+        private ClassConverter.Method lookup(ConstPool cp, int index)
+            throws CannotCompileException
+        {
+            int version = conv.getVersion();
+            if (cp != cachedPool || version != cachedVersion) {
+                cachedPool = cp;
+                cachedVersion = version;
+                resolved = new Object[cp.getSize()];
+            }
+            else if (index >= resolved.length)  // cp has grown
+                resolved = Arrays.copyOf(resolved, cp.getSize());
+
+            Object m = resolved[index];
+            if (m == null) {
+                int nt = cp.getMemberNameAndType(index);
+                try {
+                    m = conv.lookupMethod(cp.getUtf8Info(cp.getNameAndTypeName(nt)),
+                                          cp.getUtf8Info(cp.getNameAndTypeDescriptor(nt)));
+                }
+                catch (NotFoundException e) {
+                    throw new CannotCompileException(e);
+                }
+
+                if (m == null)
+                    m = NONE;
+
+                resolved[index] = m;
+            }
+
+            return m == NONE ? null : (ClassConverter.Method)m;
+        }
+
+        /* Inserts the following code before the call at pos:
+         *
+         *     [swap]                  if the method takes an argument
+         *     dup
+         *     instanceof marker
+         *     ifeq L
+         *     checkcast marker
+         *     [swap]
+         *     invokeinterface marker.realName
+         *     goto (the instruction after the call)
+         * L:  [swap]
+         *     (the call)
+         */
         private void transformIf(String markerType, int nameAndTypeIndex, int descIndex,
-                                 String desc, CodeIterator iterator, int pos, int opcode,
-                                 ConstPool cp, Predicate pred)
-            throws CannotCompileException, BadBytecode
+                                 String desc, int pos, int opcode, ConstPool cp,
+                                 Predicate pred)
+            throws CannotCompileException
         {
             int nargs = javassist.bytecode.Descriptor.paramSize(desc);
             int markerIndex = cp.addClassInfo(markerType);
-            int origPos = pos + iterator.insertGap(pos, nargs == 1 ? 21 : 18);
-
-            if (nargs == 1)
-                iterator.writeByte(SWAP, pos++);
-            else if (nargs > 0)
+            if (nargs > 1)
                 throw new CannotCompileException("cannot advise the method: "
                         + cp.getUtf8Info(cp.getNameAndTypeName(nameAndTypeIndex))
                         + ":" + desc);
 
-            iterator.writeByte(DUP, pos);
-            iterator.writeByte(INSTANCEOF, pos + 1);
-            iterator.write16bit(markerIndex, pos + 2);
-            iterator.writeByte(IFEQ, pos + 4); // if false
-            int jumpPos = pos + 4;
-
-            iterator.writeByte(CHECKCAST, pos + 7);
-            iterator.write16bit(markerIndex, pos + 8);
-            pos += 10;
+            Bytecode code = new Bytecode(cp);
+            if (nargs == 1)
+                code.addOpcode(SWAP);
+
+            code.addOpcode(DUP);
+            code.addOpcode(INSTANCEOF);
+            code.addIndex(markerIndex);
+            int jumpPos = code.currentPc();
+            code.addOpcode(IFEQ);   // if false
+            code.addIndex(0);
+            code.addOpcode(CHECKCAST);
+            code.addIndex(markerIndex);
             if (nargs == 1)
-                iterator.writeByte(SWAP, pos++);
+                code.addOpcode(SWAP);
 
-            iterator.writeByte(INVOKEINTERFACE, pos);
             int index = cp.addInterfaceMethodrefInfo(markerIndex,
                            pred.getRealMethodIndex(cp, nameAndTypeIndex, descIndex));
-            iterator.write16bit(index, pos + 1);
-            iterator.write16bit((nargs + 1) << 8, pos + 3);
-            iterator.writeByte(GOTO, pos + 5);
-            int codeSize = opcode == INVOKEINTERFACE ? 5 : 3;
-            iterator.write16bit(origPos + codeSize - (pos + 5), pos + 6);
-            pos += 8;
-            iterator.write16bit(pos - jumpPos, jumpPos + 1);
+            code.addOpcode(INVOKEINTERFACE);
+            code.addIndex(index);
+            code.add(nargs + 1, 0);
+            int gotoPos = code.currentPc();
+            code.addOpcode(GOTO);
+            code.addIndex(0);
+            code.write16bit(jumpPos + 1, code.currentPc() - jumpPos);
             if (nargs == 1)
-                iterator.writeByte(SWAP, pos);
+                code.addOpcode(SWAP);
+
+            // the call is placed after the inserted code.
+            int codeSize = opcode == INVOKEINTERFACE ? 5 : 3;
+            code.write16bit(gotoPos + 1, code.currentPc() + codeSize - gotoPos);
+            rewriter.insert(pos, code.get());
+        }
+
+        /* Replaces the call at pos with invokedynamic.  The bootstrap
+         * method is InlineCache.bootstrap() and its static arguments are
+         * the original method and the method of the marker type.
+         */
+        private void transformIndy(ClassFile cf, String markerType, int index, int classIndex,
+                                   int nameAndTypeIndex, int descIndex, String desc,
+                                   int pos, int opcode, ConstPool cp, Predicate pred)
+        {
+            if (cp != indyPool) {
+                indyPool = cp;
+                indyIndexes.clear();
+            }
+
+            int realNt = pred.getRealMethodIndex(cp, nameAndTypeIndex, descIndex);
+            int revised = cp.addMethodHandleInfo(ConstPool.REF_invokeInterface,
+                              cp.addInterfaceMethodrefInfo(cp.addClassInfo(markerType), realNt));
+            int original = cp.addMethodHandleInfo(opcode == INVOKEINTERFACE
+                                                  ? ConstPool.REF_invokeInterface
+                                                  : ConstPool.REF_invokeVirtual, index);
+            String key = original + ":" + revised;
+            Integer indy = indyIndexes.get(key);
+            if (indy == null) {
+                int bootstrap = addBootstrapMethod(cf, cp, InlineCache.class.getName(),
+                                                   BOOTSTRAP_DESC, new int[] { original, revised });
+                String type = "(" + cp.getClassInfoByDescriptor(classIndex) + desc.substring(1);
+                int nt = cp.addNameAndTypeInfo(cp.getNameAndTypeName(nameAndTypeIndex),
+                                               cp.addUtf8Info(type));
+                indy = cp.addInvokeDynamicInfo(bootstrap, nt);
+                indyIndexes.put(key, indy);
+            }
+
+            int i = indy;
+            rewriter.replace(pos, new byte[] { (byte)INVOKEDYNAMIC, (byte)(i >> 8), (byte)i, 0, 0 });
         }
 
+        private static final String BOOTSTRAP_DESC
+            = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+              + "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;"
+              + "Ljava/lang/invoke/MethodHandle;)Ljava/lang/invoke/CallSite;";
+
         public int extraStack() { return 1; }
     }
 
@@ -195,10 +471,12 @@ public class MethodConverter extends CodeConverter {
     public static class TransformNewClass extends Transformer {
         private int nested;
         private ClassConverter conv;
+        private CodeRewriter rewriter;
 
-        public TransformNewClass(Transformer next, ClassConverter mt) {
+        TransformNewClass(Transformer next, ClassConverter mt, CodeRewriter rewriter) {
             super(next);
             conv = mt;
+            this.rewriter = rewriter;
         }
 
         public void initialize(ConstPool cp, CodeAttribute attr) {
@@ -255,14 +533,8 @@ public class MethodConverter extends CodeConverter {
                     if (index2 < 0x100)
                         iterator.writeByte(index2, pos + 1);
                     else
-                        try {
-                            iterator.insertGap(pos, 1);
-                            iterator.writeByte(LDC_W, pos);
-                            iterator.write16bit(index2, pos + 1);
-                        }
-                        catch (BadBytecode bb) {
-                            throw new CannotCompileException(bb);
-                        }
+                        rewriter.replace(pos, new byte[] { (byte)LDC_W, (byte)(index2 >> 8),
+                                                           (byte)index2 });
                 }
             }
         }
@@ -285,19 +557,24 @@ public class MethodConverter extends CodeConverter {
      */
     static public class TransformNewIClass extends Transformer {
         private ClassConverter conv;
-        private HashMap<CtClass, List<Reviser>> interfaceNames;
+        private HashMap<String, List<Reviser>> interfaceNames;
 
         /**
          * Transforms a NEW expression (object creation).
          */
         public TransformNewIClass(Transformer next, ClassConverter mt) {
+            this(next, mt, new HashMap<String, List<Reviser>>());
+        }
+
+        TransformNewIClass(Transformer next, ClassConverter mt,
+                           HashMap<String, List<Reviser>> interfaceNames) {
             super(next);
             conv = mt;
-            interfaceNames = new HashMap<CtClass, List<Reviser>>();
+            this.interfaceNames = interfaceNames;
         }
 
         public void record(CtClass targetInterface, List<Reviser> revisers) {
-            interfaceNames.put(targetInterface, revisers);
+            interfaceNames.put(targetInterface.getName(), revisers);
         }
 
         public int transform(CtClass clazz, int pos, CodeIterator iterator, ConstPool cp)
@@ -332,13 +609,26 @@ public class MethodConverter extends CodeConverter {
         public void revise(CtClass target, CtClass[] interfaces)
             throws WeaveException
         {
-            String found = conv.getNewClassName(target.getName());
-            if (found == null) // unless the class has been already modified.
-                for (CtClass iface : interfaces) {
-                    List<Reviser> revisers = interfaceNames.get(iface);
-                    if (revisers != null)
-                        conv.copyAndReorderRevisers(target, revisers);
-                }
+            /* interfaceNames is not modified after prepare().
+             * The lock is taken only if target implements a revised interface.
+             */
+            boolean revised = false;
+            for (CtClass iface : interfaces)
+                if (interfaceNames.containsKey(iface.getName()))
+                    revised = true;
+
+            if (!revised)
+                return;
+
+            synchronized (conv) {
+                String found = conv.getNewClassName(target.getName());
+                if (found == null) // unless the class has been already modified.
+                    for (CtClass iface : interfaces) {
+                        List<Reviser> revisers = interfaceNames.get(iface.getName());
+                        if (revisers != null)
+                            conv.copyAndReorderRevisers(target, revisers);
+                    }
+            }
         }
     }
 }
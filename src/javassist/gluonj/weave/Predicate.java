@@ -9,6 +9,9 @@ import javassist.CannotCompileException;
 import javassist.NotFoundException;
 import javassist.bytecode.ConstPool;
 import javassist.gluonj.weave.WeaveException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 public abstract class Predicate {
@@ -29,6 +32,43 @@ public abstract class Predicate {
         return pd;
     }
 
+    // the kinds of predicates written in a snapshot
+    static final int PROCEED = 'P';
+    static final int OTHERS = 'O';
+    static final int WITHIN = 'W';
+    static final int WITHIN_CODE = 'C';
+
+    /**
+     * Reads a predicate written by write().  The classes declaring
+     * the predicate methods and the marker types must be in the class pool.
+     */
+    static Predicate read(DataInputStream in, ClassPool cp)
+        throws IOException, NotFoundException
+    {
+        int kind = in.readByte();
+        if (kind == PROCEED || kind == OTHERS) {
+            String orig = in.readUTF();
+            String superName = in.readUTF();
+            String reviser = in.readUTF();
+            String mname = in.readUTF();
+            if (kind == PROCEED)
+                return new RedirectProceed(orig, superName, reviser, mname);
+            else
+                return new RedirectOthers(orig, superName, reviser, mname);
+        }
+        else if (kind == WITHIN)
+            return new PredicateWithin(in, cp);
+        else if (kind == WITHIN_CODE)
+            return new PredicateWithinCode(in, cp);
+        else
+            throw new IOException("unknown predicate: " + kind);
+    }
+
+    /**
+     * Writes this predicate into a snapshot.
+     */
+    abstract void write(DataOutputStream out) throws IOException;
+
     public boolean isFor(CtMethod cm) { return false; }
     public boolean isDuplicated() { return true; }
     public void setDuplicated(Predicate p) {}
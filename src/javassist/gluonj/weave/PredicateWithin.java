@@ -2,6 +2,9 @@
 
 package javassist.gluonj.weave;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
 import javassist.CtClass;
 import javassist.ClassPool;
@@ -35,12 +38,41 @@ public class PredicateWithin extends Predicate {
         throws WeaveException
     {
         method = cm;
-        realName = ClassConverter.uniqueName(cm.getName());
+        realName = ClassConverter.uniqueName(cm);
         duplicated = false;
         className = cname;
         markerType = null;
     }
 
+    /**
+     * Reads a predicate written by write().
+     */
+    PredicateWithin(DataInputStream in, ClassPool cp) throws IOException, NotFoundException {
+        CtClass declaring = cp.get(in.readUTF());
+        String name = in.readUTF();
+        method = declaring.getMethod(name, in.readUTF());
+        realName = in.readUTF();
+        duplicated = in.readBoolean();
+        className = in.readUTF();
+        String marker = in.readUTF();
+        markerType = marker.length() == 0 ? null : cp.get(marker);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        write(out, WITHIN);
+    }
+
+    void write(DataOutputStream out, int kind) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(method.getDeclaringClass().getName());
+        out.writeUTF(method.getName());
+        out.writeUTF(method.getSignature());
+        out.writeUTF(realName);
+        out.writeBoolean(duplicated);
+        out.writeUTF(className);
+        out.writeUTF(markerType == null ? "" : markerType.getName());
+    }
+
     public boolean isFor(CtMethod cm) {
         return method == cm;
     }
@@ -99,7 +131,7 @@ public class PredicateWithin extends Predicate {
 
     public boolean callDirectly(ClassConverter.Method m) { return m.callDirectly(); }
 
-    public CtClass makeMarkerType(ClassConverter mt, ClassPool cpool, String descriptor)
+    public synchronized CtClass makeMarkerType(ClassConverter mt, ClassPool cpool, String descriptor)
         throws CannotCompileException
     {
         if (markerType == null) {
@@ -2,7 +2,12 @@
 
 package javassist.gluonj.weave;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import javassist.ClassPool;
 import javassist.CtMethod;
+import javassist.NotFoundException;
 import javassist.bytecode.Descriptor;
 
 public class PredicateWithinCode  extends PredicateWithin {
@@ -21,6 +26,23 @@ public class PredicateWithinCode  extends PredicateWithin {
             throw new WeaveException("no @WithinCode or @Code:" + cm);
     }
 
+    /**
+     * Reads a predicate written by write().
+     */
+    PredicateWithinCode(DataInputStream in, ClassPool cp) throws IOException, NotFoundException {
+        super(in, cp);
+        methodName = in.readUTF();
+        descriptor = in.readBoolean() ? in.readUTF() : null;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        write(out, WITHIN_CODE);
+        out.writeUTF(methodName);
+        out.writeBoolean(descriptor != null);
+        if (descriptor != null)
+            out.writeUTF(descriptor);
+    }
+
     public boolean equiv(Predicate p) {
         if (p instanceof PredicateWithinCode) {
             PredicateWithinCode pwc = (PredicateWithinCode)p;
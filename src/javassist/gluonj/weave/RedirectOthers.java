@@ -5,6 +5,8 @@ package javassist.gluonj.weave;
 import javassist.CtClass;
 import javassist.bytecode.Opcode;
 import javassist.bytecode.ConstPool;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 /**
  * Redirects not-"proceed" calls.
@@ -20,6 +22,10 @@ public class RedirectOthers extends RedirectProceed{
         super(orig, superName, reviser, mname);
     }
 
+    void write(DataOutputStream out) throws IOException {
+        write(out, OTHERS);
+    }
+
     public boolean match(String enclosingClass, String method, String desc, String targetClass, int bytecode) {
         if (bytecode == Opcode.INVOKESTATIC || bytecode == Opcode.INVOKESPECIAL)
             return targetClass.equals(origClass);
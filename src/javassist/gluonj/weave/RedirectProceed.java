@@ -7,6 +7,8 @@ import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.bytecode.Opcode;
 import javassist.bytecode.ConstPool;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -36,6 +38,18 @@ public class RedirectProceed extends Predicate {
     }
 
 
+    void write(DataOutputStream out) throws IOException {
+        write(out, PROCEED);
+    }
+
+    void write(DataOutputStream out, int kind) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(origClass);
+        out.writeUTF(superClass == null ? origClass : superClass);
+        out.writeUTF(reviserClass);
+        out.writeUTF(methodName);
+    }
+
     public void appendTo(List<Predicate> list) {
         list.add(this);
     }
@@ -11,6 +11,7 @@ import javassist.bytecode.annotation.StringMemberValue;
 public class Reviser {
     CtClass body;
     CtClass target;
+    private boolean predicates;     // true if a method has @Within
 
     /**
      * @return      a reviser, or null if no target is specified. 
@@ -46,6 +47,14 @@ public class Reviser {
         readMethods(conv);
     }
 
+    /* Makes a reviser restored from a snapshot.  The methods are
+     * not read since they have been recorded.
+     */
+    Reviser(CtClass target, CtClass body) {
+        this.body = body;
+        this.target = target;
+    }
+
     private static final String AT_WITHIN = javassist.gluonj.Within.class.getName();
     private static final String AT_WITHINCODE = javassist.gluonj.WithinCode.class.getName();
     private static final String AT_CODE = javassist.gluonj.Code.class.getName();
@@ -76,8 +85,10 @@ public class Reviser {
                     }
                 }
 
-            if (withinValue != null || withinCodeValue != null || codeValue != null)
+            if (withinValue != null || withinCodeValue != null || codeValue != null) {
+                predicates = true;
                 conv.recordMethod(body, target, cm, Predicate.make(cm, withinValue, withinCodeValue, codeValue));
+            }
         }
     }
 
@@ -97,4 +108,9 @@ public class Reviser {
     public CtClass getTarget() { return target; }
     public CtClass getBody() { return body; }
     public String getName() { return body.getName(); }
+
+    /**
+     * Returns true if a method is annotated with @Within.
+     */
+    public boolean hasPredicates() { return predicates; }
 }
@@ -0,0 +1,486 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMember;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.BootstrapMethodsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.EnclosingMethodAttribute;
+import javassist.bytecode.ExceptionsAttribute;
+import javassist.bytecode.InnerClassesAttribute;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Merges the revisers into the class they revise.
+ *
+ * <p>ClassConverter.reorderRevisers() makes the revisers targeting
+ * the same class a chain of subclasses and every <code>new</code>
+ * expression instantiating the target class is replaced with
+ * the instantiation of the last reviser.  If the revisers are merged,
+ * their fields, methods, and interfaces are copied into the target class
+ * when the target class is woven.  No class is generated, the objects
+ * are instances of the target class, and <code>new</code> expressions
+ * are not modified.  The other classes referring to a reviser, for example,
+ * by a cast, are modified to refer to the target class instead.
+ *
+ * <p>When a reviser overrides a method declared in the target class,
+ * the overridden method is renamed into a private method
+ * <code>m_aop_</code><i>reviser</i> and a proceed call,
+ * <code>super.m()</code>, is redirected to it.  The body of the default
+ * constructor of a reviser is copied into a private method called at
+ * the end of every constructor of the target class calling super().
+ *
+ * <p>Revisers are merged only if the result behaves as the chain does.
+ * For example, a reviser must not declare a constructor other than
+ * the default one, a static initializer, a field or a static method
+ * whose name is already used by the target class, an inner class,
+ * a lambda expression, or a method with @Within.  Otherwise,
+ * the revisers are chained as usual.
+ */
+class ReviserMerger {
+    /**
+     * A reviser to be merged.  What the weaver needs is read
+     * in advance since revisers may be merged by multiple threads.
+     */
+    static class Source {
+        final String name;
+        final ClassFile file;
+        final CtField[] fields;
+        final MethodInfo init;      // the default constructor
+        final boolean isPublic;
+
+        Source(CtClass cc) throws NotFoundException {
+            name = cc.getName();
+            file = cc.getClassFile2();
+            fields = cc.getDeclaredFields();
+            init = cc.getDeclaredConstructor(new CtClass[0]).getMethodInfo2();
+            isPublic = Modifier.isPublic(cc.getModifiers());
+        }
+    }
+
+    /**
+     * Returns null if the revisers can be merged into the target.
+     * Otherwise, the reason why not.
+     *
+     * @param list      the revisers in the precedence order.
+     * @param all       all the revisers.
+     */
+    static String cannotMerge(CtClass target, List<Reviser> list,
+                              Map<CtClass,ReviserTree.ReviserList> all)
+        throws NotFoundException
+    {
+        if (target.isInterface() || target.isArray() || target.isPrimitive()
+            || Weaver.isNonTransformable(target.getName()))
+            return "not modifiable";
+
+        for (ReviserTree.ReviserList l: all.values())
+            for (Reviser r: l.getList())
+                if (r.body == target)
+                    return "a reviser";
+
+        ArrayList<String> names = new ArrayList<String>();
+        for (Reviser r: list)
+            names.add(r.body.getName());
+
+        HashMap<String,String> fields = new HashMap<String,String>();
+        HashMap<String,Integer> methods = new HashMap<String,Integer>();
+        int version = target.getClassFile2().getMajorVersion();
+        for (Reviser r: list) {
+            CtClass cc = r.body;
+            String reason = cannotMerge(target, r, all, version);
+            if (reason == null)
+                reason = cannotMergeMembers(target, cc, fields, methods);
+
+            if (reason == null && !samePackage(cc, target))
+                reason = checkAccess(target, cc, names);
+
+            if (reason != null)
+                return reason + " in " + cc.getName();
+        }
+
+        return null;
+    }
+
+    private static String cannotMerge(CtClass target, Reviser r,
+                                      Map<CtClass,ReviserTree.ReviserList> all, int version)
+        throws NotFoundException
+    {
+        CtClass cc = r.body;
+        if (cc.isInterface() || Modifier.isAbstract(cc.getModifiers()))
+            return "abstract";
+        else if (cc.getSuperclass() != target)
+            return "not a subclass";
+        else if (all.containsKey(cc))
+            return "revised";
+        else if (ReviserTree.getSwitchable(cc) != null)
+            return "@Switchable";
+        else if (r.hasPredicates())
+            return "@Within";
+        else if (cc.getClassInitializer() != null)
+            return "a static initializer";
+
+        ClassFile cf = cc.getClassFile2();
+        if (cf.getMajorVersion() > version)
+            return "a newer class file version";
+
+        if (cf.getAttribute(InnerClassesAttribute.tag) != null
+            || cf.getAttribute(EnclosingMethodAttribute.tag) != null
+            || cf.getAttribute("NestHost") != null || cf.getAttribute("NestMembers") != null)
+            return "an inner class";
+
+        if (cf.getAttribute(BootstrapMethodsAttribute.tag) != null)
+            return "invokedynamic";
+
+        CtConstructor[] cons = cc.getDeclaredConstructors();
+        if (cons.length != 1 || !callsDefaultSuper(cons[0].getMethodInfo2(), target))
+            return "a constructor other than the default one";
+
+        return null;
+    }
+
+    /* Returns true if the constructor starts with aload_0 and
+     * invokespecial calling the default constructor of the target.
+     */
+    private static boolean callsDefaultSuper(MethodInfo cons, CtClass target) {
+        CodeAttribute ca = cons.getCodeAttribute();
+        if (!"()V".equals(cons.getDescriptor()) || ca == null || ca.getCodeLength() < 4)
+            return false;
+
+        byte[] code = ca.getCode();
+        if ((code[0] & 0xff) != Opcode.ALOAD_0 || (code[1] & 0xff) != Opcode.INVOKESPECIAL)
+            return false;
+
+        ConstPool cp = cons.getConstPool();
+        int index = ((code[2] & 0xff) << 8) | (code[3] & 0xff);
+        return target.getName().equals(cp.getMethodrefClassName(index))
+               && MethodInfo.nameInit.equals(cp.getMethodrefName(index))
+               && "()V".equals(cp.getMethodrefType(index));
+    }
+
+    /* Checks that a field or a method of the reviser does not
+     * conflict with the members of the target and the previous revisers.
+     */
+    private static String cannotMergeMembers(CtClass target, CtClass cc,
+                                             Map<String,String> fields,
+                                             Map<String,Integer> methods)
+    {
+        for (CtField f: cc.getDeclaredFields()) {
+            String name = f.getName();
+            if (fields.put(name, name) != null || findField(target, name) != null)
+                return "a field " + name;
+        }
+
+        for (CtMethod m: cc.getDeclaredMethods()) {
+            String key = m.getName() + m.getSignature();
+            int mod = m.getModifiers();
+            CtMethod found = findMethod(target, m.getName(), m.getSignature());
+            Integer previous = methods.put(key, mod);
+            if (Modifier.isStatic(mod) || Modifier.isPrivate(mod)) {
+                if (found != null || previous != null)
+                    return "a method " + m.getName();
+            }
+            else if (found != null) {
+                int mod2 = found.getModifiers();
+                if ((mod2 & (Modifier.STATIC | Modifier.PRIVATE | Modifier.FINAL
+                             | Modifier.NATIVE)) != 0)
+                    return "a method " + m.getName();
+                else if (found.getDeclaringClass().isInterface() && !Modifier.isAbstract(mod2))
+                    return "a default method " + m.getName();
+            }
+            else if (previous != null
+                     && (previous & (Modifier.STATIC | Modifier.PRIVATE)) != 0)
+                return "a method " + m.getName();
+        }
+
+        return null;
+    }
+
+    private static CtField findField(CtClass cc, String name) {
+        try {
+            return cc.getField(name);
+        }
+        catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    private static CtMethod findMethod(CtClass cc, String name, String desc) {
+        try {
+            return cc.getMethod(name, desc);
+        }
+        catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    private static boolean samePackage(CtClass a, CtClass b) {
+        String p = a.getPackageName();
+        String q = b.getPackageName();
+        return p == null ? q == null : p.equals(q);
+    }
+
+    /* A reviser in another package may use a class or a member
+     * accessible only in that package.  It would not be accessible
+     * from the target.
+     */
+    private static String checkAccess(CtClass target, CtClass cc, List<String> revisers)
+        throws NotFoundException
+    {
+        ClassPool pool = cc.getClassPool();
+        ConstPool cp = cc.getClassFile2().getConstPool();
+        for (int i = 1; i < cp.getSize(); i++) {
+            String cname;
+            CtMember member = null;
+            switch (cp.getTag(i)) {
+            case ConstPool.CONST_Class :
+                cname = cp.getClassInfo(i);
+                break;
+            case ConstPool.CONST_Fieldref :
+                cname = cp.getFieldrefClassName(i);
+                if (!isMerged(cname, target, revisers))
+                    member = pool.get(cname).getField(cp.getFieldrefName(i),
+                                                      cp.getFieldrefType(i));
+                break;
+            case ConstPool.CONST_Methodref :
+                cname = cp.getMethodrefClassName(i);
+                if (!isMerged(cname, target, revisers)) {
+                    String mname = cp.getMethodrefName(i);
+                    if (MethodInfo.nameInit.equals(mname))
+                        member = pool.get(cname).getConstructor(cp.getMethodrefType(i));
+                    else
+                        member = pool.get(cname).getMethod(mname, cp.getMethodrefType(i));
+                }
+                break;
+            case ConstPool.CONST_InterfaceMethodref :
+                cname = cp.getInterfaceMethodrefClassName(i);
+                break;
+            default :
+                continue;
+            }
+
+            if (!isAccessible(target, cname, revisers))
+                return "a class " + cname;
+
+            if (member != null && !isAccessible(target, member))
+                return "a member " + member.getName();
+        }
+
+        return null;
+    }
+
+    private static boolean isMerged(String className, CtClass target, List<String> revisers) {
+        return className.equals(target.getName()) || revisers.contains(className);
+    }
+
+    private static boolean isAccessible(CtClass target, String className, List<String> revisers)
+        throws NotFoundException
+    {
+        if (className.charAt(0) == '[') {
+            int i = className.lastIndexOf('[') + 1;
+            if (className.charAt(i) != 'L')
+                return true;    // an array of a primitive type
+
+            className = className.substring(i + 1, className.length() - 1).replace('/', '.');
+        }
+
+        if (isMerged(className, target, revisers))
+            return true;
+
+        CtClass cc = target.getClassPool().get(className);
+        return Modifier.isPublic(cc.getModifiers()) || samePackage(cc, target);
+    }
+
+    private static boolean isAccessible(CtClass target, CtMember m) throws NotFoundException {
+        int mod = m.getModifiers();
+        CtClass declaring = m.getDeclaringClass();
+        if (Modifier.isPublic(mod))
+            return true;
+        else if (Modifier.isPrivate(mod))
+            return false;
+        else if (samePackage(declaring, target))
+            return true;
+        else
+            return Modifier.isProtected(mod) && target.subclassOf(declaring);
+    }
+
+    /**
+     * Returns true if the class file refers to one of the classes
+     * by its constant pool or the descriptors.
+     *
+     * @param jvmNames      class names such as <code>java/lang/String</code>.
+     */
+    static boolean refersTo(ClassFile cf, Collection<String> jvmNames) {
+        ConstPool cp = cf.getConstPool();
+        int size = cp.getSize();
+        for (String name: jvmNames) {
+            String type = 'L' + name + ';';
+            for (int i = 1; i < size; i++)
+                if (cp.getTag(i) == ConstPool.CONST_Utf8) {
+                    String s = cp.getUtf8Info(i);
+                    if (s.equals(name) || s.indexOf(type) >= 0)
+                        return true;
+                }
+        }
+
+        return false;
+    }
+
+    /**
+     * Copies the revisers into the target.  The names of the revisers
+     * in the copied members are not replaced.  The caller must replace
+     * them later.
+     *
+     * @param revisers      the revisers in the precedence order.
+     */
+    static void merge(CtClass target, List<Source> revisers)
+        throws CannotCompileException, NotFoundException
+    {
+        try {
+            for (Source s: revisers)
+                merge(target, s);
+        }
+        catch (BadBytecode e) {
+            throw new CannotCompileException(e);
+        }
+    }
+
+    private static void merge(CtClass target, Source src)
+        throws CannotCompileException, NotFoundException, BadBytecode
+    {
+        Logger.print("Merging.. " + src.name + " into " + target.getName());
+        ClassFile cf = target.getClassFile();
+        ConstPool cp = cf.getConstPool();
+        String suffix = "_aop_" + ClassConverter.mangle(src.name);
+        if (src.isPublic && !Modifier.isPublic(target.getModifiers()))
+            target.setModifiers(Modifier.setPublic(target.getModifiers()));
+
+        for (String intf: src.file.getInterfaces())
+            if (!contains(cf.getInterfaces(), intf))
+                cf.addInterface(intf);
+
+        for (CtField f: src.fields)
+            target.addField(new CtField(f, target));
+
+        /* The proceed calls to the methods overridden by the reviser
+         * are redirected to the renamed methods or the methods of
+         * the super class.
+         */
+        HashMap<String,Integer> proceeds = new HashMap<String,Integer>();
+        for (MethodInfo m: src.file.getMethods()) {
+            if (!m.isMethod()
+                || (m.getAccessFlags() & (AccessFlag.STATIC | AccessFlag.PRIVATE)) != 0)
+                continue;
+
+            String name = m.getName();
+            String desc = m.getDescriptor();
+            CtMethod overridden = getDeclaredMethod(target, name, desc);
+            if (overridden == null)
+                proceeds.put(name + ":" + desc,
+                             cp.addMethodrefInfo(cp.addClassInfo(cf.getSuperclass()), name, desc));
+            else if (Modifier.isAbstract(overridden.getModifiers()))
+                target.removeMethod(overridden);
+            else {
+                overridden.setName(name + suffix);
+                overridden.setModifiers(Modifier.setPrivate(overridden.getModifiers()));
+                proceeds.put(name + ":" + desc,
+                             cp.addMethodrefInfo(cp.getThisClassInfo(), name + suffix, desc));
+            }
+        }
+
+        for (MethodInfo m: src.file.getMethods())
+            if (m.isMethod())
+                target.addMethod(CtMethod.make(copy(cp, m.getName(), m), target));
+
+        redirectProceeds(cf, proceeds);
+        MethodInfo init = copy(cp, "_init" + suffix, src.init);
+        init.setAccessFlags(AccessFlag.PRIVATE);
+        CodeIterator it = init.getCodeAttribute().iterator();
+        for (int i = 0; i < 4; i++)
+            it.writeByte(Opcode.NOP, i);    // aload_0 and invokespecial <init>
+
+        if (!ClassConverter.isEmpty(init)) {
+            target.addMethod(CtMethod.make(init, target));
+            String initCall = "{" + init.getName() + "();}";
+            for (CtConstructor cons: target.getDeclaredConstructors())
+                if (cons.callsSuper())
+                    cons.insertAfter(initCall);
+        }
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String n: names)
+            if (n.equals(name))
+                return true;
+
+        return false;
+    }
+
+    private static CtMethod getDeclaredMethod(CtClass cc, String name, String desc) {
+        for (CtMethod m: cc.getDeclaredMethods())
+            if (m.getName().equals(name) && m.getSignature().equals(desc))
+                return m;
+
+        return null;
+    }
+
+    /* Copies a method with its attributes.
+     */
+    private static MethodInfo copy(ConstPool cp, String name, MethodInfo src)
+        throws BadBytecode
+    {
+        MethodInfo minfo = new MethodInfo(cp, name, src, null);
+        for (AttributeInfo attr: src.getAttributes())
+            if (!(attr instanceof CodeAttribute) && !(attr instanceof ExceptionsAttribute))
+                minfo.addAttribute(attr.copy(cp, null));
+
+        return minfo;
+    }
+
+    private static void redirectProceeds(ClassFile cf, Map<String,Integer> proceeds)
+        throws BadBytecode
+    {
+        ConstPool cp = cf.getConstPool();
+        String thisName = cf.getName();
+        for (MethodInfo m: cf.getMethods()) {
+            CodeAttribute ca = m.getCodeAttribute();
+            if (ca == null)
+                continue;
+
+            CodeIterator it = ca.iterator();
+            while (it.hasNext()) {
+                int pos = it.next();
+                if (it.byteAt(pos) != Opcode.INVOKESPECIAL)
+                    continue;
+
+                int index = it.u16bitAt(pos + 1);
+                if (cp.getTag(index) == ConstPool.CONST_Methodref
+                    && thisName.equals(cp.getMethodrefClassName(index))) {
+                    Integer ref = proceeds.get(cp.getMethodrefName(index) + ":"
+                                               + cp.getMethodrefType(index));
+                    if (ref != null)
+                        it.write16bit(ref, pos + 1);
+                }
+            }
+        }
+    }
+}
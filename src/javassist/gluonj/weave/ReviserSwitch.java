@@ -0,0 +1,104 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The switches of the revisers annotated with
+ * {@link javassist.gluonj.Switchable}.
+ *
+ * <p>Every overriding method of a switchable reviser starts with
+ * a guard.  If the reviser is disabled, the method calls the overridden
+ * method in the super class and returns.  The guard is invokedynamic
+ * linked to a call site per reviser, whose target returns a constant.
+ * Since the JIT compiler folds the constant, the guard costs nothing
+ * while the switch is not turned.  A class file older than Java 7
+ * calls {@link #isEnabled(String)} instead.
+ *
+ * <p>The switches are shared among all the class loaders loading
+ * this class.
+ */
+public class ReviserSwitch {
+    private static final MethodHandle ON = MethodHandles.constant(boolean.class, true);
+    private static final MethodHandle OFF = MethodHandles.constant(boolean.class, false);
+
+    private static ConcurrentHashMap<String,MutableCallSite> switches
+        = new ConcurrentHashMap<String,MutableCallSite>();
+
+    private ReviserSwitch() {}
+
+    /**
+     * The bootstrap method of the guards.
+     *
+     * @param reviserName   the name of the reviser.
+     * @param initial       1 if the reviser is enabled by default.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name,
+                                     MethodType type,
+                                     String reviserName, int initial)
+    {
+        return getSwitch(reviserName, initial != 0);
+    }
+
+    private static MutableCallSite getSwitch(String reviserName, boolean initial) {
+        MutableCallSite site = switches.get(reviserName);
+        if (site == null) {
+            MutableCallSite s = new MutableCallSite(initial ? ON : OFF);
+            site = switches.putIfAbsent(reviserName, s);
+            if (site == null)
+                site = s;
+        }
+
+        return site;
+    }
+
+    /**
+     * Returns true if the reviser is enabled.  If no method of the
+     * reviser has been called and {@link #setEnabled(String, boolean)} has
+     * not been called, this method returns true although the reviser
+     * may be disabled by its annotation.
+     */
+    public static boolean isEnabled(String reviserName) {
+        MutableCallSite site = switches.get(reviserName);
+        return site == null || site.getTarget() == ON;
+    }
+
+    /**
+     * Called by the guard in a class file older than Java 7.
+     *
+     * @param initial       1 if the reviser is enabled by default.
+     */
+    public static boolean isEnabled(String reviserName, int initial) {
+        return getSwitch(reviserName, initial != 0).getTarget() == ON;
+    }
+
+    /**
+     * Enables or disables the reviser.  The compiled code depending on
+     * the switch is discarded.
+     */
+    public static synchronized void setEnabled(String reviserName, boolean on) {
+        MutableCallSite site = getSwitch(reviserName, on);
+        MethodHandle target = on ? ON : OFF;
+        if (site.getTarget() != target) {
+            site.setTarget(target);
+            MutableCallSite.syncAll(new MutableCallSite[] { site });
+        }
+
+        Logger.print(Logger.INFO, (on ? "Enabled.. " : "Disabled.. ") + reviserName);
+    }
+
+    /**
+     * Returns the names of the switchable revisers that have been used
+     * or given to {@link #setEnabled(String, boolean)}.
+     */
+    public static Set<String> getNames() {
+        return switches.keySet();
+    }
+}
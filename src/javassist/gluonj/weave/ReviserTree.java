@@ -19,6 +19,7 @@ import javassist.bytecode.annotation.ArrayMemberValue;
 public class ReviserTree {
     static final String AT_REVISER = javassist.gluonj.Reviser.class.getName();
     static final String AT_REQUIRE = javassist.gluonj.Require.class.getName();
+    static final String AT_SWITCHABLE = javassist.gluonj.Switchable.class.getName();
 
     static class Node {
         String name;        // the name of this reviser
@@ -222,6 +223,19 @@ public class ReviserTree {
             return null;
     }
 
+    /**
+     * Returns the @Switchable annotation of the class or null.
+     */
+    static Annotation getSwitchable(CtClass clazz) {
+        Annotation[] anno = getAnnotations(clazz);
+        if (anno != null)
+            for (Annotation a: anno)
+                if (AT_SWITCHABLE.equals(a.getTypeName()))
+                    return a;
+
+        return null;
+    }
+
     public static boolean isReviser(CtClass clazz) {
         Annotation[] anno = getAnnotations(clazz);
         if (anno != null)
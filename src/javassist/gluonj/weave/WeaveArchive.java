@@ -0,0 +1,325 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * An archive of the class files woven ahead of time.
+ *
+ * <p>It is made by <code>java -jar gluonj.jar -archive</code>, which
+ * weaves every class file in a class path as the load-time weaver does.
+ * If the <code>javassist.gluonj.archive</code> property specifies it,
+ * the load-time weaver memory-maps it at startup and returns the woven
+ * class file recorded in it without weaving.  A class file is looked
+ * up by its name, and its length and CRC-32 checksum must match
+ * the original one.  Otherwise, it is woven as usual.
+ *
+ * <p>The archive is a jar file.  The woven class files and the index
+ * are stored without compression under <code>META-INF/gluonj/</code>.
+ * The helper classes are stored with their own names so that
+ * the archive can be appended to the class path.  The index records
+ * the names of the revisers given to the weaver and the checksums of
+ * their class files.  The archive is not used if they do not match.
+ */
+public class WeaveArchive {
+    /**
+     * The value returned by find() if the class file is not modified.
+     */
+    public static final byte[] UNCHANGED = new byte[0];
+
+    static final String INDEX = "META-INF/gluonj/index";
+    static final String WOVEN = "META-INF/gluonj/woven/";
+    private static final String MAGIC = "GluonJ archive";
+
+    private File file;
+    private IndexedClassPath.MappedJar jar;
+    private String[] reviserNames;          // given to the weaver
+    private boolean indy;
+    private boolean fuse;
+    private boolean merge;
+    private HashMap<String,Integer> reviserFiles;   // reviser name -> checksum
+    private HashMap<String,Entry> classes;  // a/b/C -> entry
+    private int helpers;
+
+    static class Entry {
+        int length;
+        int checksum;
+        boolean woven;
+
+        Entry(int len, int sum, boolean w) {
+            length = len;
+            checksum = sum;
+            woven = w;
+        }
+    }
+
+    /**
+     * Opens an archive.
+     */
+    public WeaveArchive(File f) throws IOException {
+        file = f;
+        jar = new IndexedClassPath.MappedJar(f);
+        byte[] index = jar.read(INDEX);
+        if (index == null)
+            throw new IOException("not a GluonJ archive: " + f);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        if (!MAGIC.equals(in.readUTF()))
+            throw new IOException("not a GluonJ archive: " + f);
+
+        String version = in.readUTF();
+        if (!Weaver.VERSION.equals(version))
+            throw new IOException("made by GluonJ " + version + ": " + f);
+
+        reviserNames = new String[in.readInt()];
+        for (int i = 0; i < reviserNames.length; i++)
+            reviserNames[i] = in.readUTF();
+
+        indy = in.readBoolean();
+        fuse = in.readBoolean();
+        merge = in.readBoolean();
+        int n = in.readInt();
+        reviserFiles = new HashMap<String,Integer>(n * 2);
+        for (int i = 0; i < n; i++)
+            reviserFiles.put(in.readUTF(), in.readInt());
+
+        helpers = in.readInt();
+        n = in.readInt();
+        classes = new HashMap<String,Entry>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            classes.put(name, new Entry(in.readInt(), in.readInt(), in.readBoolean()));
+        }
+    }
+
+    public File getFile() { return file; }
+
+    /**
+     * Returns true if the archive contains helper classes.
+     */
+    public boolean hasHelpers() { return helpers > 0; }
+
+    /**
+     * Returns the number of the class files recorded in the archive.
+     */
+    public int size() { return classes.size(); }
+
+    /**
+     * Checks whether the archive was made with the given revisers.
+     *
+     * @param loader    the class loader reading the revisers.
+     * @return          null if the archive is available.  Otherwise,
+     *                  the reason why it is not.
+     */
+    public String check(String[] revisers, boolean indyDispatch, boolean fused,
+                        boolean merged, ClassLoader loader)
+    {
+        if (!Arrays.equals(reviserNames, revisers))
+            return "made for other revisers: " + join(reviserNames);
+
+        if (indy != indyDispatch)
+            return indy ? "made with invokedynamic" : "made without invokedynamic";
+
+        if (fuse != fused)
+            return fuse ? "made with fused revisers" : "made without fused revisers";
+
+        if (merge != merged)
+            return merge ? "made with merged revisers" : "made without merged revisers";
+
+        return checkClassFiles(reviserFiles, loader);
+    }
+
+    /* Returns null if the class files read by the loader have
+     * the given checksums.  Otherwise, the reason why not.
+     */
+    static String checkClassFiles(Map<String,Integer> checksums, ClassLoader loader) {
+        for (Map.Entry<String,Integer> e: checksums.entrySet()) {
+            String name = e.getKey();
+            byte[] classFile = null;
+            InputStream in = loader.getResourceAsStream(name.replace('.', '/') + ".class");
+            if (in != null)
+                try {
+                    try {
+                        classFile = WeaveCache.readAll(in);
+                    }
+                    finally {
+                        in.close();
+                    }
+                }
+                catch (IOException ex) {}
+
+            if (classFile == null)
+                return "not found " + name;
+            else if (checksum(classFile) != e.getValue())
+                return "modified " + name;
+        }
+
+        return null;
+    }
+
+    static String join(String[] names) {
+        StringBuilder sb = new StringBuilder();
+        for (String n: names) {
+            if (sb.length() > 0)
+                sb.append(',');
+
+            sb.append(n);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the woven class file recorded in the archive.
+     *
+     * @param jvmName       the class name such as <code>java/lang/String</code>.
+     * @param classFile     the original class file.
+     * @return      {@link #UNCHANGED} if the class file is not modified by
+     *              weaving, or null if the class file is not recorded.
+     */
+    public byte[] find(String jvmName, byte[] classFile) {
+        Entry e = classes.get(jvmName);
+        if (e == null || e.length != classFile.length || e.checksum != checksum(classFile))
+            return null;
+        else if (!e.woven)
+            return UNCHANGED;
+
+        try {
+            return jar.read(WOVEN + jvmName + ".class");
+        }
+        catch (IOException ex) {
+            Logger.print(Logger.WARN, "broken archive entry: " + jvmName + " (" + ex + ")");
+            return null;
+        }
+    }
+
+    static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * A writer of an archive.
+     */
+    static class Writer {
+        private ZipOutputStream out;
+        private ArrayList<String> classNames;
+        private ByteArrayOutputStream classEntries;
+        private DataOutputStream index;
+        private HashMap<String,Integer> reviserFiles;
+        private int helpers;
+
+        Writer(File dest) throws IOException {
+            out = new ZipOutputStream(new FileOutputStream(dest));
+            classNames = new ArrayList<String>();
+            classEntries = new ByteArrayOutputStream();
+            index = new DataOutputStream(classEntries);
+            reviserFiles = new HashMap<String,Integer>();
+            helpers = 0;
+        }
+
+        /**
+         * Records a class file.
+         *
+         * @param className     the class name such as <code>a.b.C</code>.
+         * @param woven         the woven class file, or null if it is
+         *                      not modified.
+         */
+        void addClass(String className, byte[] original, byte[] woven)
+            throws IOException
+        {
+            String jvmName = className.replace('.', '/');
+            index.writeUTF(jvmName);
+            index.writeInt(original.length);
+            index.writeInt(checksum(original));
+            index.writeBoolean(woven != null);
+            classNames.add(jvmName);
+            if (woven != null)
+                put(WOVEN + jvmName + ".class", woven);
+        }
+
+        /**
+         * Records a helper class.  It is also recorded as an unmodified
+         * class so that the load-time weaver does not weave it.
+         */
+        void addHelper(String className, byte[] classFile) throws IOException {
+            put(className.replace('.', '/') + ".class", classFile);
+            addClass(className, classFile, null);
+            helpers++;
+        }
+
+        /**
+         * Records the original class file of a reviser.
+         */
+        void addReviser(String className, byte[] classFile) {
+            reviserFiles.put(className, checksum(classFile));
+        }
+
+        /**
+         * Writes the index and closes the archive.
+         *
+         * @param revisers      the reviser names given to the weaver.
+         */
+        void finish(String[] revisers, boolean indy, boolean fuse, boolean merge)
+            throws IOException
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(classEntries.size() + 256);
+            DataOutputStream header = new DataOutputStream(bout);
+            header.writeUTF(MAGIC);
+            header.writeUTF(Weaver.VERSION);
+            header.writeInt(revisers.length);
+            for (String r: revisers)
+                header.writeUTF(r);
+
+            header.writeBoolean(indy);
+            header.writeBoolean(fuse);
+            header.writeBoolean(merge);
+            header.writeInt(reviserFiles.size());
+            for (Map.Entry<String,Integer> e: reviserFiles.entrySet()) {
+                header.writeUTF(e.getKey());
+                header.writeInt(e.getValue());
+            }
+
+            header.writeInt(helpers);
+            header.writeInt(classNames.size());
+            index.flush();
+            classEntries.writeTo(header);
+            header.flush();
+            put(INDEX, bout.toByteArray());
+            out.close();
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        private void put(String entryName, byte[] data) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            ZipEntry e = new ZipEntry(entryName);
+            e.setMethod(ZipEntry.STORED);
+            e.setSize(data.length);
+            e.setCompressedSize(data.length);
+            e.setCrc(crc.getValue());
+            out.putNextEntry(e);
+            out.write(data);
+            out.closeEntry();
+        }
+    }
+}
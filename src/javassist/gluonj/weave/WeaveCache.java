@@ -0,0 +1,382 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+
+/**
+ * An on-disk cache of woven class files.
+ *
+ * <p>An entry is keyed by the hash of the original class file and
+ * the class files of its super classes and interfaces.  The key also
+ * covers the classes that the class file refers to, for example,
+ * the classes whose methods it calls, and their super classes and
+ * interfaces.  Only the super class, the interfaces, and the method
+ * signatures of those classes are part of the key, since how a call
+ * or <code>new</code> is woven depends only on them.  The system
+ * classes such as java.lang.Object are not part of the key.
+ * Entries are stored in the sub directory named after the fingerprint
+ * of the revisers, their precedence order, and the weaver version.
+ * So modifying a reviser makes all the entries ineffective.
+ *
+ * <p>An entry records the length and the CRC-32 checksum of the class file.
+ * A broken entry is regarded as a missing entry.
+ */
+public class WeaveCache {
+    private File dir;
+    private File helperDir;
+    private ConcurrentHashMap<String,Supertype> supertypes;    // the URL -> the class file
+
+    /* A class file read for computing a key.
+     */
+    private static class Supertype {
+        byte[] hash;
+        byte[] shape;           // the hash of the super types and the methods
+        String[] supertypes;    // null if the class file is broken
+    }
+
+    private static final String HELPERS = "helpers";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Constructs a cache.
+     *
+     * @param cacheDir      the cache directory.
+     * @param fingerprint   the fingerprint of the revisers.
+     */
+    public WeaveCache(String cacheDir, String fingerprint) {
+        dir = new File(cacheDir, fingerprint);
+        helperDir = new File(dir, HELPERS);
+        supertypes = new ConcurrentHashMap<String,Supertype>();
+    }
+
+    /**
+     * Returns the key for the given class file.
+     *
+     * @param pool      the class pool reading the super classes and
+     *                  the interfaces.
+     */
+    public String key(byte[] classFile, ClassPool pool) {
+        MessageDigest md = newDigest();
+        md.update(classFile);
+        Set<String> done = new HashSet<String>();
+        addSupertypes(md, ConstPoolFilter.supertypes(classFile), pool, done, true);
+        addSupertypes(md, ConstPoolFilter.classNames(classFile), pool, done, false);
+        return toHex(md.digest());
+    }
+
+    /* Adds the names and the hashes of the given classes and their
+     * super classes and interfaces.  A class file that is not found is
+     * only named.  The class files read are remembered since the same
+     * super class is shared among many classes.
+     *
+     * If whole is false, only the hashes of the super types and the
+     * methods are added.
+     */
+    private void addSupertypes(MessageDigest md, String[] names, ClassPool pool,
+                               Set<String> done, boolean whole)
+    {
+        if (names == null)
+            return;
+
+        for (String n: names) {
+            String name = n.replace('/', '.');
+            if (Weaver.isNonTransformable(name) || !done.add(name))
+                continue;
+
+            md.update(name.getBytes(UTF8));
+            URL url = pool.find(name);
+            Supertype st = url == null ? null : readSupertype(url);
+            if (st != null) {
+                md.update(whole ? st.hash : st.shape);
+                addSupertypes(md, st.supertypes, pool, done, whole);
+            }
+        }
+    }
+
+    private Supertype readSupertype(URL url) {
+        String key = url.toString();
+        Supertype st = supertypes.get(key);
+        if (st == null)
+            try {
+                InputStream in = url.openStream();
+                try {
+                    byte[] classFile = readAll(in);
+                    st = new Supertype();
+                    st.hash = newDigest().digest(classFile);
+                    st.shape = shape(classFile, st.hash);
+                    st.supertypes = ConstPoolFilter.supertypes(classFile);
+                    supertypes.put(key, st);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                return null;
+            }
+
+        return st;
+    }
+
+    /* Returns the hash of what ClassHierarchy records: the super class,
+     * the interfaces, and the signatures of the methods.
+     */
+    private static byte[] shape(byte[] classFile, byte[] hash) {
+        ClassFile cf;
+        try {
+            cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(classFile)));
+        }
+        catch (IOException e) {
+            return hash;
+        }
+        catch (RuntimeException e) {
+            return hash;
+        }
+
+        MessageDigest md = newDigest();
+        md.update(String.valueOf(cf.getSuperclass()).getBytes(UTF8));
+        for (String intf: cf.getInterfaces()) {
+            md.update((byte)0);
+            md.update(intf.getBytes(UTF8));
+        }
+
+        @SuppressWarnings("unchecked")
+        List<MethodInfo> methods = cf.getMethods();
+        for (MethodInfo minfo: methods) {
+            md.update((byte)1);
+            md.update((minfo.getName() + minfo.getDescriptor()).getBytes(UTF8));
+        }
+
+        return md.digest();
+    }
+
+    /**
+     * Returns the woven class file, or null if it is not cached.
+     *
+     * @param key           the value returned by key().
+     * @param name          the class name.
+     */
+    public byte[] get(String key, String name) {
+        File f = new File(dir, key);
+        if (!f.exists())
+            return null;
+
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            try {
+                if (!name.equals(in.readUTF()))
+                    return null;
+
+                int len = in.readInt();
+                long crc = in.readLong();
+                byte[] classFile = new byte[len];
+                in.readFully(classFile);
+                if (in.read() < 0 && crc == checksum(classFile))
+                    return classFile;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {}
+        catch (RuntimeException e) {}   // for example, NegativeArraySizeException
+
+        Logger.print(Logger.WARN, "broken cache entry: " + f);
+        return null;
+    }
+
+    /**
+     * Records a woven class file.
+     *
+     * @param key           the value returned by key().
+     * @param name          the class name.
+     * @param classFile     the woven class file.
+     */
+    public void put(String key, String name, byte[] classFile) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(classFile.length + 64);
+        try {
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeUTF(name);
+            out.writeInt(classFile.length);
+            out.writeLong(checksum(classFile));
+            out.write(classFile);
+            out.close();
+            store(new File(dir, key), bout.toByteArray());
+        }
+        catch (IOException e) {
+            Logger.print(Logger.WARN, "cannot write a cache entry: " + name + " (" + e + ")");
+        }
+    }
+
+    /**
+     * Records a helper class generated by the weaver.
+     */
+    public void putHelper(String name, byte[] classFile) {
+        try {
+            store(new File(helperDir, name), classFile);
+        }
+        catch (IOException e) {
+            Logger.print(Logger.WARN, "cannot write a cache entry: " + name + " (" + e + ")");
+        }
+    }
+
+    /**
+     * Returns the names of the recorded helper classes.
+     */
+    public List<String> getHelperNames() {
+        String[] names = helperDir.list();
+        ArrayList<String> list = new ArrayList<String>();
+        if (names != null)
+            for (String n: names)
+                if (!n.endsWith(".tmp"))
+                    list.add(n);
+
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Returns a recorded helper class, or null if it is not found.
+     */
+    public byte[] getHelper(String name) {
+        try {
+            InputStream in = new FileInputStream(new File(helperDir, name));
+            try {
+                return readAll(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /* An entry is first written into a temporary file and then renamed
+     * so that another thread or process never reads a partial entry.
+     */
+    private static void store(File f, byte[] data) throws IOException {
+        File parent = f.getParentFile();
+        parent.mkdirs();
+        File tmp = File.createTempFile(f.getName(), ".tmp", parent);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("cannot rename " + tmp);
+            }
+        }
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) >= 0)
+            out.write(buf, 0, len);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Computes the fingerprint of the given revisers.
+     * It covers the weaver version, the class files of the revisers, and
+     * the precedence order among the revisers.  The revisers must not be
+     * modified yet.
+     */
+    public static String fingerprint(Map<CtClass,ReviserTree.ReviserList> revisers)
+        throws WeaveException
+    {
+        TreeMap<String,ReviserTree.ReviserList> sorted
+            = new TreeMap<String,ReviserTree.ReviserList>();
+        for (Map.Entry<CtClass,ReviserTree.ReviserList> e: revisers.entrySet())
+            sorted.put(e.getKey().getName(), e.getValue());
+
+        final MessageDigest md = newDigest();
+        OutputStream digest = new OutputStream() {
+            public void write(int b) { md.update((byte)b); }
+            public void write(byte[] b, int off, int len) { md.update(b, off, len); }
+        };
+
+        try {
+            DataOutputStream out = new DataOutputStream(digest);
+            out.writeUTF(Weaver.VERSION);
+            for (Map.Entry<String,ReviserTree.ReviserList> e: sorted.entrySet()) {
+                out.writeUTF(e.getKey());
+                for (Reviser r: e.getValue().getList()) {
+                    out.writeUTF(r.getName());
+                    r.getBody().getClassFile2().write(out);
+                }
+            }
+
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new WeaveException("cannot compute a fingerprint", e);
+        }
+
+        return toHex(md.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte v: b) {
+            sb.append(Character.forDigit((v >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(v & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+}
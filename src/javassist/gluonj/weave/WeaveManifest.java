@@ -0,0 +1,289 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A list of the classes that the revisers may modify.
+ *
+ * <p>It is made by <code>java -jar gluonj.jar -manifest</code>, which
+ * scans every class file in a class path as the load-time weaver does.
+ * If the <code>javassist.gluonj.manifest</code> property specifies it,
+ * the load-time weaver passes a class not listed in it through without
+ * reading the class file, if the class is loaded from a directory or
+ * a jar file in that class path.  The other classes are woven as usual.
+ *
+ * <p>A manifest is a text file.  A line <code>class a/b/C NC</code>
+ * lists a class with the letters returned by
+ * {@link ClassConverter#getRevisionKinds(javassist.bytecode.ClassFile)},
+ * or <code>-</code> if none.  The manifest also records the names of
+ * the revisers given to the weaver, the checksums of their class files,
+ * and a stamp computed from the names, the sizes, and the modification
+ * times of the class files in the class path.  The manifest is not used
+ * if they do not match.
+ */
+public class WeaveManifest {
+    private static final String MAGIC = "# GluonJ manifest";
+
+    private File file;
+    private String[] reviserNames;          // given to the weaver
+    private boolean indy;
+    private boolean merge;
+    private HashMap<String,Integer> reviserFiles;   // reviser name -> checksum
+    private ArrayList<File> paths;
+    private String stamp;
+    private HashMap<String,String> classes;         // a/b/C -> kinds
+    private HashSet<String> locations;              // canonical paths
+    private Map<ProtectionDomain,Boolean> covered;
+
+    /**
+     * Reads a manifest.
+     */
+    public WeaveManifest(File f) throws IOException {
+        file = f;
+        reviserFiles = new HashMap<String,Integer>();
+        paths = new ArrayList<File>();
+        classes = new HashMap<String,String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (line == null || !line.equals(MAGIC + " " + Weaver.VERSION))
+                throw new IOException("not a manifest of GluonJ " + Weaver.VERSION + ": " + f);
+
+            while ((line = in.readLine()) != null) {
+                int i = line.indexOf(' ');
+                String key = i < 0 ? line : line.substring(0, i);
+                String value = i < 0 ? "" : line.substring(i + 1);
+                if (key.equals("class")) {
+                    int j = value.indexOf(' ');
+                    classes.put(value.substring(0, j), value.substring(j + 1));
+                }
+                else if (key.equals("revisers"))
+                    reviserNames = value.split(",");
+                else if (key.equals("indy"))
+                    indy = Boolean.parseBoolean(value);
+                else if (key.equals("merge"))
+                    merge = Boolean.parseBoolean(value);
+                else if (key.equals("reviser")) {
+                    int j = value.indexOf(' ');
+                    reviserFiles.put(value.substring(0, j),
+                                     (int)Long.parseLong(value.substring(j + 1), 16));
+                }
+                else if (key.equals("path"))
+                    paths.add(new File(value));
+                else if (key.equals("stamp"))
+                    stamp = value;
+            }
+        }
+        catch (RuntimeException e) {
+            throw new IOException("broken manifest: " + f, e);
+        }
+        finally {
+            in.close();
+        }
+
+        if (reviserNames == null || stamp == null)
+            throw new IOException("broken manifest: " + f);
+
+        locations = new HashSet<String>();
+        for (File p: paths)
+            locations.add(p.getPath());
+
+        covered = Collections.synchronizedMap(new WeakHashMap<ProtectionDomain,Boolean>());
+    }
+
+    public File getFile() { return file; }
+
+    /**
+     * Returns the number of the listed classes.
+     */
+    public int size() { return classes.size(); }
+
+    /**
+     * Returns the letters given to the class, or null if the class
+     * is not listed.
+     *
+     * @param jvmName       the class name such as <code>java/lang/String</code>.
+     */
+    public String getKinds(String jvmName) { return classes.get(jvmName); }
+
+    /**
+     * Checks whether the manifest was made with the given revisers
+     * and the class path has not been modified since then.
+     * It reads the modification times of all the class files in
+     * the class path.
+     *
+     * @param loader    the class loader reading the revisers.
+     * @return          null if the manifest is available.  Otherwise,
+     *                  the reason why it is not.
+     */
+    public String check(String[] revisers, boolean indyDispatch, boolean merged,
+                        ClassLoader loader)
+    {
+        if (!Arrays.equals(reviserNames, revisers))
+            return "made for other revisers: " + WeaveArchive.join(reviserNames);
+
+        if (indy != indyDispatch)
+            return indy ? "made with invokedynamic" : "made without invokedynamic";
+
+        if (merge != merged)
+            return merge ? "made with merged revisers" : "made without merged revisers";
+
+        String reason = WeaveArchive.checkClassFiles(reviserFiles, loader);
+        if (reason != null)
+            return reason;
+
+        if (!stamp.equals(stamp(paths)))
+            return "the class path has been modified";
+
+        return null;
+    }
+
+    /**
+     * Returns true if the class is not listed and it is loaded
+     * from the class path scanned when the manifest was made.
+     *
+     * @param jvmName       the class name such as <code>java/lang/String</code>.
+     * @param domain        the protection domain of the class.
+     */
+    public boolean skips(String jvmName, ProtectionDomain domain) {
+        if (domain == null || classes.containsKey(jvmName))
+            return false;
+
+        Boolean b = covered.get(domain);
+        if (b == null) {
+            b = locations.contains(pathOf(domain.getCodeSource()));
+            covered.put(domain, b);
+        }
+
+        return b;
+    }
+
+    private static String pathOf(CodeSource source) {
+        URL url = source == null ? null : source.getLocation();
+        if (url == null || !"file".equals(url.getProtocol()))
+            return null;
+
+        try {
+            return new File(url.toURI()).getCanonicalPath();
+        }
+        catch (URISyntaxException e) {
+            return null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /* Computes the stamp of the class path.  A missing element is
+     * also recorded.
+     */
+    static String stamp(List<File> paths) {
+        MessageDigest md = WeaveCache.newDigest();
+        StringBuilder sb = new StringBuilder();
+        for (File p: paths) {
+            sb.append(p.getPath()).append('\n');
+            if (p.isDirectory())
+                stampDir(sb, p, "");
+            else if (p.exists())
+                sb.append(p.length()).append(' ').append(p.lastModified()).append('\n');
+
+            update(md, sb);
+        }
+
+        return WeaveCache.toHex(md.digest());
+    }
+
+    private static void stampDir(StringBuilder sb, File dir, String path) {
+        String[] names = dir.list();
+        if (names == null)
+            return;
+
+        Arrays.sort(names);
+        for (String name: names) {
+            File f = new File(dir, name);
+            if (name.endsWith(".class"))
+                sb.append(path).append(name).append(' ').append(f.length())
+                  .append(' ').append(f.lastModified()).append('\n');
+            else if (f.isDirectory())
+                stampDir(sb, f, path + name + "/");
+        }
+    }
+
+    private static void update(MessageDigest md, StringBuilder sb) {
+        try {
+            md.update(sb.toString().getBytes("UTF-8"));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        sb.setLength(0);
+    }
+
+    /**
+     * Writes a manifest.
+     *
+     * @param revisers      the reviser names given to the weaver.
+     * @param reviserFiles  the reviser names and the checksums of
+     *                      their class files.
+     * @param paths         the canonical paths of the class path.
+     * @param classes       the listed classes and their letters.
+     */
+    static void write(File dest, String[] revisers, boolean indy, boolean merge,
+                      Map<String,Integer> reviserFiles, List<File> paths,
+                      Map<String,String> classes)
+        throws IOException
+    {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(dest), "UTF-8"));
+        try {
+            out.print(MAGIC + " " + Weaver.VERSION + "\n");
+            out.print("revisers " + WeaveArchive.join(revisers) + "\n");
+            out.print("indy " + indy + "\n");
+            out.print("merge " + merge + "\n");
+            for (Map.Entry<String,Integer> e: reviserFiles.entrySet())
+                out.print("reviser " + e.getKey() + " "
+                          + Integer.toHexString(e.getValue()) + "\n");
+
+            for (File p: paths)
+                out.print("path " + p.getPath() + "\n");
+
+            out.print("stamp " + stamp(paths) + "\n");
+            for (Map.Entry<String,String> e: classes.entrySet()) {
+                String kinds = e.getValue();
+                out.print("class " + e.getKey() + " "
+                          + (kinds.length() == 0 ? "-" : kinds) + "\n");
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (out.checkError())
+            throw new IOException("cannot write " + dest);
+    }
+}
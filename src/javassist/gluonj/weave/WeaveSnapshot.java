@@ -0,0 +1,294 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javassist.ClassPool;
+
+/**
+ * A snapshot of the weaver state made before any class is transformed.
+ *
+ * <p>If the <code>javassist.gluonj.snapshot</code> property specifies it,
+ * the weaver restores the revisers and the tables made by
+ * {@link ClassConverter#prepare(java.util.HashMap, ClassPool)} from it
+ * instead of reading the revisers and preparing them again.
+ * If the file does not exist or it is out of date, the weaver prepares
+ * the revisers as usual and writes the file.
+ *
+ * <p>A snapshot records the class files of the prepared revisers,
+ * the helpers, and the other classes modified by prepare().  It also
+ * records the names of the revisers given to the weaver and the checksums
+ * of all the class files read while the revisers were prepared, for
+ * example, the super classes of the revisers.  The snapshot is not
+ * used if they do not match.  The file ends with the CRC-32 checksum
+ * of the rest so that a broken file is not used.
+ */
+public class WeaveSnapshot {
+    private static final String MAGIC = "GluonJ snapshot";
+
+    private File file;
+    private String[] reviserNames;          // given to the weaver
+    private boolean indy;
+    private boolean fuse;
+    private boolean merge;
+    private String fingerprint;
+    private LinkedHashMap<String,Integer> classFiles;   // class name -> checksum
+    private LinkedHashMap<String,byte[]> classes;       // class name -> prepared class file
+    private HashSet<String> revised;        // the revisers revised in advance
+    private byte[] state;                   // written by ClassConverter.writeState()
+
+    /**
+     * Reads a snapshot.
+     */
+    public WeaveSnapshot(File f) throws IOException {
+        this(null, false, false, false, null);
+        file = f;
+        CheckedInputStream sum = new CheckedInputStream(new BufferedInputStream(new FileInputStream(f)),
+                                                        new CRC32());
+        DataInputStream in = new DataInputStream(sum);
+        try {
+            if (!MAGIC.equals(in.readUTF()))
+                throw new IOException("not a GluonJ snapshot: " + f);
+
+            String version = in.readUTF();
+            if (!Weaver.VERSION.equals(version))
+                throw new IOException("made by GluonJ " + version + ": " + f);
+
+            reviserNames = new String[readLength(in, f)];
+            for (int i = 0; i < reviserNames.length; i++)
+                reviserNames[i] = in.readUTF();
+
+            indy = in.readBoolean();
+            fuse = in.readBoolean();
+            merge = in.readBoolean();
+            fingerprint = in.readUTF();
+            for (int n = in.readInt(); n > 0; n--)
+                classFiles.put(in.readUTF(), in.readInt());
+
+            for (int n = in.readInt(); n > 0; n--) {
+                String name = in.readUTF();
+                if (in.readBoolean())
+                    revised.add(name);
+
+                classes.put(name, readBytes(in, f));
+            }
+
+            state = readBytes(in, f);
+            int crc = (int)sum.getChecksum().getValue();
+            if (in.readInt() != crc || in.read() >= 0)
+                throw new IOException("broken snapshot: " + f);
+        }
+        catch (EOFException e) {
+            throw new IOException("broken snapshot: " + f, e);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /* The length is checked since the file may be broken.
+     */
+    private static int readLength(DataInputStream in, File f) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || f.length() < len)
+            throw new IOException("broken snapshot: " + f);
+
+        return len;
+    }
+
+    private static byte[] readBytes(DataInputStream in, File f) throws IOException {
+        byte[] data = new byte[readLength(in, f)];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * Makes an empty snapshot.
+     *
+     * @param revisers      the reviser names given to the weaver.
+     * @param fp            the fingerprint of the revisers.
+     */
+    WeaveSnapshot(String[] revisers, boolean indyDispatch, boolean fused, boolean merged,
+                  String fp)
+    {
+        reviserNames = revisers;
+        indy = indyDispatch;
+        fuse = fused;
+        merge = merged;
+        fingerprint = fp;
+        classFiles = new LinkedHashMap<String,Integer>();
+        classes = new LinkedHashMap<String,byte[]>();
+        revised = new HashSet<String>();
+    }
+
+    public File getFile() { return file; }
+
+    /**
+     * Returns the fingerprint of the revisers.
+     */
+    public String getFingerprint() { return fingerprint; }
+
+    /**
+     * Returns the prepared class files.  The keys are class names.
+     */
+    Map<String,byte[]> getClasses() { return classes; }
+
+    /**
+     * Returns true if the class is a reviser revised in advance.
+     */
+    boolean isRevised(String className) { return revised.contains(className); }
+
+    /**
+     * Returns a stream for reading what ClassConverter.writeState() wrote.
+     */
+    DataInputStream openState() {
+        return new DataInputStream(new ByteArrayInputStream(state));
+    }
+
+    /**
+     * Checks whether the snapshot was made with the given revisers
+     * and the class files read for preparing them have not been modified.
+     *
+     * @param cp        the class pool reading the class files.
+     * @return          null if the snapshot is available.  Otherwise,
+     *                  the reason why it is not.
+     */
+    public String check(String[] revisers, boolean indyDispatch, boolean fused,
+                        boolean merged, ClassPool cp)
+    {
+        if (!Arrays.equals(reviserNames, revisers))
+            return "made for other revisers: " + WeaveArchive.join(reviserNames);
+
+        if (indy != indyDispatch)
+            return indy ? "made with invokedynamic" : "made without invokedynamic";
+
+        if (fuse != fused)
+            return fuse ? "made with fused revisers" : "made without fused revisers";
+
+        if (merge != merged)
+            return merge ? "made with merged revisers" : "made without merged revisers";
+
+        for (Map.Entry<String,Integer> e: classFiles.entrySet()) {
+            Integer sum = checksumOf(cp, e.getKey());
+            if (sum == null)
+                return "not found " + e.getKey();
+            else if (!sum.equals(e.getValue()))
+                return "modified " + e.getKey();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the checksum of the class file that the class pool reads,
+     * or null if it is not found.
+     */
+    static Integer checksumOf(ClassPool cp, String className) {
+        URL url = cp.find(className);
+        if (url == null)
+            return null;
+
+        try {
+            InputStream in = url.openStream();
+            try {
+                return WeaveArchive.checksum(WeaveCache.readAll(in));
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the checksum of an original class file.
+     */
+    void addClassFile(String className, int checksum) {
+        classFiles.put(className, checksum);
+    }
+
+    /**
+     * Records a prepared class file.
+     *
+     * @param isRevised     true if the class is a reviser revised in advance.
+     */
+    void addClass(String className, byte[] classFile, boolean isRevised) {
+        classes.put(className, classFile);
+        if (isRevised)
+            revised.add(className);
+    }
+
+    void setState(byte[] s) { state = s; }
+
+    /**
+     * Writes the snapshot.  The file is first written under
+     * a temporary name and then renamed since other JVMs may
+     * be reading it.
+     */
+    void write(File dest) throws IOException {
+        File tmp = File.createTempFile(dest.getName(), ".tmp", dest.getAbsoluteFile().getParentFile());
+        CheckedOutputStream sum = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)),
+                                                          new CRC32());
+        DataOutputStream out = new DataOutputStream(sum);
+        try {
+            out.writeUTF(MAGIC);
+            out.writeUTF(Weaver.VERSION);
+            out.writeInt(reviserNames.length);
+            for (String r: reviserNames)
+                out.writeUTF(r);
+
+            out.writeBoolean(indy);
+            out.writeBoolean(fuse);
+            out.writeBoolean(merge);
+            out.writeUTF(fingerprint);
+            out.writeInt(classFiles.size());
+            for (Map.Entry<String,Integer> e: classFiles.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue());
+            }
+
+            out.writeInt(classes.size());
+            for (Map.Entry<String,byte[]> e: classes.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeBoolean(revised.contains(e.getKey()));
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+
+            out.writeInt(state.length);
+            out.write(state);
+            out.writeInt((int)sum.getChecksum().getValue());
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(dest)) {
+            dest.delete();
+            if (!tmp.renameTo(dest)) {
+                tmp.delete();
+                throw new IOException("cannot rename " + tmp);
+            }
+        }
+    }
+}
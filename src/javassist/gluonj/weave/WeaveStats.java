@@ -0,0 +1,202 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The statistics of {@link Weaver#transformClass(String, byte[])}.
+ *
+ * <p>{@link #register()} makes them visible through JMX under the name
+ * <code>javassist.gluonj:type=Weaver</code>.  If the JVM supports JFR,
+ * every call to transformClass() is also recorded as
+ * a <code>javassist.gluonj.Transform</code> event.  The event class
+ * is available only if GluonJ is built by JDK 11 or later.
+ */
+public class WeaveStats implements WeaveStatsMBean {
+    /**
+     * The name of the MBean.
+     */
+    public static final String NAME = "javassist.gluonj:type=Weaver";
+
+    public static final String WOVEN = "woven";
+    public static final String CACHED = "cached";
+    public static final String SKIPPED = "skipped";
+    public static final String ERROR = "error";
+
+    /* The i-th bucket counts the times t such that 2^(i-1) <= t < 2^i
+     * in microseconds.
+     */
+    private static final int BUCKETS = 40;
+
+    /* The methods of WeaveEvent, or null if JFR is not available.
+     */
+    private static final Method jfrStart = jfrMethod("start");
+    private static final Method jfrEnd = jfrMethod("end", Object.class, String.class,
+                                                   String.class, int.class, int.class);
+
+    private Weaver weaver;
+    private AtomicLong seen, woven, cached, skipped, errors;
+    private AtomicLong totalTime, maxTime, bytesIn, bytesOut;
+    private AtomicLongArray histogram;
+
+    WeaveStats(Weaver w) {
+        weaver = w;
+        seen = new AtomicLong();
+        woven = new AtomicLong();
+        cached = new AtomicLong();
+        skipped = new AtomicLong();
+        errors = new AtomicLong();
+        totalTime = new AtomicLong();
+        maxTime = new AtomicLong();
+        bytesIn = new AtomicLong();
+        bytesOut = new AtomicLong();
+        histogram = new AtomicLongArray(BUCKETS);
+    }
+
+    private static Method jfrMethod(String name, Class<?>... params) {
+        try {
+            Class<?> c = Class.forName(WeaveStats.class.getPackage().getName() + ".WeaveEvent");
+            return c.getDeclaredMethod(name, params);
+        }
+        catch (ClassNotFoundException e) {
+            return null;    // built by JDK 8 or earlier
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+        catch (LinkageError e) {
+            return null;    // running on JDK 10 or earlier, or without jdk.jfr
+        }
+    }
+
+    private static Object invoke(Method m, Object... args) {
+        try {
+            return m.invoke(null, args);
+        }
+        catch (IllegalAccessException e) {
+            return null;
+        }
+        catch (InvocationTargetException e) {
+            Logger.print(Logger.WARN, "a JFR event failed: " + e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Registers this object with the platform MBean server.
+     * If another object has been registered, this method does nothing.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(this, name);
+        }
+        catch (JMException e) {
+            Logger.print(Logger.WARN, "cannot register an MBean: " + e);
+        }
+    }
+
+    /**
+     * Called at the beginning of transformation.
+     *
+     * @return  a JFR event or null.
+     */
+    Object begin() {
+        return jfrStart == null || jfrEnd == null ? null : invoke(jfrStart);
+    }
+
+    /**
+     * Called at the end of transformation.
+     *
+     * @param event     the value returned by begin().
+     * @param start     the value of System.nanoTime() at the beginning.
+     * @param outcome   WOVEN, CACHED, SKIPPED, or ERROR.
+     * @param out       the woven class file or null.
+     */
+    void end(Object event, long start, String className, String outcome,
+             byte[] in, byte[] out)
+    {
+        long time = (System.nanoTime() - start) / 1000;
+        seen.incrementAndGet();
+        if (outcome == WOVEN)
+            woven.incrementAndGet();
+        else if (outcome == CACHED)
+            cached.incrementAndGet();
+        else if (outcome == SKIPPED)
+            skipped.incrementAndGet();
+        else
+            errors.incrementAndGet();
+
+        totalTime.addAndGet(time);
+        long max = maxTime.get();
+        while (time > max && !maxTime.compareAndSet(max, time))
+            max = maxTime.get();
+
+        histogram.incrementAndGet(bucket(time));
+        int inSize = in == null ? 0 : in.length;
+        int outSize = out == null ? 0 : out.length;
+        bytesIn.addAndGet(inSize);
+        bytesOut.addAndGet(outSize);
+        if (event != null)
+            invoke(jfrEnd, event, className, outcome, inSize, outSize);
+    }
+
+    private static int bucket(long time) {
+        int i = 64 - Long.numberOfLeadingZeros(time);
+        return i < BUCKETS ? i : BUCKETS - 1;
+    }
+
+    public long getClassesSeen() { return seen.get(); }
+    public long getClassesWoven() { return woven.get(); }
+    public long getClassesCached() { return cached.get(); }
+    public long getClassesSkipped() { return skipped.get(); }
+    public long getErrors() { return errors.get(); }
+    public long getTotalTransformTime() { return totalTime.get(); }
+    public long getMaxTransformTime() { return maxTime.get(); }
+
+    public long getP99TransformTime() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += histogram.get(i);
+
+        long rank = total - total / 100;   // the number of the times below p99
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram.get(i);
+            if (count >= rank && count > 0)
+                return Math.min(1L << i, getMaxTransformTime());
+        }
+
+        return 0;
+    }
+
+    public long getBytesIn() { return bytesIn.get(); }
+    public long getBytesOut() { return bytesOut.get(); }
+
+    public int getClassPoolSize() { return weaver.getClassPoolSize(); }
+    public int getClassLoaderCount() { return weaver.getClassLoaderCount(); }
+    public int getHelperCount() { return weaver.getHelperCount(); }
+
+    public String[] getSwitchableRevisers() {
+        return ReviserSwitch.getNames().toArray(new String[0]);
+    }
+
+    public boolean isReviserEnabled(String reviserName) {
+        return ReviserSwitch.isEnabled(reviserName);
+    }
+
+    public void setReviserEnabled(String reviserName, boolean on) {
+        ReviserSwitch.setEnabled(reviserName, on);
+    }
+}
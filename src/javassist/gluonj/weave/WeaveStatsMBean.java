@@ -0,0 +1,69 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+/**
+ * The management interface of {@link WeaveStats}.
+ * The times are in microseconds.
+ */
+public interface WeaveStatsMBean {
+    /**
+     * The number of the class files given to the weaver.
+     */
+    long getClassesSeen();
+
+    /**
+     * The number of the class files woven.
+     */
+    long getClassesWoven();
+
+    /**
+     * The number of the class files obtained from the cache.
+     */
+    long getClassesCached();
+
+    /**
+     * The number of the class files returned without modification.
+     */
+    long getClassesSkipped();
+
+    /**
+     * The number of the class files that the weaver failed to transform.
+     */
+    long getErrors();
+
+    long getTotalTransformTime();
+    long getMaxTransformTime();
+
+    /**
+     * The 99th percentile of the transformation time.  It is
+     * an upper bound since the times are recorded in a histogram.
+     */
+    long getP99TransformTime();
+
+    long getBytesIn();
+    long getBytesOut();
+
+    /**
+     * The number of the classes in the class pool, or -1 if unknown.
+     */
+    int getClassPoolSize();
+
+    /**
+     * The number of the class loaders that have a class pool of their own.
+     */
+    int getClassLoaderCount();
+
+    /**
+     * The number of the helper classes generated by the weaver.
+     */
+    int getHelperCount();
+
+    /**
+     * The names of the switchable revisers used so far.
+     */
+    String[] getSwitchableRevisers();
+
+    boolean isReviserEnabled(String reviserName);
+    void setReviserEnabled(String reviserName, boolean on);
+}
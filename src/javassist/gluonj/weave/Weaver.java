@@ -5,13 +5,44 @@ package javassist.gluonj.weave;
 import javassist.*;
 
 import java.io.File;
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import javassist.CannotCompileException;
+import javassist.bytecode.ClassFile;
 import javassist.gluonj.weave.WeaveException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 /**
  * A driver for weaving.
@@ -22,22 +53,63 @@ import java.util.HashMap;
  * @see ReviserTree
  */
 public class Weaver {
-    static int counter = 0;
     private ClassPool cpool;
     private String outputDir;       // used by transform(String,byte[])
+    private int threads;            // used by transformFiles()
+    private WeaveCache cache;       // used by transformFiles() and transformClass()
+    private String cacheDir;
+    private boolean detach;         // true if woven classes are detached from cpool
+    private String fingerprint;
+    private boolean fuse;           // see setFuseChains()
     private ClassConverter converter;
+    private WeaveStats stats;
+    private Map<String,byte[]> jarOutput;   // non-null while transformJar() runs
+    private ClassLoader reviserLoader;      // the loader of the revisers, or null
+    private ConcurrentHashMap<LoaderKey,ClassConverter.Scope> scopes;
+    private ReferenceQueue<ClassLoader> staleLoaders;
+    private Set<CtClass> revised;           // the revisers revised in advance
 
+    public static final String VERSION = "2.4";
     public static final String CLASSPATH_PROPERTY = "javassist.gluonj.classpath";
     public static final String OUTPUT_PROPERTY = "javassist.gluonj.output";
+    public static final String CACHE_PROPERTY = "javassist.gluonj.cache";
+    public static final String DETACH_PROPERTY = "javassist.gluonj.detach";
+    public static final String INDY_PROPERTY = "javassist.gluonj.indy";
+    public static final String ARCHIVE_PROPERTY = "javassist.gluonj.archive";
+    public static final String MANIFEST_PROPERTY = "javassist.gluonj.manifest";
+    public static final String SNAPSHOT_PROPERTY = "javassist.gluonj.snapshot";
+    public static final String FUSE_PROPERTY = "javassist.gluonj.fuse";
+    public static final String MERGE_PROPERTY = "javassist.gluonj.merge";
 
     /**
      * Constructs a weaver.
      */
     public Weaver(ReviserTree tree, ClassPool cp) throws WeaveException, NotFoundException {
+        this(tree, cp, false);
+    }
+
+    /**
+     * Constructs a weaver.
+     *
+     * @param merge     true if the revisers are merged into their targets
+     *                  if possible.  See {@link ReviserMerger}.
+     */
+    public Weaver(ReviserTree tree, ClassPool cp, boolean merge)
+        throws WeaveException, NotFoundException
+    {
         cpool = cp;
+        reviserLoader = null;
+        scopes = new ConcurrentHashMap<LoaderKey,ClassConverter.Scope>();
+        staleLoaders = new ReferenceQueue<ClassLoader>();
+        threads = 1;
+        detach = false;
+        fuse = false;
+        stats = new WeaveStats(this);
         converter = new ClassConverter();
         HashMap<CtClass,ReviserTree.ReviserList> revisers = tree.toMap(converter);
+        fingerprint = WeaveCache.fingerprint(revisers);
         initOutputDir();
+        converter.setMergeRevisers(merge);
         converter.prepare(revisers, cp);
     }
 
@@ -47,42 +119,292 @@ public class Weaver {
      * @param loader        the class loader that is used for reading
      *                      original class files.
      * @param useClasspath  true if javassist.gluonj.classpath is effective.
+     *                      javassist.gluonj.cache, javassist.gluonj.detach,
+     *                      javassist.gluonj.indy, javassist.gluonj.fuse, and
+     *                      javassist.gluonj.merge are also effective if true.
+     *                      javassist.gluonj.snapshot is effective in either case.
+     * @see WeaveSnapshot
      */
     public Weaver(String[] reviserNames, ClassLoader loader, boolean useClasspath)
         throws WeaveException
     {
         cpool = makeClassPool(loader, useClasspath);
+        reviserLoader = loader;
+        scopes = new ConcurrentHashMap<LoaderKey,ClassConverter.Scope>();
+        staleLoaders = new ReferenceQueue<ClassLoader>();
+        threads = 1;
+        detach = false;
+        fuse = false;
+        stats = new WeaveStats(this);
         converter = new ClassConverter();
         try {
-            ReviserTree tree = new ReviserTree();
-            for (String name: reviserNames) {
-                CtClass clazz = cpool.get(name);
-                Logger.print("Reading.. " + name);
-                tree.append(name, clazz, true);
+            String snapshotName = System.getProperty(SNAPSHOT_PROPERTY);
+            boolean indy = useClasspath && Boolean.getBoolean(INDY_PROPERTY);
+            boolean fusing = useClasspath && Boolean.getBoolean(FUSE_PROPERTY);
+            boolean merging = useClasspath && Boolean.getBoolean(MERGE_PROPERTY);
+            WeaveSnapshot snapshot = null;
+            if (snapshotName != null)
+                snapshot = openSnapshot(new File(snapshotName), reviserNames, indy, fusing,
+                                        merging);
+
+            HashMap<CtClass,ReviserTree.ReviserList> revisers = null;
+            if (snapshot == null) {
+                ReviserTree tree = new ReviserTree();
+                for (String name: reviserNames) {
+                    CtClass clazz = cpool.get(name);
+                    Logger.print("Reading.. " + name);
+                    tree.append(name, clazz, true);
+                }
+
+                tree.addRequiringOrder(reviserNames);
+                revisers = tree.toMap(converter);
+                fingerprint = WeaveCache.fingerprint(revisers);
             }
+            else
+                fingerprint = snapshot.getFingerprint();
 
-            tree.addRequiringOrder(reviserNames);
-            HashMap<CtClass,ReviserTree.ReviserList> revisers = tree.toMap(converter);
             initOutputDir();
-            converter.prepare(revisers, cpool);
+            converter.setMergeRevisers(merging);
+            if (useClasspath) {
+                setIndyDispatch(indy);
+                setFuseChains(fusing);
+                setCacheDir(System.getProperty(CACHE_PROPERTY));
+                setDetach(Boolean.getBoolean(DETACH_PROPERTY));
+            }
+
+            if (snapshot == null) {
+                converter.prepare(revisers, cpool);
+                reviseRevisers(revisers);
+                if (fuse)
+                    converter.fuseChains(revised);
+
+                if (snapshotName != null)
+                    writeSnapshot(new File(snapshotName), reviserNames, revisers);
+            }
+            else
+                restore(snapshot);
         }
         catch (NotFoundException e) {
             throw new WeaveException(e);
         }
     }
 
+    /* A class pool that reports its size.
+     *
+     * ClassPool.compress() locks every CtClass in the pool, one by one.
+     * It is called by makeClass() while the pool is locked, and by
+     * getClassFile2() while a CtClass is locked for transformation.
+     * So it may deadlock when classes are transformed in parallel.
+     * This pool never compresses the classes.  Then transformClass()
+     * only has to lock the CtClass it transforms, and makeClassIfNew()
+     * locks the pool only for looking up and recording a class file
+     * parsed in advance.
+     */
+    private static class SizedClassPool extends ClassPool {
+        SizedClassPool() { super(true); noCompress(); }
+        SizedClassPool(boolean useDefaultPath) { super(useDefaultPath); noCompress(); }
+        SizedClassPool(ClassPool parent) { super(parent); noCompress(); }
+
+        /* compress() is the only caller of elements().
+         */
+        private static class ClassTable extends Hashtable<Object,Object> {
+            public Enumeration<Object> elements() {
+                return Collections.emptyEnumeration();
+            }
+        }
+
+        private void noCompress() {
+            Hashtable<Object,Object> table = new ClassTable();
+            for (Object name: classes.keySet())     // classes is a raw Hashtable
+                table.put(name, classes.get(name));
+
+            classes = table;
+        }
+
+        /* Returns the class in the pool if it has been already made.
+         */
+        synchronized CtClass makeClassIfNew(ClassFile cf) {
+            CtClass found = getCached(cf.getName());
+            return found == null ? makeClass(cf, false) : found;
+        }
+
+        int size() { return classes.size(); }
+
+        List<String> classNames() {
+            ArrayList<String> names = new ArrayList<String>();
+            for (Object name: classes.keySet())     // classes is a raw Hashtable
+                names.add((String)name);
+
+            return names;
+        }
+    }
+
+    /**
+     * Makes a class pool given to the weaver.  Unlike a plain
+     * <code>ClassPool</code>, it can be shared among the threads
+     * transforming class files in parallel.  See {@link #setThreads(int)}.
+     *
+     * @param useDefaultPath    true if the system search path is appended.
+     */
+    public static ClassPool newClassPool(boolean useDefaultPath) {
+        return new SizedClassPool(useDefaultPath);
+    }
+
+    /* Revises the revisers in advance.  Other classes refer to them
+     * and they are shared among class loaders.  So they must not be
+     * modified later while other classes are revised by other threads.
+     * transform() does not revise them again.
+     */
+    private void reviseRevisers(HashMap<CtClass,ReviserTree.ReviserList> revisers)
+        throws WeaveException
+    {
+        Set<CtClass> done = Collections.newSetFromMap(new IdentityHashMap<CtClass,Boolean>());
+        for (ReviserTree.ReviserList list: revisers.values())
+            for (Reviser r: list.getList())
+                if (done.add(r.body))
+                    transform(r.body);
+
+        revised = done;
+    }
+
+    /* Returns null if the snapshot is not available.
+     */
+    private WeaveSnapshot openSnapshot(File f, String[] reviserNames, boolean indy,
+                                       boolean fusing, boolean merging)
+    {
+        if (!f.exists())
+            return null;
+
+        try {
+            WeaveSnapshot snapshot = new WeaveSnapshot(f);
+            String reason = snapshot.check(reviserNames, indy, fusing, merging, cpool);
+            if (reason == null)
+                return snapshot;
+
+            Logger.print(Logger.WARN, "the snapshot " + f + " is not used: " + reason);
+        }
+        catch (IOException e) {
+            Logger.print(Logger.WARN, "cannot read the snapshot " + f + ": " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /* Restores the revisers and the state of the converter instead of
+     * preparing them.
+     */
+    private void restore(WeaveSnapshot snapshot) throws WeaveException, NotFoundException {
+        Logger.print("Restoring.. " + snapshot.getFile());
+        Set<CtClass> done = Collections.newSetFromMap(new IdentityHashMap<CtClass,Boolean>());
+        try {
+            for (Map.Entry<String,byte[]> e: snapshot.getClasses().entrySet()) {
+                CtClass cc = cpool.makeClass(new ByteArrayInputStream(e.getValue()));
+                if (snapshot.isRevised(e.getKey()))
+                    done.add(cc);
+            }
+
+            converter.restore(snapshot.openState(), cpool);
+        }
+        catch (IOException e) {
+            throw new WeaveException("broken snapshot: " + snapshot.getFile(), e);
+        }
+
+        revised = done;
+    }
+
+    /* Writes the revisers, the classes modified by prepare(), and
+     * the state of the converter.  A failure is only reported since
+     * the weaver is available anyway.
+     */
+    private void writeSnapshot(File dest, String[] reviserNames,
+                               HashMap<CtClass,ReviserTree.ReviserList> revisers)
+    {
+        WeaveSnapshot snapshot = new WeaveSnapshot(reviserNames, converter.isIndyDispatch(),
+                                                   fuse, converter.isMergeRevisers(),
+                                                   fingerprint);
+        try {
+            for (Map.Entry<CtClass,ReviserTree.ReviserList> e: revisers.entrySet()) {
+                CtClass target = e.getKey();
+                if (target.isModified() && !revised.contains(target))
+                    snapshot.addClass(target.getName(), toBytecode(target), false);
+
+                for (Reviser r: e.getValue().getList())
+                    snapshot.addClass(r.body.getName(), toBytecode(r.body), true);
+            }
+
+            for (CtClass cc: converter.getHelpers())
+                snapshot.addClass(cc.getName(), toBytecode(cc), false);
+
+            /* Every class file read for preparing the revisers.
+             * The helpers are not found.
+             */
+            for (String name: ((SizedClassPool)cpool).classNames()) {
+                Integer sum = WeaveSnapshot.checksumOf(cpool, name);
+                if (sum != null)
+                    snapshot.addClassFile(name, sum);
+            }
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bout);
+            converter.writeState(out);
+            out.flush();
+            snapshot.setState(bout.toByteArray());
+            snapshot.write(dest);
+            Logger.print("Writing.. " + dest);
+        }
+        catch (IOException e) {
+            Logger.print(Logger.WARN, "cannot write the snapshot " + dest + ": " + e.getMessage());
+        }
+        catch (CannotCompileException e) {
+            Logger.print(Logger.WARN, "cannot write the snapshot " + dest + ": " + e.getMessage());
+        }
+    }
+
+    /* Returns the class file without freezing the class.
+     */
+    private static byte[] toBytecode(CtClass cc) throws IOException, CannotCompileException {
+        boolean frozen = cc.isFrozen();
+        byte[] classFile = cc.toBytecode();
+        if (!frozen)
+            cc.defrost();
+
+        return classFile;
+    }
+
+    /* A class pool reading class files through a class loader other than
+     * the loader of the revisers.  The revisers, the helpers, and
+     * the system classes are obtained from the class pool of the revisers.
+     * The other classes are first searched for by the class loader.
+     */
+    private class LoaderPool extends SizedClassPool {
+        LoaderPool(ClassLoader loader) {
+            super(cpool);
+            childFirstLookup = true;
+            appendClassPath(new LoaderClassPath(loader));
+        }
+
+        protected synchronized CtClass get0(String name, boolean useCache)
+            throws NotFoundException
+        {
+            if (converter.isShared(name) || isNonTransformable(name))
+                return parent.getOrNull(name);
+            else
+                return super.get0(name, useCache);
+        }
+    }
+
     private static ClassPool makeClassPool(ClassLoader loader, boolean useClasspath) {
-        ClassPool cp = new ClassPool(true);
+        ClassPool cp = new SizedClassPool();
         if (loader != null)
             cp.insertClassPath(new LoaderClassPath(loader));
 
         String pathlist = System.getProperty(CLASSPATH_PROPERTY);
         if (pathlist != null)
             try {
-                cp.appendPathList(pathlist);
+                cp.appendClassPath(new IndexedClassPath(pathlist));
             }
             catch (NotFoundException e) {
-                Logger.print("not found a jar file in "
+                Logger.print(Logger.WARN, "not found a jar file in "
                              + CLASSPATH_PROPERTY + ": " + e.getMessage());
             }
 
@@ -101,8 +423,113 @@ public class Weaver {
         outputDir = dirName(dir);
     }
 
+    /**
+     * Sets the number of threads that transformFiles() uses.
+     * If it is more than one, the class pool given to the constructor
+     * should be made by {@link #newClassPool(boolean)}.
+     */
+    public void setThreads(int n) {
+        threads = n < 1 ? 1 : n;
+    }
+
+    /**
+     * Sets the cache directory used by transformFiles() and transformClass().
+     * If a class file has been woven by the same revisers before,
+     * they obtain the woven class file from the cache.
+     *
+     * @param dir       the cache directory, or null.
+     */
+    public void setCacheDir(String dir) {
+        cacheDir = dir;
+        cache = dir == null ? null : new WeaveCache(dir, getFingerprint());
+    }
+
+    /**
+     * If true, transformFiles() and transformClass() detach a woven class
+     * from the class pool after writing it, so that the memory footprint
+     * does not grow with the number of woven classes.  Revisers are never
+     * detached.  If a detached class is needed later, for example, as
+     * a super class, the class pool reads the original class file again.
+     * ClassConverter does not need the woven class since it records
+     * what it has learned about the class by class names.
+     */
+    public void setDetach(boolean d) {
+        detach = d;
+    }
+
+    /**
+     * If true, a call to a revised method declared in an unmodifiable
+     * class such as java.lang.Object is woven into invokedynamic.
+     * The woven classes then need this weaver's runtime at runtime.
+     *
+     * @see ClassConverter#setIndyDispatch(boolean)
+     */
+    public void setIndyDispatch(boolean b) {
+        converter.setIndyDispatch(b);
+        setCacheDir(cacheDir);
+    }
+
+    /**
+     * If true, the bodies of the methods overridden by the revisers
+     * targeting the same class are copied into the overriding methods
+     * so that a call to a revised method goes through fewer frames.
+     * It must be called before transformFiles().  The constructor taking
+     * reviser names calls it with the value of javassist.gluonj.fuse.
+     *
+     * @see ChainFuser
+     */
+    public void setFuseChains(boolean b) {
+        fuse = b;
+        setCacheDir(cacheDir);
+    }
+
+    /**
+     * Returns the fingerprint of the revisers.  It covers the class files
+     * of the revisers, their precedence order, the weaver version,
+     * and whether invokedynamic is used and the revisers are fused or merged.
+     */
+    public String getFingerprint() {
+        String fp = converter.isIndyDispatch() ? fingerprint + "-indy" : fingerprint;
+        if (fuse)
+            fp += "-fuse";
+
+        return converter.isMergeRevisers() ? fp + "-merge" : fp;
+    }
+
     public ClassPool getClassPool() { return cpool; }
 
+    /**
+     * Returns the statistics of transformClass().
+     */
+    public WeaveStats getStats() { return stats; }
+
+    /**
+     * Returns the number of the classes in the class pool,
+     * or -1 if unknown.
+     */
+    public int getClassPoolSize() {
+        if (cpool instanceof SizedClassPool)
+            return ((SizedClassPool)cpool).size();
+        else
+            return -1;
+    }
+
+    /**
+     * Returns the number of the class loaders that have a class pool
+     * of their own.  See {@link #transformClass(ClassLoader, String, byte[])}.
+     */
+    public int getClassLoaderCount() {
+        expungeStaleScopes();
+        return scopes.size();
+    }
+
+    /**
+     * Returns the number of the helper classes generated so far.
+     */
+    public int getHelperCount() {
+        return converter.getHelpers().size();
+    }
+
     // transformation
 
     /**
@@ -112,32 +539,447 @@ public class Weaver {
         throws WeaveException
     {
         CtClass original = readClass(cpool, baseDir, fileName);
-        transform(original);
+        transformAndWrite(original);
+    }
+
+    /**
+     * Transforms the specified class files.  It writes the modified files.
+     * If more than one thread is available, the files are transformed
+     * in parallel.  The written files are the same whatever the number of
+     * threads is.
+     */
+    public void transformFiles(final File baseDir, String[] fileNames)
+        throws WeaveException
+    {
+        /* Other classes refer to the revisers and the copies of
+         * the revisers targeting an interface.  So they are modified
+         * in the order of the given files before the other classes.
+         * If detach is true, the other classes are read again later.
+         */
+        ArrayList<Input> revisers = new ArrayList<Input>();
+        ArrayList<Input> others = new ArrayList<Input>();
+        try {
+            for (String fname: fileNames) {
+                Input in = new Input(fname);
+                CtClass c;
+                if (cache == null)
+                    c = readClass(cpool, baseDir, fname);
+                else {
+                    byte[] classFile = readFile(baseDir, fname);
+                    c = makeClass(cpool, classFile);
+                    in.key = cache.key(classFile, cpool);
+                }
+
+                addInput(in, c, detach, revisers, others);
+            }
+        }
+        catch (NotFoundException e) {
+            throw new WeaveException(e);
+        }
+
+        transformInputs(baseDir, revisers, others);
+    }
+
+    private void addInput(Input in, CtClass c, boolean detachable,
+                          List<Input> revisers, List<Input> others)
+        throws WeaveException, NotFoundException
+    {
+        in.className = c.getName();
+        converter.reviseInterfaces(c);
+        if (converter.isReviser(in.className)) {
+            in.clazz = c;
+            revisers.add(in);
+        }
+        else {
+            /* If c implements an interface targeted by a reviser,
+             * reviseInterfaces() may modify the constructors of c.
+             */
+            if (detachable && converter.getNewClassName(in.className) == null)
+                c.detach();
+            else
+                in.clazz = c;
+
+            others.add(in);
+        }
+    }
+
+    private void transformInputs(File baseDir, List<Input> revisers, List<Input> others)
+        throws WeaveException
+    {
+        if (fuse) {
+            /* The revisers are fused after all of them are revised.
+             * A reviser in a jar file is not fused.
+             */
+            Set<CtClass> done = Collections.newSetFromMap(new IdentityHashMap<CtClass,Boolean>());
+            for (Input in: revisers) {
+                transform(in.clazz);
+                done.add(in.clazz);
+            }
+
+            converter.fuseChains(done);
+            for (Input in: revisers)
+                write(in.clazz, null);
+        }
+        else
+            for (Input in: revisers)
+                transformAndWrite(in.clazz, null);
+
+        if (threads < 2 || others.size() < 2)
+            for (Input in: others)
+                transformAndWrite(baseDir, in);
+        else
+            transformInParallel(baseDir, others);
+    }
+
+    /**
+     * Transforms the class files in the given jar file and writes
+     * a new jar file.  The helper classes are not written into the jar
+     * file since they may be shared with other jar files.
+     * Call {@link #writeHelpers()} after all the files are transformed.
+     * The entries that the revisers never affect are copied without
+     * being decompressed and compressed again.  Only the class files
+     * are decompressed to scan their constant pools.
+     * The class pool must be able to read the classes in the source jar
+     * file.
+     *
+     * <p>If the source is a ZIP64 file, all the entries are
+     * decompressed and compressed again.
+     *
+     * @param source        the source jar file.
+     * @param dest          the jar file written.  It must not be the source.
+     */
+    public void transformJar(File source, File dest) throws WeaveException {
+        ArrayList<Input> revisers = new ArrayList<Input>();
+        ArrayList<Input> others = new ArrayList<Input>();
+        try {
+            ZipFile zip = new ZipFile(source);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry e = entries.nextElement();
+                    String className = entryToClassName(e.getName());
+                    if (className == null)
+                        continue;
+
+                    byte[] classFile = readAll(zip, e);
+                    if (!mayRevise(className, classFile))
+                        continue;
+
+                    Input in = new Input(e.getName());
+                    if (cache != null)
+                        in.key = cache.key(classFile, cpool);
+
+                    addInput(in, makeClass(cpool, classFile), false, revisers, others);
+                }
+            }
+            finally {
+                zip.close();
+            }
+        }
+        catch (IOException e) {
+            throw new WeaveException("cannot read a jar file: " + source, e);
+        }
+        catch (NotFoundException e) {
+            throw new WeaveException(e);
+        }
+
+        Map<String,byte[]> woven = new ConcurrentHashMap<String,byte[]>();
+        jarOutput = woven;
+        try {
+            transformInputs(null, revisers, others);
+        }
+        finally {
+            jarOutput = null;
+        }
+
+        try {
+            writeJar(source, dest, woven);
+        }
+        catch (IOException e) {
+            throw new WeaveException("failed to write a jar file: " + dest, e);
+        }
+    }
+
+    /* Returns the class name if the entry is a class file
+     * that may be woven.  Otherwise, null.
+     */
+    private static String entryToClassName(String entryName) {
+        if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/")
+            || entryName.endsWith("module-info.class"))
+            return null;
+        else
+            return toClassName(entryName.substring(0, entryName.length() - 6));
+    }
+
+    private static byte[] readAll(ZipFile zip, ZipEntry e) throws IOException {
+        InputStream is = zip.getInputStream(e);
+        try {
+            return WeaveCache.readAll(is);
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @param woven     the woven class files.  The keys are class names.
+     */
+    private static void writeJar(File source, File dest, Map<String,byte[]> woven)
+        throws IOException
+    {
+        ZipCopier copier;
+        try {
+            copier = new ZipCopier(source);
+        }
+        catch (ZipException e) {
+            Logger.print(Logger.WARN, "re-compressing " + source + ": " + e.getMessage());
+            rewriteJar(source, dest, woven);
+            return;
+        }
+
+        boolean done = false;
+        try {
+            copier.open(dest);
+            HashMap<String,byte[]> added = new HashMap<String,byte[]>(woven);
+            for (ZipCopier.Entry e: copier.entries()) {
+                String className = entryToClassName(e.name);
+                byte[] b = className == null ? null : added.remove(className);
+                if (b == null)
+                    copier.copy(e);
+                else
+                    copier.put(e.name, b, e);
+            }
+
+            for (String name: new TreeSet<String>(added.keySet()))
+                copier.put(name.replace('.', '/') + ".class", added.get(name), null);
+
+            copier.finish();
+            done = true;
+        }
+        finally {
+            if (!done)
+                copier.close();
+        }
+    }
+
+    /* Used if ZipCopier does not accept the source file.
+     */
+    private static void rewriteJar(File source, File dest, Map<String,byte[]> woven)
+        throws IOException
+    {
+        HashMap<String,byte[]> added = new HashMap<String,byte[]>(woven);
+        ZipFile zip = new ZipFile(source);
         try {
-            original.writeFile(outputDir);
+            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(dest)));
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry e = entries.nextElement();
+                    String className = entryToClassName(e.getName());
+                    byte[] b = className == null ? null : added.remove(className);
+                    if (b == null)
+                        b = readAll(zip, e);
+
+                    ZipEntry e2 = new ZipEntry(e.getName());
+                    e2.setTime(e.getTime());
+                    out.putNextEntry(e2);
+                    out.write(b);
+                    out.closeEntry();
+                }
+
+                for (String name: new TreeSet<String>(added.keySet())) {
+                    out.putNextEntry(new ZipEntry(name.replace('.', '/') + ".class"));
+                    out.write(added.get(name));
+                    out.closeEntry();
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * A class file given to transformFiles().
+     */
+    private static class Input {
+        String fileName;
+        String className;
+        String key;         // the cache key, or null
+        CtClass clazz;      // null if it has been detached
+
+        Input(String fname) { fileName = fname; }
+    }
+
+    private void transformInParallel(final File baseDir, List<Input> inputs)
+        throws WeaveException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final Input in: inputs)
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws WeaveException {
+                        transformAndWrite(baseDir, in);
+                        return null;
+                    }
+                }));
+
+            for (Future<Void> f: results)
+                f.get();
+        }
+        catch (InterruptedException e) {
+            throw new WeaveException("interrupted while weaving", e);
+        }
+        catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof WeaveException)
+                throw (WeaveException)t;
+            else if (t instanceof RuntimeException)
+                throw (RuntimeException)t;
+            else if (t instanceof Error)
+                throw (Error)t;
+            else
+                throw new WeaveException(e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void transformAndWrite(File baseDir, Input in) throws WeaveException {
+        if (in.key != null) {
+            byte[] woven = cache.get(in.key, in.className);
+            if (woven != null) {
+                Logger.print("Cached.. " + in.className);
+                writeFile(in.className, woven);
+                return;
+            }
         }
-        catch (CannotCompileException cce) { failedToWrite(original, cce); }
-        catch (IOException cce) { failedToWrite(original, cce); }
+
+        CtClass c = in.clazz;
+        in.clazz = null;
+        if (c == null)
+            c = readClass(cpool, baseDir, in.fileName);
+
+        transformAndWrite(c, in.key);
+        if (detach)
+            c.detach();
+    }
+
+    private void transformAndWrite(CtClass clazz) throws WeaveException {
+        transformAndWrite(clazz, null);
+    }
+
+    /**
+     * @param key       the cache key of the class file, or null.
+     */
+    private void transformAndWrite(CtClass clazz, String key) throws WeaveException {
+        transform(clazz);
+        write(clazz, key);
     }
 
+    private void write(CtClass clazz, String key) throws WeaveException {
+        if (key == null)
+            try {
+                writeClass(clazz);
+            }
+            catch (CannotCompileException cce) { failedToWrite(clazz, cce); }
+            catch (IOException cce) { failedToWrite(clazz, cce); }
+        else {
+            byte[] woven = null;
+            try {
+                woven = clazz.toBytecode();
+            }
+            catch (CannotCompileException cce) { failedToWrite(clazz, cce); }
+            catch (IOException cce) { failedToWrite(clazz, cce); }
+
+            cache.put(key, clazz.getName(), woven);
+            writeFile(clazz.getName(), woven);
+        }
+    }
+
+    /**
+     * Writes the helper classes generated during weaving.
+     * If the cache is used, it also writes the helper classes
+     * generated when the cached class files were woven.
+     */
     public void writeHelpers() throws WeaveException {
+        HashMap<String,CtClass> written = new HashMap<String,CtClass>();
         for (CtClass cc: converter.getHelpers())
             try {
-                cc.writeFile(outputDir);
+                if (cache == null)
+                    writeClass(cc);
+                else {
+                    byte[] b = cc.toBytecode();
+                    cache.putHelper(cc.getName(), b);
+                    writeFile(cc.getName(), b);
+                    written.put(cc.getName(), cc);
+                }
             }
             catch (CannotCompileException cce) { failedToWrite(cc, cce); }
             catch (IOException ioe) { failedToWrite(cc, ioe); }
+
+        if (cache != null)
+            for (String name: cache.getHelperNames())
+                if (written.get(name) == null) {
+                    byte[] b = cache.getHelper(name);
+                    if (b != null)
+                        writeFile(name, b);
+                }
     }
 
-    public static CtClass readClass(ClassPool pool, File baseDir, String fileName)
+    private void writeClass(CtClass clazz)
+        throws CannotCompileException, IOException, WeaveException
+    {
+        if (jarOutput == null)
+            clazz.writeFile(outputDir);
+        else
+            writeFile(clazz.getName(), clazz.toBytecode());
+    }
+
+    private void writeFile(String className, byte[] classFile)
         throws WeaveException
     {
+        if (jarOutput != null) {
+            jarOutput.put(className, classFile);
+            return;
+        }
+
+        File f = new File(outputDir, className.replace('.', '/') + ".class");
         try {
-            File f = new File(baseDir, fileName);
-            BufferedInputStream is = new BufferedInputStream(new FileInputStream(f));
-            CtClass clazz = pool.makeClassIfNew(is);
-            is.close();
-            return clazz;
+            File dir = f.getParentFile();
+            if (dir != null)
+                dir.mkdirs();
+
+            OutputStream out = new FileOutputStream(f);
+            try {
+                out.write(classFile);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            throw new WeaveException("failed to write a class file: "
+                                     + className, e);
+        }
+    }
+
+    private static byte[] readFile(File baseDir, String fileName)
+        throws WeaveException
+    {
+        try {
+            InputStream is = new FileInputStream(new File(baseDir, fileName));
+            try {
+                return WeaveCache.readAll(is);
+            }
+            finally {
+                is.close();
+            }
         }
         catch (IOException ie) {
             throw new WeaveException("cannot read a class file: "
@@ -145,6 +987,244 @@ public class Weaver {
         }
     }
 
+    /* The class file is parsed before the pool is locked.
+     * See SizedClassPool.
+     */
+    private static CtClass makeClass(ClassPool pool, byte[] classFile)
+        throws WeaveException
+    {
+        try {
+            if (pool instanceof SizedClassPool) {
+                ClassFile cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(classFile)));
+                return ((SizedClassPool)pool).makeClassIfNew(cf);
+            }
+
+            synchronized (pool) {
+                return pool.makeClassIfNew(new ByteArrayInputStream(classFile));
+            }
+        }
+        catch (IOException ie) {
+            throw new WeaveException("cannot read a class file", ie);
+        }
+    }
+
+    public static CtClass readClass(ClassPool pool, File baseDir, String fileName)
+        throws WeaveException
+    {
+        return makeClass(pool, readFile(baseDir, fileName));
+    }
+
+    /**
+     * Reads the revisers in the given jar file into the class pool.
+     * The other classes in the jar file are not read into the pool.
+     * It only scans the constant pools of the class files to find
+     * the revisers.
+     */
+    public static List<CtClass> readRevisers(ClassPool pool, File jarFile)
+        throws WeaveException
+    {
+        String annotation = "L" + ReviserTree.AT_REVISER.replace('.', '/') + ";";
+        ConstPoolFilter filter = new ConstPoolFilter(Collections.singleton(annotation));
+        ArrayList<CtClass> revisers = new ArrayList<CtClass>();
+        try {
+            ZipFile zip = new ZipFile(jarFile);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry e = entries.nextElement();
+                    if (entryToClassName(e.getName()) != null) {
+                        byte[] classFile = readAll(zip, e);
+                        if (filter.mayRefer(classFile)) {
+                            CtClass c = makeClass(pool, classFile);
+                            if (ReviserTree.isReviser(c))
+                                revisers.add(c);
+                            else
+                                c.detach();
+                        }
+                    }
+                }
+            }
+            finally {
+                zip.close();
+            }
+        }
+        catch (IOException e) {
+            throw new WeaveException("cannot read a jar file: " + jarFile, e);
+        }
+
+        return revisers;
+    }
+
+    /**
+     * Transforms all the class files in the class path and writes
+     * an archive that the load-time weaver uses instead of weaving.
+     * The class files are transformed by transformClass(String, byte[]).
+     * If the same class name appears more than once, the first one is
+     * recorded.
+     *
+     * @param classPath     directory names and jar file names separated
+     *                      by <code>File.pathSeparator</code>.
+     * @param reviserNames  the reviser names given to the load-time weaver.
+     * @see WeaveArchive
+     */
+    public void writeArchive(String classPath, String[] reviserNames, File dest)
+        throws WeaveException
+    {
+        WeaveArchive.Writer out;
+        try {
+            out = new WeaveArchive.Writer(dest);
+        }
+        catch (IOException e) {
+            throw new WeaveException("cannot write an archive: " + dest, e);
+        }
+
+        try {
+            final WeaveArchive.Writer archive = out;
+            scanClassPath(IndexedClassPath.split(classPath), new ClassVisitor() {
+                public void visit(String className, byte[] classFile)
+                    throws IOException, WeaveException
+                {
+                    if (converter.isReviser(className))
+                        archive.addReviser(className, classFile);
+
+                    archive.addClass(className, classFile, transformClass(className, classFile));
+                }
+            });
+
+            for (CtClass cc: converter.getHelpers())
+                out.addHelper(cc.getName(), cc.toBytecode());
+
+            out.finish(reviserNames, converter.isIndyDispatch(), fuse, converter.isMergeRevisers());
+        }
+        catch (IOException e) {
+            throw new WeaveException("cannot write an archive: " + dest, e);
+        }
+        catch (CannotCompileException e) {
+            throw new WeaveException("cannot write an archive: " + dest, e);
+        }
+        finally {
+            try {
+                out.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Writes a manifest listing the classes in the class path that
+     * transformClass(String, byte[]) may modify.  The load-time weaver
+     * passes the other classes through without reading them.
+     * The classes are not transformed.
+     *
+     * @param classPath     directory names and jar file names separated
+     *                      by <code>File.pathSeparator</code>.
+     * @param reviserNames  the reviser names given to the load-time weaver.
+     * @see WeaveManifest
+     */
+    public void writeManifest(String classPath, String[] reviserNames, File dest)
+        throws WeaveException
+    {
+        final HashMap<String,Integer> reviserFiles = new HashMap<String,Integer>();
+        final TreeMap<String,String> classes = new TreeMap<String,String>();
+        ArrayList<File> paths = new ArrayList<File>();
+        try {
+            for (File f: IndexedClassPath.split(classPath))
+                paths.add(f.getCanonicalFile());
+
+            scanClassPath(paths, new ClassVisitor() {
+                public void visit(String className, byte[] classFile)
+                    throws IOException, WeaveException
+                {
+                    if (converter.isReviser(className))
+                        reviserFiles.put(className, WeaveArchive.checksum(classFile));
+
+                    if (mayRevise(className, classFile))
+                        try {
+                            ClassFile cf = new ClassFile(new DataInputStream(
+                                                    new ByteArrayInputStream(classFile)));
+                            classes.put(className.replace('.', '/'),
+                                        converter.getRevisionKinds(cf));
+                        }
+                        catch (NotFoundException e) {
+                            throw new WeaveException(e);
+                        }
+                }
+            });
+
+            WeaveManifest.write(dest, reviserNames, converter.isIndyDispatch(),
+                                converter.isMergeRevisers(), reviserFiles, paths, classes);
+        }
+        catch (IOException e) {
+            throw new WeaveException("cannot write a manifest: " + dest, e);
+        }
+    }
+
+    /* Called by scanClassPath() for every class file.
+     */
+    private static interface ClassVisitor {
+        void visit(String className, byte[] classFile) throws IOException, WeaveException;
+    }
+
+    /* Visits the class files in the directories and the jar files.
+     * If the same class name appears more than once, only the first
+     * one is visited.
+     */
+    private static void scanClassPath(List<File> elements, ClassVisitor v)
+        throws IOException, WeaveException
+    {
+        HashSet<String> done = new HashSet<String>();
+        for (File f: elements)
+            if (f.isDirectory())
+                scanDir(f, "", done, v);
+            else if (f.exists())
+                scanJar(f, done, v);
+    }
+
+    private static void scanDir(File dir, String path, HashSet<String> done, ClassVisitor v)
+        throws IOException, WeaveException
+    {
+        String[] names = dir.list();
+        if (names == null)
+            return;
+
+        Arrays.sort(names);
+        for (String name: names) {
+            File f = new File(dir, name);
+            if (f.isDirectory())
+                scanDir(f, path + name + "/", done, v);
+            else {
+                String className = entryToClassName(path + name);
+                if (className != null && done.add(className)) {
+                    InputStream in = new FileInputStream(f);
+                    try {
+                        v.visit(className, WeaveCache.readAll(in));
+                    }
+                    finally {
+                        in.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void scanJar(File jarFile, HashSet<String> done, ClassVisitor v)
+        throws IOException, WeaveException
+    {
+        ZipFile zip = new ZipFile(jarFile);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry e = entries.nextElement();
+                String className = entryToClassName(e.getName());
+                if (className != null && done.add(className))
+                    v.visit(className, readAll(zip, e));
+            }
+        }
+        finally {
+            zip.close();
+        }
+    }
+
     private static void failedToWrite(CtClass cc, Exception e)
         throws WeaveException
     {
@@ -165,25 +1245,152 @@ public class Weaver {
      * Transforms a class file given as a byte array and returns the
      * modified array.
      * It returns null if no transformation is needed.
+     * This method first scans the constant pool of the class file and
+     * returns null if the class file does not refer to any revised
+     * class or method.
+     * If the cache is used and it contains the modified class file,
+     * this method returns it without reading the given class file.
      */
     public byte[] transformClass(String className, byte[] classFile)
         throws WeaveException
     {
-        className = toClassName(className);
-        if (isNonTransformable(className))
+        return transformClass(className, classFile, null);
+    }
+
+    /**
+     * Transforms a class file loaded by the given class loader.
+     * If the class loader is not the one given to the constructor,
+     * the class file is transformed in a class pool of its own, which
+     * obtains the revisers and the helpers from the class pool of this
+     * weaver.  So the revisers are read only once even if they are
+     * applied to the classes loaded by many class loaders.
+     * That class pool is discarded when the class loader is
+     * garbage-collected.
+     *
+     * @param loader        the class loader, or null if the bootstrap loader.
+     * @see #transformClass(String, byte[])
+     */
+    public byte[] transformClass(ClassLoader loader, String className, byte[] classFile)
+        throws WeaveException
+    {
+        ClassConverter.Scope scope = getScope(loader);
+        if (scope == null)
+            return transformClass(className, classFile, null);
+
+        ClassConverter.Scope old = converter.setScope(scope);
+        try {
+            return transformClass(className, classFile, scope.getClassPool());
+        }
+        finally {
+            converter.setScope(old);
+        }
+    }
+
+    private ClassConverter.Scope getScope(ClassLoader loader) {
+        if (loader == null || loader == reviserLoader || reviserLoader == null)
             return null;
 
+        expungeStaleScopes();
+        ClassConverter.Scope s = scopes.get(new LoaderKey(loader, null));
+        if (s == null) {
+            s = new ClassConverter.Scope(new LoaderPool(loader));
+            ClassConverter.Scope s2 = scopes.putIfAbsent(new LoaderKey(loader, staleLoaders), s);
+            if (s2 == null)
+                Logger.print("New class pool for " + loader);
+            else
+                s = s2;
+        }
+
+        return s;
+    }
+
+    private void expungeStaleScopes() {
+        Object key;
+        while ((key = staleLoaders.poll()) != null)
+            scopes.remove(key);
+    }
+
+    /* A key of scopes.  It refers to a class loader weakly
+     * and two keys are equal if they refer to the same class loader.
+     */
+    private static class LoaderKey extends WeakReference<ClassLoader> {
+        private final int hash;
+
+        LoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            hash = System.identityHashCode(loader);
+        }
+
+        public int hashCode() { return hash; }
+
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            else if (obj instanceof LoaderKey) {
+                ClassLoader loader = get();
+                return loader != null && loader == ((LoaderKey)obj).get();
+            }
+            else
+                return false;
+        }
+    }
+
+    /**
+     * @param pool      the class pool for the class loader, or null.
+     */
+    private byte[] transformClass(String className, byte[] classFile, ClassPool pool)
+        throws WeaveException
+    {
+        long start = System.nanoTime();
+        Object event = stats.begin();
+        String outcome = WeaveStats.ERROR;
+        byte[] woven = null;
+        className = toClassName(className);
         try {
+            if (isNonTransformable(className)) {
+                outcome = WeaveStats.SKIPPED;
+                return null;
+            }
+
+            if (!converter.mayRevise(className, classFile)) {
+                Logger.print("Skipping.. " + className);
+                outcome = WeaveStats.SKIPPED;
+                return null;
+            }
+
+            String key = null;
+            if (cache != null) {
+                key = cache.key(classFile, pool == null ? cpool : pool);
+                woven = cache.get(key, className);
+                if (woven != null) {
+                    Logger.print("Cached.. " + className);
+                    outcome = WeaveStats.CACHED;
+                    return woven;
+                }
+            }
+
+            if (pool == null || converter.isShared(className))
+                pool = cpool;
+
             /* If multiple class loaders use the same Weaver object
              * for reading a class file, the same class file might
-             * be processed more than once.
+             * be processed more than once, even at the same time.
              */
-            CtClass clazz
-                = cpool.makeClassIfNew(new ByteArrayInputStream(classFile));
-            if (!clazz.isFrozen())
-                transform(clazz);
+            CtClass clazz = makeClass(pool, classFile);
+            synchronized (clazz) {
+                if (!clazz.isFrozen())
+                    transform(clazz);
 
-            return clazz.toBytecode();
+                woven = clazz.toBytecode();
+                if (detach && !converter.isReviser(className))
+                    clazz.detach();
+            }
+
+            if (key != null)
+                cache.put(key, className, woven);
+
+            outcome = WeaveStats.WOVEN;
+            return woven;
         }
         catch (IOException ie) {
             throw new WeaveException("cannot read a class file: "
@@ -193,6 +1400,35 @@ public class Weaver {
             throw new WeaveException("cannot transform a class file: "
                                      + className, cce);
         }
+        finally {
+            stats.end(event, start, className, outcome, classFile, woven);
+        }
+    }
+
+    /**
+     * Returns false if transformClass() never modifies the given
+     * class file.  It only scans the constant pool.
+     */
+    public boolean mayRevise(String className, byte[] classFile) {
+        className = toClassName(className);
+        return !isNonTransformable(className) && converter.mayRevise(className, classFile);
+    }
+
+    /**
+     * Returns what transformClass() modifies in the given class file.
+     * See {@link ClassConverter#getRevisionKinds(ClassFile)}.
+     */
+    public String getRevisionKinds(byte[] classFile) throws WeaveException {
+        try {
+            ClassFile cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(classFile)));
+            return converter.getRevisionKinds(cf);
+        }
+        catch (IOException e) {
+            throw new WeaveException("cannot read a class file", e);
+        }
+        catch (NotFoundException e) {
+            throw new WeaveException(e);
+        }
     }
 
     /**
@@ -204,7 +1440,8 @@ public class Weaver {
             || className.startsWith("javax.")
             || className.startsWith("com.sun.")
             || className.startsWith("sun.")
-            || className.startsWith("sunw.");
+            || className.startsWith("sunw.")
+            || className.startsWith("jdk.");
             // || className.startsWith("javassist.");
     }
 
@@ -213,6 +1450,9 @@ public class Weaver {
     }
 
     public void transform(CtClass orig) throws WeaveException {
+        if (revised != null && revised.contains(orig))
+            return;
+
         try {
             Logger.print("Transforming.. " + orig.getName());
             converter.revise(orig);
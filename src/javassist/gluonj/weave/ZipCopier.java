@@ -0,0 +1,316 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * A writer of a zip file that copies the entries of another zip file
+ * without decompressing them.  Only the entries given by
+ * {@link #put(String, byte[], Entry)} are compressed.
+ *
+ * <p>It does not support ZIP64.  The constructor throws a ZipException
+ * if the source file is a ZIP64 file.
+ */
+class ZipCopier {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int MAX_ENTRIES = 0xffff;
+
+    /**
+     * An entry of the source file.
+     */
+    static class Entry {
+        String name;
+        byte[] header;      // the central directory header
+        long offset;        // the offset of the local header
+
+        Entry(String n, byte[] h) {
+            name = n;
+            header = h;
+            offset = u4(h, 42);
+        }
+
+        long compressedSize() { return u4(header, 20); }
+        boolean hasDataDescriptor() { return (u2(header, 8) & 8) != 0; }
+    }
+
+    private RandomAccessFile src;
+    private ArrayList<Entry> entries;
+    private long start;                 // the offset of the first entry
+    private byte[] comment;
+    private OutputStream out;
+    private long position;              // the number of bytes written
+    private ByteArrayOutputStream central;
+    private int count;                  // the number of written entries
+    private int dosTime;                // used for new entries
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] buffer;
+
+    /**
+     * Reads the central directory of the source file.
+     */
+    ZipCopier(File source) throws IOException {
+        src = new RandomAccessFile(source, "r");
+        try {
+            readCentralDirectory();
+        }
+        catch (IOException e) {
+            src.close();
+            throw e;
+        }
+
+        dosTime = toDosTime(source.lastModified());
+        buffer = new byte[65536];
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long len = src.length();
+        int tail = (int)Math.min(len, 22 + 0xffff);
+        byte[] b = new byte[tail];
+        src.seek(len - tail);
+        src.readFully(b);
+        int end = -1;
+        for (int i = tail - 22; i >= 0; i--)
+            if (u4(b, i) == END_HEADER && i + 22 + u2(b, i + 20) <= tail) {
+                end = i;
+                break;
+            }
+
+        if (end < 0)
+            throw new ZipException("not a zip file");
+
+        int n = u2(b, end + 10);
+        long size = u4(b, end + 12);
+        long offset = u4(b, end + 16);
+        if (n == 0xffff || size == 0xffffffffL || offset == 0xffffffffL
+            || (end >= 20 && u4(b, end - 20) == ZIP64_LOCATOR))
+            throw new ZipException("ZIP64 is not supported");
+
+        comment = new byte[u2(b, end + 20)];
+        System.arraycopy(b, end + 22, comment, 0, comment.length);
+
+        byte[] dir = new byte[(int)size];
+        src.seek(offset);
+        src.readFully(dir);
+        entries = new ArrayList<Entry>(n);
+        start = offset;
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            if (u4(dir, pos) != CENTRAL_HEADER)
+                throw new ZipException("broken central directory");
+
+            int nameLen = u2(dir, pos + 28);
+            int headerLen = 46 + nameLen + u2(dir, pos + 30) + u2(dir, pos + 32);
+            byte[] h = new byte[headerLen];
+            System.arraycopy(dir, pos, h, 0, headerLen);
+            Entry e = new Entry(new String(dir, pos + 46, nameLen, "UTF-8"), h);
+            entries.add(e);
+            start = Math.min(start, e.offset);
+            pos += headerLen;
+        }
+    }
+
+    /**
+     * Returns the entries of the source file in the order of
+     * the central directory.
+     */
+    List<Entry> entries() { return entries; }
+
+    /**
+     * Starts writing the destination file.  The bytes preceding
+     * the first entry, such as a launcher script, are copied.
+     */
+    void open(File dest) throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(dest), 65536);
+        position = 0;
+        central = new ByteArrayOutputStream();
+        count = 0;
+        copy(0, start);
+    }
+
+    /**
+     * Copies the entry as is.
+     */
+    void copy(Entry e) throws IOException {
+        byte[] h = new byte[30];
+        src.seek(e.offset);
+        src.readFully(h);
+        if (u4(h, 0) != LOCAL_HEADER)
+            throw new ZipException("broken local header: " + e.name);
+
+        long len = 30 + u2(h, 26) + u2(h, 28) + e.compressedSize();
+        if (e.hasDataDescriptor()) {
+            byte[] sig = new byte[4];
+            src.seek(e.offset + len);
+            src.readFully(sig);
+            len += u4(sig, 0) == DATA_DESCRIPTOR ? 16 : 12;
+        }
+
+        byte[] header = e.header.clone();
+        put4(header, 42, position);
+        addCentralHeader(header);
+        copy(e.offset, len);
+    }
+
+    private void copy(long from, long len) throws IOException {
+        src.seek(from);
+        while (len > 0) {
+            int n = (int)Math.min(len, buffer.length);
+            src.readFully(buffer, 0, n);
+            out.write(buffer, 0, n);
+            len -= n;
+            position += n;
+        }
+    }
+
+    /**
+     * Compresses and writes a new entry.
+     *
+     * @param original      the entry replaced with the new one, or null.
+     *                      Its time stamp, comment, and attributes are
+     *                      kept.
+     */
+    void put(String name, byte[] data, Entry original) throws IOException {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            crc = new CRC32();
+        }
+
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length / 2 + 64);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            bout.write(buffer, 0, n);
+        }
+
+        crc.reset();
+        crc.update(data);
+        byte[] nameBytes = name.getBytes("UTF-8");
+        int flags = nameBytes.length == name.length() ? 0 : 0x800;
+        int time = original == null ? dosTime : (int)u4(original.header, 12);
+
+        byte[] local = new byte[30];
+        put4(local, 0, LOCAL_HEADER);
+        put2(local, 4, 20);
+        put2(local, 6, flags);
+        put2(local, 8, Deflater.DEFLATED);
+        put4(local, 10, time);
+        put4(local, 14, crc.getValue());
+        put4(local, 18, bout.size());
+        put4(local, 22, data.length);
+        put2(local, 26, nameBytes.length);
+        put2(local, 28, 0);
+
+        byte[] header;
+        if (original == null) {
+            header = new byte[46 + nameBytes.length];
+            put4(header, 0, CENTRAL_HEADER);
+            put2(header, 4, 20);
+            put2(header, 28, nameBytes.length);
+            System.arraycopy(nameBytes, 0, header, 46, nameBytes.length);
+        }
+        else
+            header = original.header.clone();
+
+        System.arraycopy(local, 6, header, 8, 20);
+        put2(header, 6, 20);
+        put4(header, 42, position);
+        addCentralHeader(header);
+
+        out.write(local);
+        out.write(nameBytes);
+        bout.writeTo(out);
+        position += local.length + nameBytes.length + bout.size();
+    }
+
+    private void addCentralHeader(byte[] header) throws IOException {
+        if (++count > MAX_ENTRIES)
+            throw new ZipException("too many entries");
+
+        central.write(header);
+    }
+
+    /**
+     * Writes the central directory and closes the files.
+     */
+    void finish() throws IOException {
+        if (position + central.size() > 0xffffffffL)
+            throw new ZipException("too large");
+
+        byte[] end = new byte[22];
+        put4(end, 0, END_HEADER);
+        put2(end, 8, count);
+        put2(end, 10, count);
+        put4(end, 12, central.size());
+        put4(end, 16, position);
+        put2(end, 20, comment.length);
+        central.writeTo(out);
+        out.write(end);
+        out.write(comment);
+        close();
+    }
+
+    void close() throws IOException {
+        if (deflater != null)
+            deflater.end();
+
+        try {
+            if (out != null)
+                out.close();
+        }
+        finally {
+            src.close();
+        }
+    }
+
+    private static int toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21
+               | c.get(Calendar.DAY_OF_MONTH) << 16
+               | c.get(Calendar.HOUR_OF_DAY) << 11
+               | c.get(Calendar.MINUTE) << 5
+               | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static int u2(byte[] b, int pos) {
+        return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8);
+    }
+
+    private static long u4(byte[] b, int pos) {
+        return (u2(b, pos) | ((long)u2(b, pos + 2) << 16)) & 0xffffffffL;
+    }
+
+    private static void put2(byte[] b, int pos, int v) {
+        b[pos] = (byte)v;
+        b[pos + 1] = (byte)(v >>> 8);
+    }
+
+    private static void put4(byte[] b, int pos, long v) {
+        put2(b, pos, (int)v);
+        put2(b, pos + 2, (int)(v >>> 16));
+    }
+}
@@ -0,0 +1,182 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.gluonj.weave.fuse.Calc;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the program in the fuse package with the revisers fused and
+ * not fused, each in a class loader of its own, and compares the results.
+ *
+ * <p>R4.f() catches an exception, so it is not safe to copy.  The body
+ * of R5.f() is copied into R6.f() and its proceed call is redirected to
+ * f_aop_super(), a bridge added to R5, since R4.f() is not called from R5
+ * any more.  Likewise, R1.v() is copied into R6.v() and its proceed call
+ * is redirected to v_aop_super() added to R1, which calls Calc.v().
+ */
+public class ChainFuserTest {
+    static final String PACKAGE = "javassist.gluonj.weave.fuse.";
+    static final String REVISERS = PACKAGE + "revisers.";
+    static final String[] CHAIN = { REVISERS + "R1", REVISERS + "R2", REVISERS + "R3",
+                                    REVISERS + "R4", REVISERS + "R5", REVISERS + "R6" };
+
+    @Test public void sameResult() throws Exception {
+        String fused = run(load(true));
+        String plain = run(load(false));
+        assertEquals(plain, fused);
+        assertTrue(plain, plain.endsWith(", g 13 " + REVISERS + "R6, v 0"));
+    }
+
+    @Test public void bridges() throws Exception {
+        WeavingLoader plain = load(false);
+        WeavingLoader fused = load(true);
+        run(plain);
+        run(fused);
+        assertTrue(calls(plain.woven(CHAIN[5]), "R5.f"));
+        assertFalse(calls(fused.woven(CHAIN[5]), "R5.f"));
+        assertTrue(calls(fused.woven(CHAIN[5]), "R5.f_aop_super"));
+        assertTrue(calls(fused.woven(CHAIN[5]), "R1.v_aop_super"));
+
+        assertNull(bridge(plain, "f"));
+        assertNull(bridge(plain, "v"));
+        assertBridge(fused, "f", CHAIN[4], CHAIN[3]);
+        assertBridge(fused, "v", CHAIN[0], Calc.class.getName());
+    }
+
+    /* The bridge must be declared in the reviser and call the method
+     * in its super class.
+     */
+    private static void assertBridge(WeavingLoader loader, String name, String reviser,
+                                     String superClass)
+        throws Exception
+    {
+        Method m = bridge(loader, name);
+        assertNotNull(name, m);
+        Class<?> declaring = m.getDeclaringClass();
+        assertEquals(reviser, declaring.getName());
+        assertEquals(superClass, declaring.getSuperclass().getName());
+        String simpleName = superClass.substring(superClass.lastIndexOf('.') + 1);
+        assertTrue(calls(loader.woven(reviser), simpleName + "." + name));
+    }
+
+    private static WeavingLoader load(boolean fuse) throws Exception {
+        String old = System.setProperty(Weaver.FUSE_PROPERTY, Boolean.toString(fuse));
+        try {
+            Weaver w = new Weaver(CHAIN, ChainFuserTest.class.getClassLoader(), true);
+            return new WeavingLoader(w);
+        }
+        finally {
+            if (old == null)
+                System.clearProperty(Weaver.FUSE_PROPERTY);
+            else
+                System.setProperty(Weaver.FUSE_PROPERTY, old);
+        }
+    }
+
+    private static String run(ClassLoader loader) throws Exception {
+        return (String)loader.loadClass(PACKAGE + "Calc").getMethod("run").invoke(null);
+    }
+
+    /* Returns the bridge method declared in one of the revisers, or null.
+     */
+    private static Method bridge(ClassLoader loader, String name) throws Exception {
+        for (String r: CHAIN)
+            for (Method m: loader.loadClass(r).getDeclaredMethods())
+                if (m.getName().equals(name + "_aop_super"))
+                    return m;
+
+        return null;
+    }
+
+    /* Returns true if the class file refers to the method.
+     *
+     * @param method    the simple class name + "." + the method name.
+     */
+    private static boolean calls(byte[] classFile, String method) throws IOException {
+        ClassFile cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(classFile)));
+        ConstPool cp = cf.getConstPool();
+        for (int i = 1; i < cp.getSize(); i++)
+            if (cp.getTag(i) == ConstPool.CONST_Methodref) {
+                String cname = cp.getMethodrefClassName(i);
+                String name = cname.substring(cname.lastIndexOf('.') + 1)
+                              + "." + cp.getMethodrefName(i);
+                if (name.equals(method))
+                    return true;
+            }
+
+        return false;
+    }
+
+    /* Loads the classes in the fuse package after weaving them
+     * as the load-time weaver does.
+     */
+    static class WeavingLoader extends ClassLoader {
+        private Weaver weaver;
+        private HashMap<String,byte[]> woven = new HashMap<String,byte[]>();
+
+        WeavingLoader(Weaver w) {
+            super(ChainFuserTest.class.getClassLoader());
+            weaver = w;
+        }
+
+        byte[] woven(String name) { return woven.get(name); }
+
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(PACKAGE))
+                return super.loadClass(name, resolve);
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    byte[] classFile = read(name);
+                    try {
+                        byte[] b = weaver.transformClass(name, classFile);
+                        if (b != null)
+                            classFile = b;
+                    }
+                    catch (WeaveException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+
+                    woven.put(name, classFile);
+                    c = defineClass(name, classFile, 0, classFile.length);
+                }
+
+                if (resolve)
+                    resolveClass(c);
+
+                return c;
+            }
+        }
+
+        private byte[] read(String name) throws ClassNotFoundException {
+            InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+            if (in == null)
+                throw new ClassNotFoundException(name);
+
+            try {
+                try {
+                    return WeaveCache.readAll(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewMethod;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the code emitted by CodeRewriter at once with the code
+ * made by CodeIterator.insertGap() edit by edit.
+ *
+ * <p>Every instruction but iconst_2 is prefixed with code counting
+ * the executed instructions, and iconst_2 is replaced with sipush 1000.
+ * Since a branch to an edited instruction jumps to its prefix,
+ * the counts also check the branch offsets.
+ */
+public class CodeRewriterTest {
+    static final String LOOP
+        = "public static int run(int n) {"
+        + "  int s = 0;"
+        + "  for (int i = 0; i < n; i++) {"
+        + "    if (i % 3 == 0) s += 2; else s -= 1;"
+        + "    try {"
+        + "      if (i == 5) throw new IllegalStateException();"
+        + "      s = s * 2;"
+        + "    }"
+        + "    catch (IllegalStateException e) { s += 100; }"
+        + "  }"
+        + "  return s; }";
+
+    static final String SWITCH
+        = "public static int run(int n) {"
+        + "  int s = 0;"
+        + "  for (int i = 0; i < n; i++) {"
+        + "    switch (i % 4) {"
+        + "    case 0: s += 2; break;"
+        + "    case 1: s -= 1; break;"
+        + "    case 3: s *= 2; break;"
+        + "    default: s++;"
+        + "    }"
+        + "    switch (s) {"
+        + "    case -7: s = 2; break;"
+        + "    case 1000: s = 3; break;"
+        + "    case 70000: s = 4; break;"
+        + "    }"
+        + "  }"
+        + "  return s; }";
+
+    static final String DUMMY = "Dummy";
+
+    @Test public void sameCodeAsInsertGap() throws Exception {
+        CtClass atOnce = rewrite(LOOP, false);
+        CtClass oneByOne = rewrite(LOOP, true);
+        assertArrayEquals(oneByOne.toBytecode(), atOnce.toBytecode());
+        assertSameBehavior(atOnce, oneByOne);
+    }
+
+    /* insertGap() may make a larger gap than requested when the method
+     * contains a switch, so only the behavior is compared.
+     */
+    @Test public void sameBehaviorWithSwitch() throws Exception {
+        assertSameBehavior(rewrite(SWITCH, false), rewrite(SWITCH, true));
+    }
+
+    @Test public void noEdits() throws Exception {
+        CtClass cc = makeClass(LOOP);
+        MethodInfo minfo = cc.getDeclaredMethod("run").getMethodInfo();
+        CodeAttribute ca = minfo.getCodeAttribute();
+        new CodeRewriter().apply(minfo);
+        assertSame(ca, minfo.getCodeAttribute());
+    }
+
+    private static CtClass makeClass(String method) throws Exception {
+        ClassPool pool = new ClassPool(true);
+        CtClass cc = pool.makeClass("test.Rewritten");
+        cc.getClassFile().getConstPool().addUtf8Info(DUMMY);
+        cc.addField(CtField.make("public static int count;", cc));
+        cc.addMethod(CtNewMethod.make(method, cc));
+        return cc;
+    }
+
+    /* If fallback is true, an unknown attribute is temporarily added
+     * so that the rewriter falls back to insertGap().
+     */
+    private static CtClass rewrite(String method, boolean fallback) throws Exception {
+        CtClass cc = makeClass(method);
+        MethodInfo minfo = cc.getDeclaredMethod("run").getMethodInfo();
+        ConstPool cp = minfo.getConstPool();
+        int count = cp.addFieldrefInfo(cp.getThisClassInfo(), "count", "I");
+        byte[] prefix = { (byte)Opcode.GETSTATIC, (byte)(count >> 8), (byte)count,
+                          (byte)Opcode.ICONST_1, (byte)Opcode.IADD,
+                          (byte)Opcode.PUTSTATIC, (byte)(count >> 8), (byte)count };
+
+        CodeAttribute ca = minfo.getCodeAttribute();
+        ca.setMaxStack(ca.getMaxStack() + 2);
+        if (fallback)
+            ca.getAttributes().add(new AttributeInfo(cp, DUMMY, new byte[0]));
+
+        CodeRewriter rewriter = new CodeRewriter();
+        CodeIterator it = ca.iterator();
+        while (it.hasNext()) {
+            int pos = it.next();
+            if (it.byteAt(pos) == Opcode.ICONST_2)
+                rewriter.replace(pos, new byte[] { (byte)Opcode.SIPUSH, 0x03, (byte)0xe8 });
+            else
+                rewriter.insert(pos, prefix);
+        }
+
+        rewriter.apply(minfo);
+        ca = minfo.getCodeAttribute();
+        Iterator<AttributeInfo> attrs = ca.getAttributes().iterator();
+        while (attrs.hasNext())
+            if (attrs.next().getName().equals(DUMMY)) {
+                assertTrue(fallback);
+                attrs.remove();
+            }
+
+        minfo.rebuildStackMapIf6(cc.getClassPool(), cc.getClassFile());
+        return cc;
+    }
+
+    private static void assertSameBehavior(CtClass atOnce, CtClass oneByOne)
+        throws Exception
+    {
+        Class<?> c1 = new TestLoader().define(atOnce);
+        Class<?> c2 = new TestLoader().define(oneByOne);
+        for (int n = 0; n < 20; n++) {
+            assertEquals("n = " + n, call(c2, n), call(c1, n));
+            assertEquals("n = " + n, c2.getField("count").getInt(null),
+                         c1.getField("count").getInt(null));
+        }
+
+        assertTrue(c1.getField("count").getInt(null) > 0);
+    }
+
+    private static int call(Class<?> c, int n) throws Exception {
+        Method m = c.getMethod("run", int.class);
+        return (Integer)m.invoke(null, n);
+    }
+
+    static class TestLoader extends ClassLoader {
+        TestLoader() { super(CodeRewriterTest.class.getClassLoader()); }
+
+        Class<?> define(CtClass cc) throws Exception {
+            byte[] b = cc.toBytecode();
+            return defineClass(cc.getName(), b, 0, b.length);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class WeaveArchiveTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    static final String[] REVISERS = { "r.Logger" };
+    static final byte[] REVISER = bytes("reviser");
+    static final byte[] ORIGINAL = bytes("original C");
+    static final byte[] WOVEN = bytes("woven C");
+    static final byte[] PLAIN = bytes("original D");
+    static final byte[] HELPER = bytes("helper");
+
+    @Test public void roundTrip() throws IOException {
+        WeaveArchive archive = new WeaveArchive(write());
+        assertEquals(3, archive.size());
+        assertTrue(archive.hasHelpers());
+        assertArrayEquals(WOVEN, archive.find("a/b/C", ORIGINAL));
+        assertSame(WeaveArchive.UNCHANGED, archive.find("a/b/D", PLAIN));
+        assertSame(WeaveArchive.UNCHANGED, archive.find("rt/H", HELPER));
+        assertNull(archive.find("a/b/E", ORIGINAL));
+    }
+
+    @Test public void modifiedClass() throws IOException {
+        WeaveArchive archive = new WeaveArchive(write());
+        assertNull(archive.find("a/b/C", bytes("original c")));
+        assertNull(archive.find("a/b/C", bytes("original C2")));
+    }
+
+    @Test public void check() throws IOException {
+        WeaveArchive archive = new WeaveArchive(write());
+        ClassLoader loader = new ResourceLoader("r/Logger.class", REVISER);
+        assertNull(archive.check(REVISERS, true, false, true, loader));
+        assertNotNull(archive.check(new String[] { "r.Other" }, true, false, true, loader));
+        assertNotNull(archive.check(REVISERS, false, false, true, loader));
+        assertNotNull(archive.check(REVISERS, true, true, true, loader));
+        assertNotNull(archive.check(REVISERS, true, false, false, loader));
+
+        String reason = archive.check(REVISERS, true, false, true,
+                                      new ResourceLoader("r/Logger.class", bytes("changed")));
+        assertEquals("modified r.Logger", reason);
+        reason = archive.check(REVISERS, true, false, true,
+                               new ResourceLoader("r/Other.class", REVISER));
+        assertEquals("not found r.Logger", reason);
+    }
+
+    @Test(expected = IOException.class)
+    public void notZip() throws IOException {
+        File f = tmp.newFile();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(bytes("not a zip file, but long enough to have an end record."));
+        out.close();
+        new WeaveArchive(f);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws IOException {
+        File f = write();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(raf.length() / 2);
+        raf.close();
+        new WeaveArchive(f);
+    }
+
+    @Test(expected = IOException.class)
+    public void noIndex() throws IOException {
+        new WeaveArchive(zip("a/b/C.class", ORIGINAL));
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongMagic() throws IOException {
+        new WeaveArchive(zip(WeaveArchive.INDEX, header("GluonJ cache", Weaver.VERSION)));
+    }
+
+    @Test public void outdated() throws IOException {
+        try {
+            new WeaveArchive(zip(WeaveArchive.INDEX, header("GluonJ archive", "1.0")));
+            fail();
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("made by GluonJ 1.0"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedIndex() throws IOException {
+        new WeaveArchive(zip(WeaveArchive.INDEX, header("GluonJ archive", Weaver.VERSION)));
+    }
+
+    @Test public void brokenEntry() throws IOException {
+        File f = write();
+        byte[] data = readAll(f);
+        byte[] name = bytes(WeaveArchive.WOVEN + "a/b/C.class");
+        int pos = indexOf(data, name) - 30;     // the local file header
+        assertEquals(0x50, data[pos]);
+        data[pos] = 0;
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+
+        WeaveArchive archive = new WeaveArchive(f);
+        assertNull(archive.find("a/b/C", ORIGINAL));
+        assertSame(WeaveArchive.UNCHANGED, archive.find("a/b/D", PLAIN));
+    }
+
+    private File write() throws IOException {
+        File f = tmp.newFile();
+        WeaveArchive.Writer w = new WeaveArchive.Writer(f);
+        w.addReviser(REVISERS[0], REVISER);
+        w.addClass("a.b.C", ORIGINAL, WOVEN);
+        w.addClass("a.b.D", PLAIN, null);
+        w.addHelper("rt.H", HELPER);
+        w.finish(REVISERS, true, false, true);
+        return f;
+    }
+
+    private File zip(String entryName, byte[] data) throws IOException {
+        File f = tmp.newFile();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+        out.putNextEntry(new ZipEntry(entryName));
+        out.write(data);
+        out.closeEntry();
+        out.close();
+        return f;
+    }
+
+    private static byte[] header(String magic, String version) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeUTF(magic);
+        out.writeUTF(version);
+        out.writeInt(1);
+        out.close();
+        return bout.toByteArray();
+    }
+
+    static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static byte[] readAll(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] data = new byte[(int)raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            int k = 0;
+            while (k < part.length && data[i + k] == part[k])
+                k++;
+
+            if (k == part.length)
+                return i;
+        }
+
+        return -1;
+    }
+
+    static class ResourceLoader extends ClassLoader {
+        private HashMap<String,byte[]> resources = new HashMap<String,byte[]>();
+
+        ResourceLoader(String name, byte[] data) {
+            super(null);
+            resources.put(name, data);
+        }
+
+        public InputStream getResourceAsStream(String name) {
+            byte[] data = resources.get(name);
+            return data == null ? null : new ByteArrayInputStream(data);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+
+import javassist.ByteArrayClassPath;
+import javassist.ClassPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static javassist.gluonj.weave.WeaveArchiveTest.bytes;
+import static javassist.gluonj.weave.WeaveArchiveTest.readAll;
+
+public class WeaveSnapshotTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    static final String[] REVISERS = { "r.Logger" };
+    static final byte[] REVISER = bytes("reviser");
+    static final byte[] PREPARED = bytes("prepared reviser");
+    static final byte[] HELPER = bytes("helper");
+    static final byte[] STATE = bytes("state");
+
+    @Test public void roundTrip() throws IOException {
+        WeaveSnapshot snapshot = new WeaveSnapshot(write());
+        assertEquals("fp", snapshot.getFingerprint());
+        Map<String,byte[]> classes = snapshot.getClasses();
+        assertEquals(new ArrayList<String>(classes.keySet()), list("r.Logger", "rt.H"));
+        assertArrayEquals(PREPARED, classes.get("r.Logger"));
+        assertArrayEquals(HELPER, classes.get("rt.H"));
+        assertTrue(snapshot.isRevised("r.Logger"));
+        assertFalse(snapshot.isRevised("rt.H"));
+
+        DataInputStream in = snapshot.openState();
+        byte[] state = new byte[STATE.length];
+        in.readFully(state);
+        assertArrayEquals(STATE, state);
+        assertEquals(-1, in.read());
+    }
+
+    @Test public void check() throws IOException {
+        WeaveSnapshot snapshot = new WeaveSnapshot(write());
+        assertNull(snapshot.check(REVISERS, true, false, true, pool(REVISER)));
+        assertNotNull(snapshot.check(new String[] { "r.Other" }, true, false, true,
+                                     pool(REVISER)));
+        assertNotNull(snapshot.check(REVISERS, false, false, true, pool(REVISER)));
+        assertNotNull(snapshot.check(REVISERS, true, true, true, pool(REVISER)));
+        assertNotNull(snapshot.check(REVISERS, true, false, false, pool(REVISER)));
+        assertEquals("modified r.Logger",
+                     snapshot.check(REVISERS, true, false, true, pool(bytes("changed"))));
+        assertEquals("not found r.Logger",
+                     snapshot.check(REVISERS, true, false, true, new ClassPool()));
+    }
+
+    @Test public void outdated() throws IOException {
+        File f = tmp.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        out.writeUTF("GluonJ snapshot");
+        out.writeUTF("1.0");
+        out.close();
+        try {
+            new WeaveSnapshot(f);
+            fail();
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("made by GluonJ 1.0"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongMagic() throws IOException {
+        File f = tmp.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        out.writeUTF("GluonJ archive");
+        out.writeUTF(Weaver.VERSION);
+        out.close();
+        new WeaveSnapshot(f);
+    }
+
+    @Test public void truncated() throws IOException {
+        File f = write();
+        byte[] data = readAll(f);
+        for (int len = 0; len < data.length; len++)
+            assertBroken(f, data, len);
+    }
+
+    @Test public void trailingBytes() throws IOException {
+        File f = write();
+        byte[] data = readAll(f);
+        byte[] longer = new byte[data.length + 1];
+        System.arraycopy(data, 0, longer, 0, data.length);
+        assertBroken(f, longer, longer.length);
+    }
+
+    /* Every byte is modified in turn.  For example, a broken length of
+     * a class file must not make a huge or negative array.
+     */
+    @Test public void corrupted() throws IOException {
+        File f = write();
+        byte[] data = readAll(f);
+        for (int i = 0; i < data.length; i++) {
+            byte[] broken = data.clone();
+            broken[i] ^= 0x80;
+            assertBroken(f, broken, broken.length);
+        }
+    }
+
+    private void assertBroken(File f, byte[] data, int len) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data, 0, len);
+        out.close();
+        try {
+            new WeaveSnapshot(f);
+            fail("not rejected: " + len + " bytes");
+        }
+        catch (IOException e) {}
+    }
+
+    private File write() throws IOException {
+        WeaveSnapshot snapshot = new WeaveSnapshot(REVISERS, true, false, true, "fp");
+        snapshot.addClassFile("r.Logger", WeaveArchive.checksum(REVISER));
+        snapshot.addClass("r.Logger", PREPARED, true);
+        snapshot.addClass("rt.H", HELPER, false);
+        snapshot.setState(STATE);
+        File f = new File(tmp.getRoot(), "snapshot");
+        snapshot.write(f);
+        return f;
+    }
+
+    private static ClassPool pool(byte[] reviser) {
+        ClassPool cp = new ClassPool();
+        cp.insertClassPath(new ByteArrayClassPath("r.Logger", reviser));
+        return cp;
+    }
+
+    private static ArrayList<String> list(String... names) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String n: names)
+            list.add(n);
+
+        return list;
+    }
+}
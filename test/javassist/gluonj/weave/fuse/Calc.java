@@ -0,0 +1,32 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave.fuse;
+
+/**
+ * The target of the revisers in ChainFuserTest.
+ */
+public class Calc {
+    protected int base = 1;
+
+    public int f(int x) { return x + base; }
+
+    public long g(long a, double b, String s) { return a + (long)b + s.length(); }
+
+    protected int h(int x) { return x * 2; }
+
+    public void v(int[] a) { a[0] += 100; }
+
+    public static String run() {
+        Calc c = new Calc();
+        long sum = 0;
+        for (int i = -5; i < 20; i++)
+            sum = sum * 31 + c.f(i);
+
+        int[] a = { 0 };
+        c.v(a);
+        a[0] = -a[0];
+        c.v(a);
+        return "f " + sum + " " + c.f(7) + ", g " + c.g(3L, 2.5, "abc") + " "
+               + c.getClass().getName() + ", v " + a[0];
+    }
+}
@@ -0,0 +1,25 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave.fuse.revisers;
+
+import javassist.gluonj.Require;
+import javassist.gluonj.Reviser;
+import javassist.gluonj.weave.fuse.Calc;
+
+/* f() reads a private field, so it is not copied.
+ */
+@Reviser public class R1 extends Calc {
+    private int secret = 10;
+
+    public int f(int x) { return super.f(x) + secret; }
+
+    public void v(int[] a) {
+        if (a[0] < 0) {
+            a[0] = 0;
+            return;
+        }
+
+        super.v(a);
+        a[0]++;
+    }
+}
@@ -0,0 +1,13 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave.fuse.revisers;
+
+import javassist.gluonj.Require;
+import javassist.gluonj.Reviser;
+import javassist.gluonj.weave.fuse.Calc;
+
+/* g() calls a protected method of the target in another package.
+ */
+@Reviser @Require(R1.class) public class R2 extends Calc {
+    public long g(long a, double b, String s) { return super.g(a, b, s) + h(1); }
+}
@@ -0,0 +1,18 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave.fuse.revisers;
+
+import javassist.gluonj.Require;
+import javassist.gluonj.Reviser;
+import javassist.gluonj.weave.fuse.Calc;
+
+@Reviser @Require(R2.class) public class R3 extends Calc {
+    public int f(int x) {
+        switch (x & 3) {
+        case 0: return super.f(x) + 1;
+        case 1: return super.f(x) * 2;
+        case 2: return super.f(x + 1) - 3;
+        default: return super.f(x);
+        }
+    }
+}
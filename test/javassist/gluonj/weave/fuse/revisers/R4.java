@@ -0,0 +1,20 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave.fuse.revisers;
+
+import javassist.gluonj.Require;
+import javassist.gluonj.Reviser;
+import javassist.gluonj.weave.fuse.Calc;
+
+/* f() catches an exception, so it is not copied.
+ */
+@Reviser @Require(R3.class) public class R4 extends Calc {
+    public int f(int x) {
+        try {
+            return super.f(x) * 3;
+        }
+        catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
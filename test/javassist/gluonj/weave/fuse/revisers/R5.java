@@ -0,0 +1,16 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave.fuse.revisers;
+
+import javassist.gluonj.Require;
+import javassist.gluonj.Reviser;
+import javassist.gluonj.weave.fuse.Calc;
+
+@Reviser @Require(R4.class) public class R5 extends Calc {
+    public int f(int x) {
+        int y = super.f(x);
+        return y > 100 ? y - 100 : y;
+    }
+
+    public long g(long a, double b, String s) { return super.g(a * 2, b, s + "!") - 1; }
+}
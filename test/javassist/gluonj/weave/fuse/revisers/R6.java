@@ -0,0 +1,16 @@
+// Copyright (C) 2009- Shigeru Chiba. All Rights Reserved.
+
+package javassist.gluonj.weave.fuse.revisers;
+
+import javassist.gluonj.Require;
+import javassist.gluonj.Reviser;
+import javassist.gluonj.weave.fuse.Calc;
+
+@Reviser @Require(R5.class) public class R6 extends Calc {
+    public int f(int x) { return super.f(x) ^ 5; }
+
+    public void v(int[] a) {
+        super.v(a);
+        a[0] *= 2;
+    }
+}